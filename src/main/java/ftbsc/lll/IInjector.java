@@ -1,5 +1,6 @@
 package ftbsc.lll;
 
+import ftbsc.lll.utils.MethodSelector;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.MethodNode;
 
@@ -21,6 +22,27 @@ public interface IInjector {
 	 */
 	default String reason() { return "No reason specified"; }
 
+	/**
+	 * When multiple injectors target the same class, those with higher priority
+	 * are applied first, unless {@link #before()} or {@link #after()} say otherwise.
+	 * @return the priority of this injector
+	 */
+	default int priority() { return 0; }
+
+	/**
+	 * Names, as returned by {@link #name()}, of the injectors on the same class
+	 * which should be applied after this one.
+	 * @return the names of the injectors this should precede
+	 */
+	default String[] before() { return new String[0]; }
+
+	/**
+	 * Names, as returned by {@link #name()}, of the injectors on the same class
+	 * which should be applied before this one.
+	 * @return the names of the injectors this should follow
+	 */
+	default String[] after() { return new String[0]; }
+
 	/**
 	 * This is used to identify which classes should be altered, and on which class
 	 * should this injector operate.
@@ -29,6 +51,16 @@ public interface IInjector {
 	 */
 	String targetClass();
 
+	/**
+	 * Whether this injector should also be applied to all classes extending or
+	 * implementing {@link #targetClass()}, on their overrides of the methods
+	 * selected by {@link #targetMethods()}. Subclasses which do not override any
+	 * of them are left alone.
+	 * This requires the launcher to keep track of the class hierarchy.
+	 * @return true if the subclasses of the target should be transformed as well
+	 */
+	default boolean targetSubclasses() { return false; }
+
 	/**
 	 * This is used to identify the method to transform within the class.
 	 * It should return the name of target.
@@ -52,10 +84,21 @@ public interface IInjector {
 	 */
 	String methodDesc();
 
+	/**
+	 * This is used to identify the methods to transform within the class, for
+	 * injectors which should be applied to more than one.
+	 * By default, it selects the single method described by {@link #methodName()}
+	 * and {@link #methodDesc()}.
+	 * @return a {@link MethodSelector} for the methods to transform
+	 */
+	default MethodSelector targetMethods() {
+		return MethodSelector.exact(this.methodName(), this.methodDesc());
+	}
+
 	/**
 	 * This method is to be called by the launcher after identifying the right class and
-	 * method to patch. The overriding method should contain the logic for actually
-	 * pathing.
+	 * method to patch, once for each method selected by {@link #targetMethods()}.
+	 * The overriding method should contain the logic for actually pathing.
 	 * @param clazz  the {@link ClassNode} currently being patched
 	 * @param method the {@link MethodNode} of method currently being patched
 	 */
@@ -4,6 +4,10 @@ package ftbsc.lll.exceptions;
  * Thrown when the injection of a patch fails.
  */
 public class InjectionException extends RuntimeException {
+	/**
+	 * The name of the injector which failed, null if unknown.
+	 */
+	private final String injector;
 
 	/**
 	 * Constructs a new injection exception with the specified detail message.
@@ -11,6 +15,7 @@ public class InjectionException extends RuntimeException {
 	 */
 	public InjectionException(String message) {
 		super(message);
+		this.injector = null;
 	}
 
 	/**
@@ -19,7 +24,19 @@ public class InjectionException extends RuntimeException {
 	 * @param  cause the cause, may be null (indicating nonexistent or unknown cause)
 	 */
 	public InjectionException(String message, Throwable cause) {
+		this(message, cause, null);
+	}
+
+	/**
+	 * Constructs a new injection exception with the specified detail message and cause,
+	 * blaming an injector.
+	 * @param message the detail message
+	 * @param cause the cause, may be null (indicating nonexistent or unknown cause)
+	 * @param injector the name of the injector which failed, may be null if unknown
+	 */
+	public InjectionException(String message, Throwable cause, String injector) {
 		super(message, cause);
+		this.injector = injector;
 	}
 
 	/**
@@ -29,5 +46,14 @@ public class InjectionException extends RuntimeException {
 	 */
 	public InjectionException(Throwable cause) {
 		super(cause);
+		this.injector = null;
+	}
+
+	/**
+	 * @return the name of the injector which failed, as returned by
+	 *         {@link ftbsc.lll.IInjector#name()}, or null if unknown
+	 */
+	public String getInjector() {
+		return this.injector;
 	}
 }
@@ -0,0 +1,33 @@
+package ftbsc.lll.exceptions;
+
+import java.util.List;
+
+/**
+ * Thrown when a method modified by injectors fails bytecode verification.
+ */
+public class VerificationException extends InjectionException {
+	/**
+	 * The names of the injectors which modified the method.
+	 */
+	private final List<String> injectors;
+
+	/**
+	 * Constructs a new verification exception with the specified detail message and cause.
+	 * @param message the detail message
+	 * @param cause the cause, may be null (indicating nonexistent or unknown cause)
+	 * @param injectors the names of the injectors which modified the method
+	 */
+	public VerificationException(String message, Throwable cause, List<String> injectors) {
+		super(message, cause, injectors.size() == 1 ? injectors.get(0) : null);
+		this.injectors = injectors;
+	}
+
+	/**
+	 * @return the names of the injectors which modified the method, as returned by
+	 *         {@link ftbsc.lll.IInjector#name()}: {@link #getInjector()} is only set
+	 *         when there is exactly one
+	 */
+	public List<String> getInjectors() {
+		return this.injectors;
+	}
+}
@@ -0,0 +1,266 @@
+package ftbsc.lll.hierarchy;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An {@link IClassHierarchy} which reads class headers from the resources of a
+ * {@link ClassLoader}, without ever loading the classes themselves.
+ * Classes may also be registered directly as they are transformed, which spares
+ * a lookup later. Everything that is read is cached, with all names interned so
+ * that entries share them, and the cache may be saved and restored between runs.
+ * The supertypes of each class are also cached, built from those of its parents,
+ * so that subtyping checks on classes which were seen before are constant-time.
+ */
+public class ClassHierarchy implements IClassHierarchy {
+	/**
+	 * Marks the files written by {@link #save(OutputStream)}.
+	 */
+	private static final int MAGIC = 0x4C4C4C48;
+
+	/**
+	 * The version of the file format.
+	 */
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Placeholder for classes which could not be found.
+	 */
+	private static final ClassInfo MISSING = new ClassInfo(null, null, new String[0], 0);
+
+	/**
+	 * Shared by all entries without interfaces.
+	 */
+	private static final String[] NO_INTERFACES = new String[0];
+
+	/**
+	 * The {@link ClassLoader} to look up class files with, referenced weakly so
+	 * that a hierarchy does not keep it alive.
+	 */
+	private final WeakReference<ClassLoader> loader;
+
+	/**
+	 * The classes which are already known.
+	 */
+	private final ConcurrentMap<String, ClassInfo> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * The pool of names used by the entries.
+	 */
+	private final ConcurrentMap<String, String> names = new ConcurrentHashMap<>();
+
+	/**
+	 * The supertypes of the classes which were looked up.
+	 */
+	private final ConcurrentMap<String, Set<String>> ancestors = new ConcurrentHashMap<>();
+
+	/**
+	 * How many lookups were served from the cache.
+	 */
+	private final LongAdder hits = new LongAdder();
+
+	/**
+	 * How many lookups required reading a class file.
+	 */
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Public constructor.
+	 * @param loader the {@link ClassLoader} to read class files from, may be null
+	 *               to only rely on registered and restored classes
+	 */
+	public ClassHierarchy(ClassLoader loader) {
+		this.loader = new WeakReference<>(loader);
+	}
+
+	/**
+	 * Registers a class from the header of its class file, replacing whatever
+	 * was known about it.
+	 * @param reader a {@link ClassReader} for the class
+	 * @return the {@link ClassInfo} of the class
+	 */
+	public ClassInfo register(ClassReader reader) {
+		ClassInfo info = this.compact(reader.getClassName(), reader.getSuperName(), reader.getInterfaces(), reader.getAccess());
+		ClassInfo previous = this.cache.put(info.name, info);
+		if(previous != null && (previous == MISSING || !Objects.equals(previous.superName, info.superName)
+			|| !Arrays.equals(previous.interfaces, info.interfaces)))
+			this.ancestors.clear(); //its descendants may be affected as well
+		return info;
+	}
+
+	/**
+	 * Looks up information about a class, reading its class file if it's not
+	 * known already.
+	 * @param internalName the internal name of the class
+	 * @return the {@link ClassInfo}, or null if the class could not be found
+	 */
+	@Override
+	public ClassInfo getClassInfo(String internalName) {
+		ClassInfo info = this.cache.get(internalName);
+		if(info != null) {
+			this.hits.increment();
+		} else {
+			this.misses.increment();
+			info = this.cache.computeIfAbsent(internalName, this::read);
+		}
+		return info == MISSING ? null : info;
+	}
+
+	/**
+	 * Finds all the supertypes of a class, reusing those already computed for its parents.
+	 * @param internalName the internal name of the class
+	 * @return the internal names of the supertypes, as an unmodifiable set
+	 */
+	@Override
+	public Set<String> getAncestors(String internalName) {
+		Set<String> res = this.ancestors.get(internalName);
+		if(res == null) {
+			res = new HashSet<>();
+			res.add(this.intern(internalName));
+			ClassInfo info = this.getClassInfo(internalName);
+			if(info != null) {
+				if(info.superName != null)
+					res.addAll(this.getAncestors(info.superName));
+				for(String itf : info.interfaces)
+					res.addAll(this.getAncestors(itf));
+			}
+			res = Collections.unmodifiableSet(res);
+			Set<String> previous = this.ancestors.putIfAbsent(internalName, res);
+			if(previous != null) res = previous;
+		}
+		return res;
+	}
+
+	/**
+	 * Reads the header of a class file from the {@link ClassLoader}.
+	 * @param internalName the internal name of the class
+	 * @return the {@link ClassInfo}, or {@link #MISSING} if it could not be found
+	 */
+	private ClassInfo read(String internalName) {
+		ClassLoader loader = this.loader.get();
+		if(loader == null) return MISSING;
+		try(InputStream in = loader.getResourceAsStream(internalName + ".class")) {
+			if(in == null) return MISSING;
+			ClassReader reader = new ClassReader(in);
+			return this.compact(reader.getClassName(), reader.getSuperName(), reader.getInterfaces(), reader.getAccess());
+		} catch(IOException e) {
+			return MISSING;
+		}
+	}
+
+	/**
+	 * Builds a {@link ClassInfo}, interning all the names within it.
+	 * @param name the internal name of the class
+	 * @param superName the internal name of the superclass
+	 * @param interfaces the internal names of the interfaces
+	 * @param access the access flags of the class
+	 * @return the built {@link ClassInfo}
+	 */
+	private ClassInfo compact(String name, String superName, String[] interfaces, int access) {
+		String[] itfs = NO_INTERFACES;
+		if(interfaces != null && interfaces.length != 0) {
+			itfs = new String[interfaces.length];
+			for(int i = 0; i < itfs.length; i++)
+				itfs[i] = this.intern(interfaces[i]);
+		}
+		return new ClassInfo(this.intern(name), this.intern(superName), itfs, access);
+	}
+
+	/**
+	 * Interns a name in the pool.
+	 * @param name the name, may be null
+	 * @return the pooled instance
+	 */
+	private String intern(String name) {
+		if(name == null) return null;
+		String pooled = this.names.putIfAbsent(name, name);
+		return pooled == null ? name : pooled;
+	}
+
+	/**
+	 * @return how many lookups were served from the cache
+	 */
+	public long getHits() {
+		return this.hits.sum();
+	}
+
+	/**
+	 * @return how many lookups required reading a class file
+	 */
+	public long getMisses() {
+		return this.misses.sum();
+	}
+
+	/**
+	 * @return how many classes are currently known
+	 */
+	public int size() {
+		return this.cache.size();
+	}
+
+	/**
+	 * Saves all known classes, so that they may be restored in a later run with
+	 * {@link #load(InputStream)}. Classes which could not be found are not saved.
+	 * @param out the {@link OutputStream} to write to, will not be closed
+	 * @throws IOException if writing fails
+	 */
+	public void save(OutputStream out) throws IOException {
+		List<ClassInfo> entries = new ArrayList<>();
+		for(ClassInfo info : this.cache.values())
+			if(info != MISSING) entries.add(info);
+		Map<String, Integer> table = new LinkedHashMap<>();
+		for(ClassInfo info : entries) {
+			table.putIfAbsent(info.name, table.size());
+			if(info.superName != null) table.putIfAbsent(info.superName, table.size());
+			for(String itf : info.interfaces) table.putIfAbsent(itf, table.size());
+		}
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+		data.writeInt(MAGIC);
+		data.writeInt(FORMAT_VERSION);
+		data.writeInt(table.size());
+		for(String name : table.keySet())
+			data.writeUTF(name);
+		data.writeInt(entries.size());
+		for(ClassInfo info : entries) {
+			data.writeInt(table.get(info.name));
+			data.writeInt(info.superName == null ? -1 : table.get(info.superName));
+			data.writeInt(info.access);
+			data.writeShort(info.interfaces.length);
+			for(String itf : info.interfaces)
+				data.writeInt(table.get(itf));
+		}
+		data.flush();
+	}
+
+	/**
+	 * Restores classes saved by {@link #save(OutputStream)}. They are assumed to
+	 * be up to date: classes registered later will still replace them.
+	 * @param in the {@link InputStream} to read from, will not be closed
+	 * @throws IOException if reading fails or the data is not in the right format
+	 */
+	public void load(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		if(data.readInt() != MAGIC || data.readInt() != FORMAT_VERSION)
+			throw new IOException("Unsupported class hierarchy format!");
+		String[] table = new String[data.readInt()];
+		for(int i = 0; i < table.length; i++)
+			table[i] = this.intern(data.readUTF());
+		int count = data.readInt();
+		for(int i = 0; i < count; i++) {
+			String name = table[data.readInt()];
+			int superIndex = data.readInt();
+			int access = data.readInt();
+			String[] itfs = new String[data.readUnsignedShort()];
+			for(int j = 0; j < itfs.length; j++)
+				itfs[j] = table[data.readInt()];
+			this.cache.putIfAbsent(name, new ClassInfo(name, superIndex == -1 ? null : table[superIndex],
+				itfs.length == 0 ? NO_INTERFACES : itfs, access));
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package ftbsc.lll.hierarchy;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Holds the little information about a class that is needed to navigate
+ * the class hierarchy: its name, its superclass and its interfaces.
+ */
+public class ClassInfo {
+	/**
+	 * The internal name of the class.
+	 */
+	public final String name;
+
+	/**
+	 * The internal name of the superclass, null for {@link Object}.
+	 */
+	public final String superName;
+
+	/**
+	 * The internal names of the interfaces directly implemented by the class.
+	 */
+	public final String[] interfaces;
+
+	/**
+	 * The access flags of the class.
+	 */
+	public final int access;
+
+	/**
+	 * Public constructor.
+	 * @param name the internal name of the class
+	 * @param superName the internal name of the superclass
+	 * @param interfaces the internal names of the interfaces
+	 * @param access the access flags of the class
+	 */
+	public ClassInfo(String name, String superName, String[] interfaces, int access) {
+		this.name = name;
+		this.superName = superName;
+		this.interfaces = interfaces;
+		this.access = access;
+	}
+
+	/**
+	 * Reads the information from the header of a class file, without
+	 * parsing the rest of it.
+	 * @param reader a {@link ClassReader} for the class
+	 * @return the {@link ClassInfo} of the class
+	 */
+	public static ClassInfo from(ClassReader reader) {
+		return new ClassInfo(reader.getClassName(), reader.getSuperName(), reader.getInterfaces(), reader.getAccess());
+	}
+
+	/**
+	 * @return whether the class is an interface
+	 */
+	public boolean isInterface() {
+		return (this.access & Opcodes.ACC_INTERFACE) != 0;
+	}
+}
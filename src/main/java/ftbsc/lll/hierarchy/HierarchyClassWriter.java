@@ -0,0 +1,47 @@
+package ftbsc.lll.hierarchy;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * A {@link ClassWriter} which looks up common superclasses through an
+ * {@link IClassHierarchy} instead of loading classes.
+ */
+public class HierarchyClassWriter extends ClassWriter {
+	/**
+	 * The {@link IClassHierarchy} to query.
+	 */
+	private final IClassHierarchy hierarchy;
+
+	/**
+	 * Public constructor.
+	 * @param flags the {@link ClassWriter} flags
+	 * @param hierarchy the {@link IClassHierarchy} to query
+	 */
+	public HierarchyClassWriter(int flags, IClassHierarchy hierarchy) {
+		super(flags);
+		this.hierarchy = hierarchy;
+	}
+
+	/**
+	 * Public constructor, reusing the constant pool of an existing class.
+	 * @param reader the {@link ClassReader} of the original class
+	 * @param flags the {@link ClassWriter} flags
+	 * @param hierarchy the {@link IClassHierarchy} to query
+	 */
+	public HierarchyClassWriter(ClassReader reader, int flags, IClassHierarchy hierarchy) {
+		super(reader, flags);
+		this.hierarchy = hierarchy;
+	}
+
+	/**
+	 * Finds the common superclass of two types through the {@link IClassHierarchy}.
+	 * @param type1 the internal name of a class
+	 * @param type2 the internal name of another class
+	 * @return the internal name of the common superclass
+	 */
+	@Override
+	protected String getCommonSuperClass(String type1, String type2) {
+		return this.hierarchy.getCommonSuperClass(type1, type2);
+	}
+}
@@ -0,0 +1,101 @@
+package ftbsc.lll.hierarchy;
+
+import java.util.*;
+
+/**
+ * Provides information about the class hierarchy without loading any class.
+ * Used for frame computation and anywhere else subtyping needs to be checked
+ * during a transformation.
+ */
+public interface IClassHierarchy {
+	/**
+	 * Looks up information about a class.
+	 * @param internalName the internal name of the class
+	 * @return the {@link ClassInfo}, or null if the class could not be found
+	 */
+	ClassInfo getClassInfo(String internalName);
+
+	/**
+	 * Looks up information about a class, failing if it's not available.
+	 * @param internalName the internal name of the class
+	 * @return the {@link ClassInfo}
+	 * @throws TypeNotPresentException if the class could not be found
+	 */
+	default ClassInfo requireClassInfo(String internalName) {
+		ClassInfo info = this.getClassInfo(internalName);
+		if(info == null)
+			throw new TypeNotPresentException(internalName.replace('/', '.'), null);
+		return info;
+	}
+
+	/**
+	 * Checks whether an instance of a class may be assigned to a variable of another type.
+	 * @param type the internal name of the type of the variable
+	 * @param other the internal name of the type of the instance
+	 * @return true if the assignment is legal
+	 */
+	default boolean isAssignableFrom(String type, String other) {
+		if(type.equals(other) || type.equals("java/lang/Object"))
+			return true;
+		Set<String> visited = new HashSet<>();
+		Deque<String> queue = new ArrayDeque<>();
+		queue.add(other);
+		while(!queue.isEmpty()) {
+			ClassInfo info = this.requireClassInfo(queue.poll());
+			if(info.superName != null && visited.add(info.superName)) {
+				if(info.superName.equals(type)) return true;
+				queue.add(info.superName);
+			}
+			for(String itf : info.interfaces) {
+				if(visited.add(itf)) {
+					if(itf.equals(type)) return true;
+					queue.add(itf);
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Finds all the supertypes of a class: itself, its superclasses and all the
+	 * interfaces they implement. Those which could not be found are skipped, along
+	 * with their own supertypes.
+	 * @param internalName the internal name of the class
+	 * @return the internal names of the supertypes
+	 */
+	default Set<String> getAncestors(String internalName) {
+		Set<String> res = new HashSet<>();
+		Deque<String> queue = new ArrayDeque<>();
+		res.add(internalName);
+		queue.add(internalName);
+		while(!queue.isEmpty()) {
+			ClassInfo info = this.getClassInfo(queue.poll());
+			if(info == null) continue;
+			if(info.superName != null && res.add(info.superName))
+				queue.add(info.superName);
+			for(String itf : info.interfaces)
+				if(res.add(itf)) queue.add(itf);
+		}
+		return res;
+	}
+
+	/**
+	 * Finds the closest common superclass of two classes, following the same
+	 * rules as {@link org.objectweb.asm.ClassWriter#getCommonSuperClass(String, String)}.
+	 * @param type1 the internal name of a class
+	 * @param type2 the internal name of another class
+	 * @return the internal name of the common superclass
+	 */
+	default String getCommonSuperClass(String type1, String type2) {
+		if(this.isAssignableFrom(type1, type2)) return type1;
+		if(this.isAssignableFrom(type2, type1)) return type2;
+		ClassInfo info = this.requireClassInfo(type1);
+		if(info.isInterface() || this.requireClassInfo(type2).isInterface())
+			return "java/lang/Object";
+		do {
+			if(info.superName == null) return "java/lang/Object";
+			info = this.requireClassInfo(info.superName);
+		} while(!this.isAssignableFrom(info.name, type2));
+		return info.name;
+	}
+}
@@ -0,0 +1,136 @@
+package ftbsc.lll.hooks;
+
+import ftbsc.lll.proxies.impl.MethodProxy;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.lang.invoke.*;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Binds hooks called through INVOKEDYNAMIC, as emitted by {@link ftbsc.lll.utils.nodes.HookInsnNode},
+ * to their implementations. Each call site names its hook by id: the first time it's
+ * executed, {@link #bootstrap(MethodHandles.Lookup, String, MethodType, String)} looks
+ * the id up and links the site to the registered {@link MethodHandle} for good.
+ * Linked sites are as cheap as direct calls, and the patched class does not need to
+ * see the class implementing the hook: only this one.
+ * Hooks must be registered before any site calling them is first executed. Registering
+ * a hook again changes the implementation for the sites linked after that.
+ */
+public final class HookRegistry {
+	/**
+	 * The {@link Handle} of the bootstrap method.
+	 */
+	public static final Handle BOOTSTRAP = new Handle(
+		Opcodes.H_INVOKESTATIC,
+		Type.getInternalName(HookRegistry.class),
+		"bootstrap",
+		Type.getMethodDescriptor(
+			Type.getType(CallSite.class),
+			Type.getType(MethodHandles.Lookup.class),
+			Type.getType(String.class),
+			Type.getType(MethodType.class),
+			Type.getType(String.class)),
+		false
+	);
+
+	/**
+	 * The registered hooks, by id.
+	 */
+	private static final ConcurrentMap<String, MethodHandle> HOOKS = new ConcurrentHashMap<>();
+
+	/**
+	 * Private constructor, as this class only has static methods.
+	 */
+	private HookRegistry() {}
+
+	/**
+	 * Registers a hook.
+	 * @param id the id of the hook
+	 * @param target the {@link MethodHandle} implementing it
+	 * @return the previous implementation of the hook, or null if there was none
+	 */
+	public static MethodHandle register(String id, MethodHandle target) {
+		if(id == null || target == null)
+			throw new IllegalArgumentException("Hooks must have an id and a target!");
+		return HOOKS.put(id, target);
+	}
+
+	/**
+	 * Registers a public static method as a hook.
+	 * @param id the id of the hook
+	 * @param method the {@link Method} implementing it
+	 * @return the previous implementation of the hook, or null if there was none
+	 * @throws IllegalArgumentException if the method is not public and static
+	 */
+	public static MethodHandle register(String id, Method method) {
+		if(!Modifier.isStatic(method.getModifiers()))
+			throw new IllegalArgumentException("Hook " + id + " must be static!");
+		try {
+			return register(id, MethodHandles.publicLookup().unreflect(method));
+		} catch(IllegalAccessException e) {
+			throw new IllegalArgumentException("Hook " + id + " must be public!", e);
+		}
+	}
+
+	/**
+	 * Removes a hook. Sites which were already linked keep calling it.
+	 * @param id the id of the hook
+	 * @return the implementation of the hook, or null if there was none
+	 */
+	public static MethodHandle unregister(String id) {
+		return HOOKS.remove(id);
+	}
+
+	/**
+	 * @param id the id of a hook
+	 * @return the implementation of the hook, or null if there is none
+	 */
+	public static MethodHandle get(String id) {
+		return HOOKS.get(id);
+	}
+
+	/**
+	 * Gets the id to register a hook with, for the sites built from a {@link MethodProxy}.
+	 * @param hook the {@link MethodProxy} of the hook, which must have a parent
+	 * @return the id, made of the internal name of the parent, the name and the descriptor
+	 */
+	public static String idOf(MethodProxy hook) {
+		if(hook.parent == null)
+			throw new IllegalArgumentException("Proxy " + hook.name + " has no parent!");
+		return hook.parent.internalName + '.' + hook.name + hook.descriptor;
+	}
+
+	/**
+	 * Checks whether the methods of a class may contain INVOKEDYNAMIC.
+	 * @param clazz the {@link ClassNode}
+	 * @throws IllegalArgumentException if the class was compiled for Java 6 or earlier
+	 */
+	public static void checkVersion(ClassNode clazz) {
+		if((clazz.version & 0xFFFF) < Opcodes.V1_7)
+			throw new IllegalArgumentException(String.format(
+				"Class %s has version %d: calling hooks through INVOKEDYNAMIC requires Java 7 (51) or later!",
+				clazz.name, clazz.version & 0xFFFF));
+	}
+
+	/**
+	 * Links a call site to its hook. Only meant to be called by the JVM.
+	 * @param caller the {@link MethodHandles.Lookup} of the class containing the site
+	 * @param name the name of the site, ignored
+	 * @param type the {@link MethodType} of the site
+	 * @param id the id of the hook
+	 * @return a {@link ConstantCallSite} calling the hook
+	 * @throws IllegalStateException if no hook is registered with that id
+	 */
+	public static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type, String id) {
+		MethodHandle target = HOOKS.get(id);
+		if(target == null)
+			throw new IllegalStateException("No hook registered with id " + id + "!");
+		return new ConstantCallSite(target.asType(type));
+	}
+}
@@ -0,0 +1,151 @@
+package ftbsc.lll.hooks;
+
+import ftbsc.lll.IInjector;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.lang.invoke.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Switches patches on and off at runtime, by the name of their {@link IInjector}.
+ * The code a patch inserts may be wrapped by {@link #guard(ClassNode, IInjector, InsnList)}
+ * in a check linked through INVOKEDYNAMIC to a {@link MutableCallSite} holding
+ * a constant: the JIT folds it away, so enabled patches cost nothing. Toggling a
+ * patch changes the constant, and the code depending on it is deoptimised once.
+ * All patches start enabled.
+ */
+public final class PatchToggles {
+	/**
+	 * The {@link Handle} of the bootstrap method.
+	 */
+	public static final Handle BOOTSTRAP = new Handle(
+		Opcodes.H_INVOKESTATIC,
+		Type.getInternalName(PatchToggles.class),
+		"bootstrap",
+		Type.getMethodDescriptor(
+			Type.getType(CallSite.class),
+			Type.getType(MethodHandles.Lookup.class),
+			Type.getType(String.class),
+			Type.getType(MethodType.class),
+			Type.getType(String.class)),
+		false
+	);
+
+	/**
+	 * Returns true, the target of enabled patches.
+	 */
+	private static final MethodHandle ENABLED = MethodHandles.constant(boolean.class, true);
+
+	/**
+	 * Returns false, the target of disabled patches.
+	 */
+	private static final MethodHandle DISABLED = MethodHandles.constant(boolean.class, false);
+
+	/**
+	 * The call site shared by all the guards of each patch, by name.
+	 */
+	private static final ConcurrentMap<String, MutableCallSite> SITES = new ConcurrentHashMap<>();
+
+	/**
+	 * Private constructor, as this class only has static methods.
+	 */
+	private PatchToggles() {}
+
+	/**
+	 * Gets the call site of a patch, creating it if needed.
+	 * @param name the name of the patch
+	 * @return the {@link MutableCallSite}
+	 */
+	private static MutableCallSite site(String name) {
+		return SITES.computeIfAbsent(name, n -> new MutableCallSite(ENABLED));
+	}
+
+	/**
+	 * Enables or disables a patch.
+	 * @param name the name of the patch, as returned by {@link IInjector#name()}
+	 * @param enabled whether the patch should be enabled
+	 */
+	public static void setEnabled(String name, boolean enabled) {
+		MutableCallSite site = site(name);
+		synchronized(site) {
+			if(isEnabled(name) == enabled) return;
+			site.setTarget(enabled ? ENABLED : DISABLED);
+			MutableCallSite.syncAll(new MutableCallSite[] { site });
+		}
+	}
+
+	/**
+	 * Enables a patch.
+	 * @param name the name of the patch, as returned by {@link IInjector#name()}
+	 */
+	public static void enable(String name) {
+		setEnabled(name, true);
+	}
+
+	/**
+	 * Disables a patch.
+	 * @param name the name of the patch, as returned by {@link IInjector#name()}
+	 */
+	public static void disable(String name) {
+		setEnabled(name, false);
+	}
+
+	/**
+	 * @param name the name of the patch, as returned by {@link IInjector#name()}
+	 * @return whether the patch is enabled
+	 */
+	public static boolean isEnabled(String name) {
+		MutableCallSite site = SITES.get(name);
+		return site == null || site.getTarget() == ENABLED;
+	}
+
+	/**
+	 * Wraps the code inserted by a patch so that it only runs while the patch is enabled.
+	 * The code must leave the stack and the locals as they were, and may not be
+	 * jumped into from outside: the guard skips it as a whole.
+	 * @param clazz the {@link ClassNode} the code is inserted into
+	 * @param injector the {@link IInjector} inserting it
+	 * @param code the code
+	 * @return the guarded code, which takes the place of the original
+	 */
+	public static InsnList guard(ClassNode clazz, IInjector injector, InsnList code) {
+		return guard(clazz, injector.name(), code);
+	}
+
+	/**
+	 * Wraps code so that it only runs while a patch is enabled.
+	 * The code must leave the stack and the locals as they were, and may not be
+	 * jumped into from outside: the guard skips it as a whole.
+	 * @param clazz the {@link ClassNode} the code is inserted into
+	 * @param name the name of the patch, as returned by {@link IInjector#name()}
+	 * @param code the code
+	 * @return the guarded code, which takes the place of the original
+	 * @throws IllegalArgumentException if the class was compiled for Java 6 or earlier
+	 */
+	public static InsnList guard(ClassNode clazz, String name, InsnList code) {
+		HookRegistry.checkVersion(clazz);
+		LabelNode skip = new LabelNode();
+		InsnList res = new InsnList();
+		res.add(new InvokeDynamicInsnNode("enabled", "()Z", BOOTSTRAP, name));
+		res.add(new JumpInsnNode(Opcodes.IFEQ, skip));
+		res.add(code);
+		res.add(skip);
+		return res;
+	}
+
+	/**
+	 * Links a guard to the state of its patch. Only meant to be called by the JVM.
+	 * @param caller the {@link MethodHandles.Lookup} of the class containing the guard
+	 * @param name the name of the site, ignored
+	 * @param type the {@link MethodType} of the site, which must be {@code ()Z}
+	 * @param patch the name of the patch
+	 * @return the {@link MutableCallSite} shared by the guards of the patch
+	 */
+	public static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type, String patch) {
+		return site(patch);
+	}
+}
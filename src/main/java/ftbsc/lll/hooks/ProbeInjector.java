@@ -0,0 +1,174 @@
+package ftbsc.lll.hooks;
+
+import ftbsc.lll.IInjector;
+import ftbsc.lll.proxies.impl.MethodProxy;
+import ftbsc.lll.utils.CallbackUtils;
+import ftbsc.lll.utils.MethodSelector;
+import ftbsc.lll.utils.StackUtils;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.util.*;
+
+/**
+ * An {@link IInjector} timing methods, with the results collected by {@link Probes}.
+ * Each method is given a probe named after its class, name and descriptor, which
+ * is called on entry and on every exit, normal or exceptional. Exceptions thrown
+ * from within the superclass constructor call of a constructor are not seen.
+ * The probes are called through INVOKEDYNAMIC, so the target classes must be
+ * compiled for Java 7 or later.
+ */
+public class ProbeInjector implements IInjector, Opcodes {
+	/**
+	 * The fully qualified name of the class to probe.
+	 */
+	private final String targetClass;
+
+	/**
+	 * The methods to probe.
+	 */
+	private final MethodProxy[] methods;
+
+	/**
+	 * The sampling rate of the probes.
+	 */
+	private final int sampling;
+
+	/**
+	 * Constructs an injector probing some methods of a class.
+	 * @param targetClass the fully qualified name of the class
+	 * @param sampling one call in how many should be timed, 1 to time all of them
+	 * @param methods the {@link MethodProxy}s of the methods, whose parents are ignored
+	 * @throws IllegalArgumentException if there are no methods, or the rate is not positive
+	 */
+	public ProbeInjector(String targetClass, int sampling, MethodProxy... methods) {
+		if(methods.length == 0)
+			throw new IllegalArgumentException("No methods to probe!");
+		if(sampling < 1)
+			throw new IllegalArgumentException("Sampling rate must be positive!");
+		this.targetClass = targetClass;
+		this.sampling = sampling;
+		this.methods = methods.clone();
+	}
+
+	/**
+	 * Builds the injectors probing some methods, one for each class they belong to.
+	 * @param sampling one call in how many should be timed, 1 to time all of them
+	 * @param methods the {@link MethodProxy}s of the methods, which must have a parent
+	 * @return the {@link ProbeInjector}s, to be registered like any other
+	 */
+	public static List<ProbeInjector> of(int sampling, Collection<MethodProxy> methods) {
+		Map<String, List<MethodProxy>> byClass = new LinkedHashMap<>();
+		for(MethodProxy method : methods) {
+			if(method.parent == null)
+				throw new IllegalArgumentException("Proxy " + method.name + " has no parent!");
+			byClass.computeIfAbsent(method.parent.fullyQualifiedName, k -> new ArrayList<>()).add(method);
+		}
+		List<ProbeInjector> res = new ArrayList<>();
+		for(Map.Entry<String, List<MethodProxy>> entry : byClass.entrySet())
+			res.add(new ProbeInjector(entry.getKey(), sampling, entry.getValue().toArray(new MethodProxy[0])));
+		return res;
+	}
+
+	/**
+	 * @return name of injector, for logging
+	 */
+	@Override
+	public String name() {
+		return "probes:" + this.targetClass;
+	}
+
+	/**
+	 * @return reason for this patch, for logging
+	 */
+	@Override
+	public String reason() {
+		return "Times " + this.methods.length + " method(s)";
+	}
+
+	/**
+	 * @return the class to transform
+	 */
+	@Override
+	public String targetClass() {
+		return this.targetClass;
+	}
+
+	/**
+	 * @return the name of the first method to probe
+	 */
+	@Override
+	public String methodName() {
+		return this.methods[0].name;
+	}
+
+	/**
+	 * @return the descriptor of the first method to probe
+	 */
+	@Override
+	public String methodDesc() {
+		return this.methods[0].descriptor;
+	}
+
+	/**
+	 * @return a {@link MethodSelector} for all the methods to probe
+	 */
+	@Override
+	public MethodSelector targetMethods() {
+		return MethodSelector.of(this.methods);
+	}
+
+	/**
+	 * Inserts the probe into a method.
+	 * @param clazz  the {@link ClassNode} currently being patched
+	 * @param method the {@link MethodNode} of method currently being patched
+	 * @throws IllegalArgumentException if the class was compiled for Java 6 or earlier
+	 */
+	@Override
+	public void inject(ClassNode clazz, MethodNode method) {
+		if(method.instructions.size() == 0) return;
+		HookRegistry.checkVersion(clazz);
+		String probe = clazz.name.replace('/', '.') + "::" + method.name + method.desc;
+		int start = method.maxLocals;
+		method.maxLocals += 2;
+
+		for(AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+			if(insn.getOpcode() >= IRETURN && insn.getOpcode() <= RETURN) {
+				InsnList exit = new InsnList();
+				exit.add(StackUtils.load(Type.LONG_TYPE, start));
+				exit.add(this.call("exit", "(J)V", probe));
+				method.instructions.insertBefore(insn, exit);
+			}
+		}
+
+		//within a constructor, the handler may not cover the superclass constructor call
+		AbstractInsnNode first = CallbackUtils.getBodyStart(method);
+		if(first != null) {
+			LabelNode from = new LabelNode(), to = new LabelNode(), handler = new LabelNode();
+			method.instructions.insertBefore(first, from);
+			method.instructions.add(to);
+			method.instructions.add(handler);
+			method.instructions.add(StackUtils.load(Type.LONG_TYPE, start));
+			method.instructions.add(this.call("fail", "(J)V", probe));
+			method.instructions.add(new InsnNode(ATHROW));
+			method.tryCatchBlocks.add(new TryCatchBlockNode(from, to, handler, null));
+		}
+
+		InsnList enter = new InsnList();
+		enter.add(this.call("enter", "()J", probe));
+		enter.add(StackUtils.store(Type.LONG_TYPE, start));
+		method.instructions.insert(enter);
+	}
+
+	/**
+	 * Builds a call to a probe.
+	 * @param name the method of the probe to call
+	 * @param desc the descriptor of the call
+	 * @param probe the name of the probe
+	 * @return the {@link InvokeDynamicInsnNode}
+	 */
+	private InvokeDynamicInsnNode call(String name, String desc, String probe) {
+		return new InvokeDynamicInsnNode(name, desc, Probes.BOOTSTRAP, probe, this.sampling);
+	}
+}
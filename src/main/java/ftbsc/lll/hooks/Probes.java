@@ -0,0 +1,296 @@
+package ftbsc.lll.hooks;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.io.IOException;
+import java.lang.invoke.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the timings measured by the probes {@link ProbeInjector} inserts.
+ * Each probe times a sample of the calls to a method, including those ending
+ * with an exception. Counters are {@link LongAdder}s, which do not contend between
+ * threads, and the probes are bound to their call sites through INVOKEDYNAMIC,
+ * so that they are called directly.
+ * A probe with a sampling rate of n times one call in n, on average, and only
+ * those calls touch the counters: the total number of calls is estimated from
+ * them, so that the others cost no more than a random draw. Methods called very
+ * often should be sampled.
+ */
+public final class Probes {
+	/**
+	 * The {@link Handle} of the bootstrap method.
+	 */
+	public static final Handle BOOTSTRAP = new Handle(
+		Opcodes.H_INVOKESTATIC,
+		Type.getInternalName(Probes.class),
+		"bootstrap",
+		Type.getMethodDescriptor(
+			Type.getType(CallSite.class),
+			Type.getType(MethodHandles.Lookup.class),
+			Type.getType(String.class),
+			Type.getType(MethodType.class),
+			Type.getType(String.class),
+			Type.INT_TYPE),
+		false
+	);
+
+	/**
+	 * Returned on entry by calls which are not timed.
+	 */
+	private static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+	/**
+	 * The probes, by name.
+	 */
+	private static final ConcurrentMap<String, Probe> PROBES = new ConcurrentHashMap<>();
+
+	/**
+	 * Private constructor, as this class only has static methods.
+	 */
+	private Probes() {}
+
+	/**
+	 * Gets a probe, creating it if needed.
+	 * @param name the name of the probe
+	 * @param sampling the sampling rate to create it with
+	 * @return the {@link Probe}
+	 */
+	private static Probe probe(String name, int sampling) {
+		return PROBES.computeIfAbsent(name, n -> new Probe(n, sampling));
+	}
+
+	/**
+	 * Changes the sampling rate of a probe.
+	 * @param name the name of the probe
+	 * @param sampling one call in how many should be timed, 1 to time all of them
+	 * @throws IllegalArgumentException if the rate is not positive
+	 */
+	public static void setSampling(String name, int sampling) {
+		if(sampling < 1)
+			throw new IllegalArgumentException("Sampling rate must be positive!");
+		probe(name, sampling).sampling = sampling;
+	}
+
+	/**
+	 * Takes a snapshot of all the probes. The counters of each probe are read one
+	 * after the other while calls go on, so they may be slightly out of step.
+	 * @return a {@link Snapshot} for each probe, sorted by name
+	 */
+	public static List<Snapshot> snapshot() {
+		List<Snapshot> res = new ArrayList<>();
+		for(Probe probe : PROBES.values())
+			res.add(new Snapshot(probe));
+		res.sort((a, b) -> a.name.compareTo(b.name));
+		return res;
+	}
+
+	/**
+	 * Resets the counters of all the probes.
+	 */
+	public static void reset() {
+		for(Probe probe : PROBES.values())
+			probe.reset();
+	}
+
+	/**
+	 * Writes a snapshot of all the probes as CSV, with a header line.
+	 * @param out where to write it
+	 * @throws IOException if writing fails
+	 */
+	public static void export(Appendable out) throws IOException {
+		out.append("probe,calls,exceptional,sampled,total_ns,mean_ns,max_ns\n");
+		for(Snapshot s : snapshot())
+			out.append(String.format("\"%s\",%d,%d,%d,%d,%.1f,%d\n", s.name.replace("\"", "\"\""),
+				s.calls, s.exceptional, s.sampled, s.totalNanos, s.getMeanNanos(), s.maxNanos));
+	}
+
+	/**
+	 * Links a probe to a call site. Only meant to be called by the JVM.
+	 * @param caller the {@link MethodHandles.Lookup} of the class containing the site
+	 * @param name the method of the {@link Probe} to call: enter, exit or fail
+	 * @param type the {@link MethodType} of the site
+	 * @param probe the name of the probe
+	 * @param sampling the sampling rate of the probe, if it does not exist yet
+	 * @return a {@link ConstantCallSite} calling the probe
+	 * @throws ReflectiveOperationException if the method does not exist
+	 */
+	public static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type, String probe, int sampling)
+		throws ReflectiveOperationException {
+		MethodHandle target = MethodHandles.lookup().findVirtual(Probe.class, name, type);
+		return new ConstantCallSite(target.bindTo(probe(probe, sampling)));
+	}
+
+	/**
+	 * The counters of a probe.
+	 */
+	private static final class Probe {
+		/**
+		 * The name of the probe.
+		 */
+		private final String name;
+
+		/**
+		 * One call in how many is timed.
+		 */
+		private volatile int sampling;
+
+		/**
+		 * How many calls were made, as estimated from those which were timed.
+		 */
+		private final LongAdder calls = new LongAdder();
+
+		/**
+		 * How many calls ended with an exception.
+		 */
+		private final LongAdder exceptional = new LongAdder();
+
+		/**
+		 * How many calls were timed.
+		 */
+		private final LongAdder sampled = new LongAdder();
+
+		/**
+		 * The total time of the timed calls, in nanoseconds.
+		 */
+		private final LongAdder nanos = new LongAdder();
+
+		/**
+		 * The longest time of a timed call, in nanoseconds.
+		 */
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		/**
+		 * Private constructor.
+		 * @param name the name of the probe
+		 * @param sampling the sampling rate
+		 */
+		private Probe(String name, int sampling) {
+			this.name = name;
+			this.sampling = Math.max(sampling, 1);
+		}
+
+		/**
+		 * Called when entering the method.
+		 * @return the time the call started at, or {@link #NOT_SAMPLED}
+		 */
+		public long enter() {
+			int sampling = this.sampling;
+			if(sampling != 1 && ThreadLocalRandom.current().nextInt(sampling) != 0)
+				return NOT_SAMPLED;
+			this.calls.add(sampling); //stands for the calls which were not sampled
+			return System.nanoTime();
+		}
+
+		/**
+		 * Called when returning from the method.
+		 * @param start the value returned by {@link #enter()}
+		 */
+		public void exit(long start) {
+			if(start == NOT_SAMPLED) return;
+			long elapsed = System.nanoTime() - start;
+			this.sampled.increment();
+			this.nanos.add(elapsed);
+			this.max.accumulate(elapsed);
+		}
+
+		/**
+		 * Called when the method throws.
+		 * @param start the value returned by {@link #enter()}
+		 */
+		public void fail(long start) {
+			this.exceptional.increment();
+			this.exit(start);
+		}
+
+		/**
+		 * Resets the counters.
+		 */
+		private void reset() {
+			this.calls.reset();
+			this.exceptional.reset();
+			this.sampled.reset();
+			this.nanos.reset();
+			this.max.reset();
+		}
+	}
+
+	/**
+	 * The counters of a probe at some point in time.
+	 */
+	public static final class Snapshot {
+		/**
+		 * The name of the probe.
+		 */
+		public final String name;
+
+		/**
+		 * How many calls were made: when sampling, an estimate from those which were timed.
+		 */
+		public final long calls;
+
+		/**
+		 * How many calls ended with an exception, which are always counted.
+		 */
+		public final long exceptional;
+
+		/**
+		 * How many calls were timed.
+		 */
+		public final long sampled;
+
+		/**
+		 * The total time of the timed calls, in nanoseconds.
+		 */
+		public final long totalNanos;
+
+		/**
+		 * The longest time of a timed call, in nanoseconds.
+		 */
+		public final long maxNanos;
+
+		/**
+		 * Private constructor.
+		 * @param probe the {@link Probe} to read
+		 */
+		private Snapshot(Probe probe) {
+			this.name = probe.name;
+			this.calls = probe.calls.sum();
+			this.exceptional = probe.exceptional.sum();
+			this.sampled = probe.sampled.sum();
+			this.totalNanos = probe.nanos.sum();
+			this.maxNanos = probe.max.get();
+		}
+
+		/**
+		 * @return the mean time of the timed calls, in nanoseconds, or 0 if none were timed
+		 */
+		public double getMeanNanos() {
+			return this.sampled == 0 ? 0 : (double) this.totalNanos / this.sampled;
+		}
+
+		/**
+		 * @return an estimate of the total time of all the calls, in nanoseconds
+		 */
+		public double getEstimatedNanos() {
+			return this.getMeanNanos() * this.calls;
+		}
+
+		/**
+		 * @return a human-readable summary of the snapshot
+		 */
+		@Override
+		public String toString() {
+			return String.format("%s: %d calls (%d exceptional), mean %.1f ns over %d timed, max %d ns",
+				this.name, this.calls, this.exceptional, this.getMeanNanos(), this.sampled, this.maxNanos);
+		}
+	}
+}
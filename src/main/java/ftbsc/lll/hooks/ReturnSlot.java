@@ -0,0 +1,157 @@
+package ftbsc.lll.hooks;
+
+/**
+ * Passes the value a cancelled method should return from a hook to the code
+ * calling it, as injected by {@link ftbsc.lll.utils.CallbackUtils#injectHead}.
+ * Each thread has a single slot, which is reused, and primitives are kept as raw
+ * bits, so cancelling never allocates.
+ * Hooks cancel by returning the result of one of the {@code cancel} methods:
+ * bytes, chars and shorts go through {@link #cancel(int)}. The slot is cleared
+ * as soon as the value is taken, so a hook returning true without giving one
+ * makes the method return zero, false or null.
+ */
+public final class ReturnSlot {
+	/**
+	 * The slot of each thread.
+	 */
+	private static final ThreadLocal<ReturnSlot> SLOTS = ThreadLocal.withInitial(ReturnSlot::new);
+
+	/**
+	 * The primitive value to return, as raw bits.
+	 */
+	private long primitive;
+
+	/**
+	 * The reference to return.
+	 */
+	private Object object;
+
+	/**
+	 * Private constructor, as slots are only created by {@link #SLOTS}.
+	 */
+	private ReturnSlot() {}
+
+	/**
+	 * Cancels a method returning nothing.
+	 * @return true, to be returned by the hook
+	 */
+	public static boolean cancel() {
+		return true;
+	}
+
+	/**
+	 * Cancels a method returning a boolean.
+	 * @param value the value to return
+	 * @return true, to be returned by the hook
+	 */
+	public static boolean cancel(boolean value) {
+		SLOTS.get().primitive = value ? 1 : 0;
+		return true;
+	}
+
+	/**
+	 * Cancels a method returning an int, or a smaller primitive.
+	 * @param value the value to return
+	 * @return true, to be returned by the hook
+	 */
+	public static boolean cancel(int value) {
+		SLOTS.get().primitive = value;
+		return true;
+	}
+
+	/**
+	 * Cancels a method returning a long.
+	 * @param value the value to return
+	 * @return true, to be returned by the hook
+	 */
+	public static boolean cancel(long value) {
+		SLOTS.get().primitive = value;
+		return true;
+	}
+
+	/**
+	 * Cancels a method returning a float.
+	 * @param value the value to return
+	 * @return true, to be returned by the hook
+	 */
+	public static boolean cancel(float value) {
+		SLOTS.get().primitive = Float.floatToRawIntBits(value);
+		return true;
+	}
+
+	/**
+	 * Cancels a method returning a double.
+	 * @param value the value to return
+	 * @return true, to be returned by the hook
+	 */
+	public static boolean cancel(double value) {
+		SLOTS.get().primitive = Double.doubleToRawLongBits(value);
+		return true;
+	}
+
+	/**
+	 * Cancels a method returning a reference.
+	 * @param value the value to return
+	 * @return true, to be returned by the hook
+	 */
+	public static boolean cancel(Object value) {
+		SLOTS.get().object = value;
+		return true;
+	}
+
+	/**
+	 * Takes the int to return, clearing the slot.
+	 * @return the int to return, as given to {@link #cancel(int)} or {@link #cancel(boolean)}
+	 */
+	public static int takeInt() {
+		return (int) takePrimitive();
+	}
+
+	/**
+	 * Takes the long to return, clearing the slot.
+	 * @return the long to return, as given to {@link #cancel(long)}
+	 */
+	public static long takeLong() {
+		return takePrimitive();
+	}
+
+	/**
+	 * Takes the float to return, clearing the slot.
+	 * @return the float to return, as given to {@link #cancel(float)}
+	 */
+	public static float takeFloat() {
+		return Float.intBitsToFloat((int) takePrimitive());
+	}
+
+	/**
+	 * Takes the double to return, clearing the slot.
+	 * @return the double to return, as given to {@link #cancel(double)}
+	 */
+	public static double takeDouble() {
+		return Double.longBitsToDouble(takePrimitive());
+	}
+
+	/**
+	 * Takes the raw bits of the primitive to return, clearing the slot so that a
+	 * hook which cancels without giving a value gets zero rather than the value
+	 * of a previous cancellation.
+	 * @return the raw bits
+	 */
+	private static long takePrimitive() {
+		ReturnSlot slot = SLOTS.get();
+		long res = slot.primitive;
+		slot.primitive = 0;
+		return res;
+	}
+
+	/**
+	 * Takes the reference to return, clearing the slot so that it's not kept alive.
+	 * @return the reference to return, as given to {@link #cancel(Object)}
+	 */
+	public static Object takeObject() {
+		ReturnSlot slot = SLOTS.get();
+		Object res = slot.object;
+		slot.object = null;
+		return res;
+	}
+}
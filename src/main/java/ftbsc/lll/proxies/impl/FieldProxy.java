@@ -3,6 +3,7 @@ package ftbsc.lll.proxies.impl;
 import ftbsc.lll.proxies.AbstractProxy;
 import ftbsc.lll.proxies.ProxyType;
 import ftbsc.lll.proxies.QualifiableProxy;
+import ftbsc.lll.utils.DescriptorPool;
 import org.objectweb.asm.Type;
 
 import java.lang.reflect.Field;
@@ -23,7 +24,7 @@ public class FieldProxy extends AbstractProxy {
 	 * @param parent the {@link QualifiableProxy} for the parent
 	 */
 	protected FieldProxy(String name, String descriptor, int modifiers, QualifiableProxy parent) {
-		super(name, descriptor, modifiers, parent, ProxyType.FIELD);
+		super(name, DescriptorPool.intern(descriptor), modifiers, parent, ProxyType.FIELD);
 	}
 
 	/**
@@ -3,6 +3,7 @@ package ftbsc.lll.proxies.impl;
 import ftbsc.lll.proxies.AbstractProxy;
 import ftbsc.lll.proxies.ProxyType;
 import ftbsc.lll.proxies.QualifiableProxy;
+import ftbsc.lll.utils.DescriptorPool;
 import org.objectweb.asm.Type;
 
 import java.lang.reflect.Method;
@@ -21,6 +22,7 @@ public class MethodProxy extends AbstractProxy {
 
 	/**
 	 * An array of {@link TypeProxy} each representing the parameters of the method.
+	 * The proxies in it are shared with the other methods with the same descriptor.
 	 */
 	public final TypeProxy[] parameters;
 
@@ -38,11 +40,9 @@ public class MethodProxy extends AbstractProxy {
 	 * @param returnType the return type of the method
 	 */
 	protected MethodProxy(String name, int modifiers, QualifiableProxy parent, Type[] parameters, Type returnType) {
-		super(name, Type.getMethodDescriptor(returnType, parameters), modifiers, parent, ProxyType.METHOD);
-		this.parameters = Arrays.stream(parameters)
-			.map(t -> TypeProxy.from(t, 0))
-			.toArray(TypeProxy[]::new);
-		this.returnType = TypeProxy.from(returnType, 0);
+		super(name, DescriptorPool.intern(Type.getMethodDescriptor(returnType, parameters)), modifiers, parent, ProxyType.METHOD);
+		this.parameters = DescriptorPool.getParameterProxies(this.descriptor);
+		this.returnType = DescriptorPool.getReturnTypeProxy(this.descriptor);
 	}
 
 	/**
@@ -102,7 +102,7 @@ public class MethodProxy extends AbstractProxy {
 		Builder(String name) {
 			super(name);
 			this.parameters = new ArrayList<>();
-			this.returnType = Type.getType(void.class);
+			this.returnType = Type.VOID_TYPE;
 		}
 
 		/**
@@ -112,7 +112,7 @@ public class MethodProxy extends AbstractProxy {
 		 * @return the builder's state after the change
 		 */
 		public Builder addParameter(String fqn, int arrayLevel) {
-			this.parameters.add(Type.getType(nameToDescriptor(fqn, arrayLevel)));
+			this.parameters.add(DescriptorPool.getType(nameToDescriptor(fqn, arrayLevel)));
 			return this;
 		}
 
@@ -134,7 +134,7 @@ public class MethodProxy extends AbstractProxy {
 		 * @return the builder's state after the change
 		 */
 		public Builder setReturnType(String fqn, int arrayLevel) {
-			this.returnType = Type.getType(nameToDescriptor(fqn, arrayLevel));
+			this.returnType = DescriptorPool.getType(nameToDescriptor(fqn, arrayLevel));
 			return this;
 		}
 
@@ -179,8 +179,8 @@ public class MethodProxy extends AbstractProxy {
 		 */
 		public Builder setDescriptor(String descr) {
 			super.setDescriptor(descr);
-			this.parameters.addAll(Arrays.asList(Type.getArgumentTypes(descr)));
-			this.returnType = Type.getReturnType(descr);
+			this.parameters.addAll(Arrays.asList(DescriptorPool.getArgumentTypes(descr)));
+			this.returnType = DescriptorPool.getReturnType(descr);
 			return this;
 		}
 
@@ -2,6 +2,7 @@ package ftbsc.lll.proxies.impl;
 
 import ftbsc.lll.proxies.ProxyType;
 import ftbsc.lll.proxies.QualifiableProxy;
+import ftbsc.lll.utils.DescriptorPool;
 import org.objectweb.asm.Type;
 
 import java.lang.reflect.Modifier;
@@ -78,14 +79,14 @@ public class TypeProxy extends QualifiableProxy {
 	/**
 	 * Builds a {@link TypeProxy} given only the fully-qualified name and modifiers.
 	 * If present, parent classes will be assumed to have {@code public} as their
-	 * only modifier.
+	 * only modifier. The result is shared through the {@link DescriptorPool}.
 	 * @param fqn the fully qualified name of the desired class
 	 * @param arrayLevel the array level for this type
 	 * @param modifiers the access modifiers of the desired class
 	 * @return the built {@link TypeProxy}
 	 */
 	public static TypeProxy from(String fqn, int arrayLevel, int modifiers) {
-		return from(Type.getType(nameToDescriptor(fqn, arrayLevel)), modifiers);
+		return DescriptorPool.getTypeProxy(nameToDescriptor(fqn, arrayLevel), modifiers);
 	}
 
 	/**
@@ -0,0 +1,313 @@
+package ftbsc.lll.transformer;
+
+import ftbsc.lll.IInjector;
+import ftbsc.lll.exceptions.InjectionException;
+import ftbsc.lll.hierarchy.ClassHierarchy;
+import ftbsc.lll.hierarchy.HierarchyClassWriter;
+import ftbsc.lll.hierarchy.IClassHierarchy;
+import ftbsc.lll.utils.MatchRecorder;
+import ftbsc.lll.utils.MethodIndex;
+import ftbsc.lll.utils.analysis.IndexedClassNode;
+import ftbsc.lll.utils.analysis.MethodAnalysis;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.*;
+
+/**
+ * Applies {@link IInjector}s to class files.
+ * Frames and maximum stack sizes are only recomputed for the methods which were
+ * actually modified: the others are copied along with their original frames.
+ * Common superclasses are resolved through an {@link IClassHierarchy}, so no
+ * class is ever loaded in the process.
+ * When several injectors target the same method, the instructions each of them
+ * matches and inserts are tracked, and overlapping edits are reported.
+ * Each targeted method gets a {@link MethodAnalysis} bound to its class and to the
+ * {@link IClassHierarchy}, which all injectors working on it share. Classes are read
+ * into {@link IndexedClassNode}s, so that their methods are summarised in the process.
+ * Injectors which {@link IInjector#targetSubclasses() target subclasses} are
+ * only applied to the overrides they select when the class is not their target:
+ * nothing is done if there are none.
+ * Optionally, modified methods are cleaned up by a {@link PeepholeOptimizer} before
+ * their frames are computed.
+ */
+public class ClassTransformer {
+	/**
+	 * The {@link Logger} conflicts are reported to.
+	 */
+	private static final Logger LOGGER = LogManager.getLogger(ClassTransformer.class);
+
+	/**
+	 * The {@link IClassHierarchy} used for frame computation.
+	 */
+	protected final IClassHierarchy hierarchy;
+
+	/**
+	 * The {@link PeepholeOptimizer} modified methods go through, null if they are not optimised.
+	 */
+	protected final PeepholeOptimizer optimizer;
+
+	/**
+	 * Public constructor.
+	 * @param hierarchy the {@link IClassHierarchy} to use for frame computation
+	 */
+	public ClassTransformer(IClassHierarchy hierarchy) {
+		this(hierarchy, null);
+	}
+
+	/**
+	 * Public constructor.
+	 * @param hierarchy the {@link IClassHierarchy} to use for frame computation
+	 * @param optimizer the {@link PeepholeOptimizer} to run on modified methods, may be null
+	 */
+	public ClassTransformer(IClassHierarchy hierarchy, PeepholeOptimizer optimizer) {
+		this.hierarchy = hierarchy;
+		this.optimizer = optimizer;
+	}
+
+	/**
+	 * Applies the injectors a registry holds for a class. The class is registered
+	 * into the {@link IClassHierarchy} first, if possible, so that injectors on its
+	 * supertypes are found without reading it again.
+	 * @param bytes the original class file
+	 * @param registry the {@link InjectorRegistry} to look up injectors in
+	 * @return the transformed class file, or the original one if nothing was done
+	 * @throws InjectionException if an injector fails
+	 */
+	public byte[] transform(byte[] bytes, InjectorRegistry registry) {
+		ClassReader reader = new ClassReader(bytes);
+		if(this.hierarchy instanceof ClassHierarchy)
+			((ClassHierarchy) this.hierarchy).register(reader);
+		return this.transform(bytes, reader, registry.getInjectors(reader.getClassName().replace('/', '.')));
+	}
+
+	/**
+	 * Applies the given injectors to a class.
+	 * @param bytes the original class file
+	 * @param injectors the {@link IInjector}s to apply, in order
+	 * @return the transformed class file, or the original one if nothing was done
+	 * @throws InjectionException if an injector fails
+	 */
+	public byte[] transform(byte[] bytes, List<IInjector> injectors) {
+		ClassReader reader = new ClassReader(bytes);
+		if(this.hierarchy instanceof ClassHierarchy)
+			((ClassHierarchy) this.hierarchy).register(reader);
+		return this.transform(bytes, reader, injectors);
+	}
+
+	/**
+	 * Applies the given injectors to a class which was already registered.
+	 * @param bytes the original class file
+	 * @param reader a {@link ClassReader} for the original class file
+	 * @param injectors the {@link IInjector}s to apply, in order
+	 * @return the transformed class file, or the original one if nothing was done
+	 * @throws InjectionException if an injector fails
+	 */
+	private byte[] transform(byte[] bytes, ClassReader reader, List<IInjector> injectors) {
+		if(injectors.isEmpty())
+			return bytes;
+		ClassNode clazz = new IndexedClassNode();
+		reader.accept(clazz, 0);
+		Set<MethodNode> modified = this.inject(clazz, injectors);
+		if(modified.isEmpty()) //a subclass overriding none of the targets
+			return bytes;
+		return this.write(clazz, reader, modified);
+	}
+
+	/**
+	 * Applies the given injectors to a {@link ClassNode}, keeping track of what they change.
+	 * The methods they target are always considered modified, as are those whose size
+	 * changed and those which were added in the process.
+	 * @param clazz the {@link ClassNode} to transform
+	 * @param injectors the {@link IInjector}s to apply, in order
+	 * @return the modified {@link MethodNode}s
+	 * @throws InjectionException if an injector fails
+	 */
+	public Set<MethodNode> inject(ClassNode clazz, List<IInjector> injectors) {
+		return this.trace(clazz, injectors).keySet();
+	}
+
+	/**
+	 * Applies the given injectors to a {@link ClassNode} like {@link #inject(ClassNode, List)},
+	 * also telling which of them are responsible for each modified method. Methods which
+	 * were modified without being targeted, such as those which were added, are blamed
+	 * on all the injectors applied to the class.
+	 * @param clazz the {@link ClassNode} to transform
+	 * @param injectors the {@link IInjector}s to apply, in order
+	 * @return the names of the injectors responsible for each modified {@link MethodNode}
+	 * @throws InjectionException if an injector fails
+	 */
+	public Map<MethodNode, List<String>> trace(ClassNode clazz, List<IInjector> injectors) {
+		Map<MethodNode, Integer> sizes = new IdentityHashMap<>();
+		for(MethodNode method : clazz.methods)
+			sizes.put(method, method.instructions.size());
+		MethodIndex index = new MethodIndex(clazz);
+		List<List<MethodNode>> targets = new ArrayList<>(injectors.size());
+		Map<MethodNode, Integer> shared = new IdentityHashMap<>();
+		for(IInjector injector : injectors) {
+			List<MethodNode> selected = injector.targetMethods().resolve(index);
+			if(injector.targetSubclasses() && !injector.targetClass().replace('.', '/').equals(clazz.name))
+				selected.removeIf(method -> !isOverridable(method));
+			else if(selected.isEmpty())
+				throw new InjectionException(String.format("Could not find method %s in %s for %s!",
+					injector.targetMethods(), clazz.name, injector.name()), null, injector.name());
+			for(MethodNode method : selected)
+				shared.merge(method, 1, Integer::sum);
+			targets.add(selected);
+		}
+
+		Map<MethodNode, List<Edit>> edits = new IdentityHashMap<>();
+		Map<MethodNode, List<String>> modified = new IdentityHashMap<>();
+		for(int i = 0; i < injectors.size(); i++) {
+			IInjector injector = injectors.get(i);
+			for(MethodNode target : targets.get(i)) {
+				MethodAnalysis.of(clazz, target, this.hierarchy).validate(); //catches up with previous injectors
+				boolean tracked = shared.get(target) > 1;
+				Set<AbstractInsnNode> before = null, matched = null;
+				MatchRecorder recorder = null;
+				if(tracked) {
+					before = Collections.newSetFromMap(new IdentityHashMap<>());
+					before.addAll(Arrays.asList(target.instructions.toArray()));
+					recorder = MatchRecorder.start();
+				}
+				try {
+					injector.inject(clazz, target);
+				} catch(RuntimeException e) {
+					throw new InjectionException(String.format("Failed to apply %s to %s::%s%s!",
+						injector.name(), clazz.name, target.name, target.desc), e, injector.name());
+				} finally {
+					if(recorder != null) matched = recorder.stop();
+				}
+				if(tracked) {
+					Set<AbstractInsnNode> inserted = Collections.newSetFromMap(new IdentityHashMap<>());
+					for(AbstractInsnNode node : target.instructions)
+						if(!before.contains(node)) inserted.add(node);
+					Edit edit = new Edit(injector, matched, inserted);
+					List<Edit> previous = edits.computeIfAbsent(target, k -> new ArrayList<>());
+					for(Edit other : previous)
+						if(edit.overlaps(other))
+							LOGGER.warn("Injectors {} and {} overlap on {}::{}{}!", other.injector.name(),
+								injector.name(), clazz.name, target.name, target.desc);
+					previous.add(edit);
+				}
+				modified.computeIfAbsent(target, k -> new ArrayList<>()).add(injector.name());
+			}
+		}
+		List<String> all = null;
+		for(MethodNode method : clazz.methods) {
+			Integer size = sizes.get(method);
+			if((size == null || size != method.instructions.size()) && !modified.containsKey(method)) {
+				if(all == null) {
+					all = new ArrayList<>(injectors.size());
+					for(IInjector injector : injectors)
+						all.add(injector.name());
+				}
+				modified.put(method, all);
+			}
+		}
+		return modified;
+	}
+
+	/**
+	 * Checks whether a method may override another and has code to patch.
+	 * @param method the {@link MethodNode}
+	 * @return true if it's a concrete instance method, other than a constructor
+	 */
+	private static boolean isOverridable(MethodNode method) {
+		return (method.access & (Opcodes.ACC_STATIC | Opcodes.ACC_PRIVATE | Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) == 0
+			&& !method.name.startsWith("<");
+	}
+
+	/**
+	 * Writes a transformed {@link ClassNode} to a class file.
+	 * @param clazz the {@link ClassNode} to write
+	 * @param original a {@link ClassReader} for the original class, whose constant pool
+	 *                 will be reused, may be null
+	 * @param modified the {@link MethodNode}s whose frames should be recomputed, and
+	 *                 which should be optimised if an optimizer was given
+	 * @return the class file
+	 */
+	public byte[] write(ClassNode clazz, ClassReader original, Set<MethodNode> modified) {
+		for(ListIterator<MethodNode> iter = clazz.methods.listIterator(); iter.hasNext();) {
+			MethodNode method = iter.next();
+			if(modified.contains(method)) {
+				if(this.optimizer != null)
+					this.optimizer.optimize(clazz, method);
+				iter.set(this.computeFrames(clazz, method));
+			}
+		}
+		ClassWriter writer = original == null
+			? new HierarchyClassWriter(0, this.hierarchy)
+			: new HierarchyClassWriter(original, 0, this.hierarchy);
+		clazz.accept(writer);
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Computes frames and maximum stack and locals for a single method, by writing
+	 * it alone into a scratch class with the same header as its owner.
+	 * @param clazz the {@link ClassNode} containing the method
+	 * @param method the {@link MethodNode} to process
+	 * @return a copy of the {@link MethodNode} with up-to-date frames and maximums
+	 */
+	public MethodNode computeFrames(ClassNode clazz, MethodNode method) {
+		ClassWriter writer = new HierarchyClassWriter(ClassWriter.COMPUTE_FRAMES, this.hierarchy);
+		writer.visit(clazz.version, clazz.access, clazz.name, null, clazz.superName,
+			clazz.interfaces.toArray(new String[0]));
+		method.accept(writer);
+		writer.visitEnd();
+		ClassNode scratch = new ClassNode();
+		new ClassReader(writer.toByteArray()).accept(scratch, 0);
+		return scratch.methods.get(0);
+	}
+
+	/**
+	 * Describes the instructions an injector worked on.
+	 */
+	private static class Edit {
+		/**
+		 * The {@link IInjector} responsible for the edit.
+		 */
+		private final IInjector injector;
+
+		/**
+		 * The nodes matched by the injector's {@link ftbsc.lll.utils.PatternMatcher}s.
+		 */
+		private final Set<AbstractInsnNode> matched;
+
+		/**
+		 * The nodes inserted by the injector.
+		 */
+		private final Set<AbstractInsnNode> inserted;
+
+		/**
+		 * Private constructor.
+		 * @param injector the {@link IInjector} responsible for the edit
+		 * @param matched the nodes matched by the injector
+		 * @param inserted the nodes inserted by the injector
+		 */
+		private Edit(IInjector injector, Set<AbstractInsnNode> matched, Set<AbstractInsnNode> inserted) {
+			this.injector = injector;
+			this.matched = matched;
+			this.inserted = inserted;
+		}
+
+		/**
+		 * Checks whether this edit worked on instructions a previous one matched or inserted.
+		 * @param previous the previous {@link Edit}
+		 * @return true if they overlap
+		 */
+		private boolean overlaps(Edit previous) {
+			for(AbstractInsnNode node : this.matched)
+				if(previous.matched.contains(node) || previous.inserted.contains(node))
+					return true;
+			return false;
+		}
+	}
+}
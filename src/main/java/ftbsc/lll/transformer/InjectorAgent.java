@@ -0,0 +1,295 @@
+package ftbsc.lll.transformer;
+
+import ftbsc.lll.IInjector;
+import ftbsc.lll.hierarchy.ClassHierarchy;
+import ftbsc.lll.hierarchy.IClassHierarchy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.objectweb.asm.ClassReader;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.security.ProtectionDomain;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Java agent applying {@link IInjector}s, for patching without a launcher.
+ * Started with {@code -javaagent}, or attached to a running JVM, it applies the
+ * injectors declared as services to the classes as they are loaded; when attached,
+ * the classes which were already loaded are retransformed.
+ * Injectors may be replaced while the JVM runs: only the loaded classes which were
+ * targeted by the old or the new version, or which extend them when they target
+ * subclasses, are retransformed, in a single batch.
+ * Frames are computed with the given {@link IClassHierarchy} for the classes of the
+ * system class loader and its parents, and with a {@link ClassHierarchy} of their
+ * own loader for any other class, so that types only it can see are resolved.
+ * The agent needs ASM and log4j-api at startup: use the jar with the "agent"
+ * classifier, which bundles them, rather than the plain library jar.
+ */
+public class InjectorAgent implements ClassFileTransformer {
+	/**
+	 * The {@link Logger} failures are reported to.
+	 */
+	private static final Logger LOGGER = LogManager.getLogger(InjectorAgent.class);
+
+	/**
+	 * The agent started by {@link #premain(String, Instrumentation)} or
+	 * {@link #agentmain(String, Instrumentation)}, null if it was not.
+	 */
+	private static volatile InjectorAgent instance;
+
+	/**
+	 * The {@link Instrumentation} classes are retransformed with.
+	 */
+	private final Instrumentation instrumentation;
+
+	/**
+	 * The {@link InjectorRegistry} holding the injectors.
+	 */
+	private final InjectorRegistry registry;
+
+	/**
+	 * The {@link IClassHierarchy} of the system class loader, which the registry
+	 * uses as well.
+	 */
+	private final IClassHierarchy hierarchy;
+
+	/**
+	 * The {@link ClassTransformer} applying the injectors to the classes of the
+	 * system class loader and its parents.
+	 */
+	private final ClassTransformer transformer;
+
+	/**
+	 * The system class loader and its parents, whose classes are resolved by {@link #hierarchy}.
+	 */
+	private final Set<ClassLoader> system = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	/**
+	 * The {@link ClassTransformer}s of the other class loaders, each with its own
+	 * {@link ClassHierarchy}, which do not keep the loaders alive.
+	 */
+	private final Map<ClassLoader, ClassTransformer> transformers = new WeakHashMap<>();
+
+	/**
+	 * How many classes were transformed.
+	 */
+	private final LongAdder transformed = new LongAdder();
+
+	/**
+	 * The time spent transforming classes, in nanoseconds.
+	 */
+	private final LongAdder nanos = new LongAdder();
+
+	/**
+	 * Public constructor. The agent is not installed until {@link #install()} is called.
+	 * @param instrumentation the {@link Instrumentation} to use
+	 * @param registry the {@link InjectorRegistry} holding the injectors
+	 * @param hierarchy the {@link IClassHierarchy} used for frame computation in the
+	 *                  classes of the system class loader and its parents
+	 */
+	public InjectorAgent(Instrumentation instrumentation, InjectorRegistry registry, IClassHierarchy hierarchy) {
+		this.instrumentation = instrumentation;
+		this.registry = registry;
+		this.hierarchy = hierarchy;
+		this.transformer = new ClassTransformer(hierarchy);
+		for(ClassLoader loader = ClassLoader.getSystemClassLoader(); loader != null; loader = loader.getParent())
+			this.system.add(loader);
+	}
+
+	/**
+	 * Entry point when started with {@code -javaagent}.
+	 * @param args the agent arguments, ignored
+	 * @param instrumentation the {@link Instrumentation} provided by the JVM
+	 */
+	public static void premain(String args, Instrumentation instrumentation) {
+		start(instrumentation).install();
+	}
+
+	/**
+	 * Entry point when attached to a running JVM.
+	 * @param args the agent arguments, ignored
+	 * @param instrumentation the {@link Instrumentation} provided by the JVM
+	 */
+	public static void agentmain(String args, Instrumentation instrumentation) {
+		InjectorAgent agent = start(instrumentation);
+		agent.install();
+		agent.retransform(agent.registry.getTargets(), agent.registry.getHierarchicalTargets());
+	}
+
+	/**
+	 * Creates the agent for the injectors declared as services to the system class loader.
+	 * @param instrumentation the {@link Instrumentation} provided by the JVM
+	 * @return the {@link InjectorAgent}
+	 * @throws IllegalStateException if an agent was already started
+	 */
+	private static synchronized InjectorAgent start(Instrumentation instrumentation) {
+		if(instance != null)
+			throw new IllegalStateException("The injector agent was already started!");
+		ClassLoader loader = ClassLoader.getSystemClassLoader();
+		ClassHierarchy hierarchy = new ClassHierarchy(loader);
+		instance = new InjectorAgent(instrumentation, InjectorRegistry.fromServices(loader, hierarchy), hierarchy);
+		return instance;
+	}
+
+	/**
+	 * @return the agent started by the JVM, or null if there is none
+	 */
+	public static InjectorAgent getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Adds this as a retransformation capable {@link ClassFileTransformer}.
+	 * @throws IllegalStateException if the JVM does not support retransformation
+	 */
+	public void install() {
+		if(!this.instrumentation.isRetransformClassesSupported())
+			throw new IllegalStateException("The JVM does not support retransforming classes!");
+		this.instrumentation.addTransformer(this, true);
+	}
+
+	/**
+	 * @return the {@link InjectorRegistry} holding the injectors
+	 */
+	public InjectorRegistry getRegistry() {
+		return this.registry;
+	}
+
+	/**
+	 * @return how many classes were transformed so far
+	 */
+	public long getTransformedCount() {
+		return this.transformed.sum();
+	}
+
+	/**
+	 * @return the time spent transforming classes so far, in nanoseconds
+	 */
+	public long getTransformationNanos() {
+		return this.nanos.sum();
+	}
+
+	/**
+	 * Applies the injectors to a class being loaded or retransformed. The class file
+	 * given by the JVM on retransformation is the original one, so the injectors
+	 * are always applied from scratch.
+	 * @param loader the {@link ClassLoader} of the class, null for the bootstrap loader
+	 * @param className the internal name of the class
+	 * @param classBeingRedefined the class, if it's being retransformed
+	 * @param protectionDomain the {@link ProtectionDomain} of the class
+	 * @param bytes the class file
+	 * @return the transformed class file, or null if nothing was done
+	 */
+	@Override
+	public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+	                        ProtectionDomain protectionDomain, byte[] bytes) {
+		if(className == null) return null;
+		long start = System.nanoTime();
+		try {
+			ClassTransformer transformer = this.getTransformer(loader);
+			if(transformer != this.transformer && this.hierarchy instanceof ClassHierarchy)
+				((ClassHierarchy) this.hierarchy).register(new ClassReader(bytes)); //the registry looks up its supertypes
+			byte[] res = transformer.transform(bytes, this.registry);
+			if(res == bytes) return null;
+			this.transformed.increment();
+			return res;
+		} catch(RuntimeException | LinkageError e) {
+			LOGGER.error("Failed to transform {}!", className.replace('/', '.'), e);
+			return null;
+		} finally {
+			this.nanos.add(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Gets the {@link ClassTransformer} for the classes of a loader, creating it if needed.
+	 * @param loader the {@link ClassLoader}, null for the bootstrap loader
+	 * @return the {@link ClassTransformer}
+	 */
+	private ClassTransformer getTransformer(ClassLoader loader) {
+		if(loader == null || this.system.contains(loader)) return this.transformer;
+		synchronized(this.transformers) {
+			return this.transformers.computeIfAbsent(loader, l -> new ClassTransformer(new ClassHierarchy(l)));
+		}
+	}
+
+	/**
+	 * Registers an injector, and retransforms the loaded classes it targets.
+	 * @param injector the {@link IInjector}
+	 */
+	public void register(IInjector injector) {
+		this.registry.register(injector);
+		this.retransform(Collections.singleton(injector.targetClass()), injector.targetSubclasses()
+			? Collections.singleton(injector.targetClass().replace('.', '/')) : Collections.emptySet());
+	}
+
+	/**
+	 * Removes the injectors of a class, and retransforms the loaded classes they targeted.
+	 * @param className the fully qualified name of the injector class
+	 */
+	public void unregister(String className) {
+		this.replace(className, null);
+	}
+
+	/**
+	 * Replaces the injectors of a class with a newer version, and retransforms
+	 * the loaded classes either of them targets.
+	 * @param className the fully qualified name of the injector class
+	 * @param loader the {@link ClassLoader} to load the new version from, null to
+	 *               only remove the old one
+	 */
+	public void replace(String className, ClassLoader loader) {
+		Set<String> targets = new HashSet<>(), hierarchical = new HashSet<>();
+		List<InjectorInfo> changed = new ArrayList<>(this.registry.unregister(className));
+		if(loader != null) changed.add(this.registry.register(className, loader));
+		for(InjectorInfo info : changed) {
+			targets.add(info.targetClass);
+			if(info.targetSubclasses) hierarchical.add(info.targetClass.replace('.', '/'));
+		}
+		this.retransform(targets, hierarchical);
+	}
+
+	/**
+	 * Retransforms the loaded classes which are affected by a change in the injectors.
+	 * @param targets the fully qualified names of the classes targeted by the changed injectors
+	 * @param hierarchical the internal names of those of them whose subclasses are targeted as well
+	 */
+	public void retransform(Collection<String> targets, Set<String> hierarchical) {
+		if(targets.isEmpty()) return;
+		Set<String> names = targets instanceof Set ? (Set<String>) targets : new HashSet<>(targets);
+		List<Class<?>> affected = new ArrayList<>();
+		for(Class<?> clazz : this.instrumentation.getAllLoadedClasses()) {
+			if((names.contains(clazz.getName()) || !hierarchical.isEmpty() && extendsAny(clazz, hierarchical))
+				&& this.instrumentation.isModifiableClass(clazz))
+				affected.add(clazz);
+		}
+		if(affected.isEmpty()) return;
+		try {
+			this.instrumentation.retransformClasses(affected.toArray(new Class<?>[0]));
+		} catch(UnmodifiableClassException | RuntimeException | LinkageError e) {
+			LOGGER.error("Failed to retransform {} classes!", affected.size(), e);
+		}
+	}
+
+	/**
+	 * Checks whether a loaded class extends or implements any of the given types.
+	 * @param clazz the {@link Class}
+	 * @param types the internal names of the types
+	 * @return whether any of them is a proper supertype of the class
+	 */
+	private static boolean extendsAny(Class<?> clazz, Set<String> types) {
+		Deque<Class<?>> queue = new ArrayDeque<>();
+		queue.add(clazz);
+		while(!queue.isEmpty()) {
+			Class<?> cur = queue.poll();
+			Class<?> parent = cur.getSuperclass();
+			if(parent != null) queue.add(parent);
+			Collections.addAll(queue, cur.getInterfaces());
+			if(cur != clazz && types.contains(cur.getName().replace('.', '/'))) return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,202 @@
+package ftbsc.lll.transformer;
+
+import ftbsc.lll.IInjector;
+import org.objectweb.asm.*;
+
+/**
+ * Describes what an {@link ftbsc.lll.IInjector} targets, as read from its class
+ * file without loading it. This only works for injectors whose
+ * {@link ftbsc.lll.IInjector#targetClass()}, {@link ftbsc.lll.IInjector#methodName()}
+ * and {@link ftbsc.lll.IInjector#methodDesc()} simply return a constant, which is
+ * what most hand-written and all generated injectors do. The same goes for
+ * {@link ftbsc.lll.IInjector#targetSubclasses()}, which must be overridden by the
+ * injector itself unless it extends nothing but {@link Object} and {@link ftbsc.lll.IInjector}.
+ */
+public class InjectorInfo {
+	/**
+	 * The fully qualified name of the injector class.
+	 */
+	public final String className;
+
+	/**
+	 * The fully qualified name of the class to transform, null if it's not a constant.
+	 */
+	public final String targetClass;
+
+	/**
+	 * The name of the method to transform, null if it's not a constant.
+	 */
+	public final String methodName;
+
+	/**
+	 * The descriptor of the method to transform, null if it's not a constant.
+	 */
+	public final String methodDesc;
+
+	/**
+	 * Whether the injector also targets the subclasses of {@link #targetClass}.
+	 */
+	public final boolean targetSubclasses;
+
+	/**
+	 * Public constructor.
+	 * @param className the fully qualified name of the injector class
+	 * @param targetClass the fully qualified name of the class to transform
+	 * @param methodName the name of the method to transform
+	 * @param methodDesc the descriptor of the method to transform
+	 */
+	public InjectorInfo(String className, String targetClass, String methodName, String methodDesc) {
+		this(className, targetClass, methodName, methodDesc, false);
+	}
+
+	/**
+	 * Public constructor.
+	 * @param className the fully qualified name of the injector class
+	 * @param targetClass the fully qualified name of the class to transform
+	 * @param methodName the name of the method to transform
+	 * @param methodDesc the descriptor of the method to transform
+	 * @param targetSubclasses whether the subclasses of the target are transformed as well
+	 */
+	public InjectorInfo(String className, String targetClass, String methodName, String methodDesc, boolean targetSubclasses) {
+		this.className = className;
+		this.targetClass = targetClass;
+		this.methodName = methodName;
+		this.methodDesc = methodDesc;
+		this.targetSubclasses = targetSubclasses;
+	}
+
+	/**
+	 * Reads the targets of an injector from its class file.
+	 * @param reader a {@link ClassReader} for the injector class
+	 * @return the {@link InjectorInfo}, with null in place of the targets which are not constants;
+	 *         the target class is also null if it's not known whether subclasses are targeted,
+	 *         as when the injector extends a class other than {@link Object}, or implements
+	 *         other interfaces, without overriding {@link ftbsc.lll.IInjector#targetSubclasses()}
+	 */
+	public static InjectorInfo read(ClassReader reader) {
+		Object[] constants = new Object[4];
+		boolean[] overridden = new boolean[1], inherits = new boolean[1];
+		reader.accept(new ClassVisitor(Opcodes.ASM9) {
+			@Override
+			public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+				//anything but IInjector itself may provide another targetSubclasses()
+				inherits[0] = superName != null && !superName.equals("java/lang/Object");
+				for(String itf : interfaces)
+					inherits[0] |= !itf.equals(Type.getInternalName(IInjector.class));
+			}
+
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+				if((access & (Opcodes.ACC_STATIC | Opcodes.ACC_ABSTRACT)) != 0)
+					return null;
+				if(desc.equals("()Ljava/lang/String;")) {
+					switch(name) {
+						case "targetClass": return new ConstantVisitor(constants, 0);
+						case "methodName": return new ConstantVisitor(constants, 1);
+						case "methodDesc": return new ConstantVisitor(constants, 2);
+					}
+				} else if(desc.equals("()Z") && name.equals("targetSubclasses")) {
+					overridden[0] = true;
+					return new ConstantVisitor(constants, 3);
+				}
+				return null;
+			}
+		}, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+		boolean subclasses = Integer.valueOf(1).equals(constants[3]);
+		boolean known = overridden[0] ? constants[3] != null : !inherits[0];
+		String target = known ? (String) constants[0] : null;
+		return new InjectorInfo(reader.getClassName().replace('/', '.'), target,
+			(String) constants[1], (String) constants[2], subclasses);
+	}
+
+	/**
+	 * Checks whether a method does nothing but return a constant string or boolean,
+	 * and stores it.
+	 */
+	private static class ConstantVisitor extends MethodVisitor {
+		/**
+		 * Where to store the constant.
+		 */
+		private final Object[] out;
+
+		/**
+		 * The index to store the constant at.
+		 */
+		private final int index;
+
+		/**
+		 * The constant loaded so far, if any.
+		 */
+		private Object constant;
+
+		/**
+		 * Whether the method did anything other than loading and returning a constant.
+		 */
+		private boolean complex;
+
+		/**
+		 * Private constructor.
+		 * @param out where to store the constant
+		 * @param index the index to store the constant at
+		 */
+		private ConstantVisitor(Object[] out, int index) {
+			super(Opcodes.ASM9);
+			this.out = out;
+			this.index = index;
+		}
+
+		/**
+		 * Records string constants.
+		 * @param value the constant
+		 */
+		@Override
+		public void visitLdcInsn(Object value) {
+			if(this.constant == null && value instanceof String) this.constant = (String) value;
+			else this.complex = true;
+		}
+
+		/**
+		 * Records boolean constants, and only allows returning the constant.
+		 * @param opcode the opcode of the instruction
+		 */
+		@Override
+		public void visitInsn(int opcode) {
+			switch(opcode) {
+				case Opcodes.ICONST_0:
+				case Opcodes.ICONST_1:
+					if(this.constant == null) this.constant = opcode - Opcodes.ICONST_0;
+					else this.complex = true;
+					break;
+				case Opcodes.ARETURN:
+					if(!(this.constant instanceof String)) this.complex = true;
+					break;
+				case Opcodes.IRETURN:
+					if(!(this.constant instanceof Integer)) this.complex = true;
+					break;
+				default:
+					this.complex = true;
+			}
+		}
+
+		@Override public void visitIntInsn(int opcode, int operand) { this.complex = true; }
+		@Override public void visitVarInsn(int opcode, int var) { this.complex = true; }
+		@Override public void visitTypeInsn(int opcode, String type) { this.complex = true; }
+		@Override public void visitFieldInsn(int opcode, String owner, String name, String desc) { this.complex = true; }
+		@Override public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) { this.complex = true; }
+		@Override public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) { this.complex = true; }
+		@Override public void visitJumpInsn(int opcode, Label label) { this.complex = true; }
+		@Override public void visitIincInsn(int var, int increment) { this.complex = true; }
+		@Override public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) { this.complex = true; }
+		@Override public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) { this.complex = true; }
+		@Override public void visitMultiANewArrayInsn(String desc, int dims) { this.complex = true; }
+
+		/**
+		 * Stores the constant, if the method was simple enough.
+		 */
+		@Override
+		public void visitEnd() {
+			if(!this.complex && this.constant != null)
+				this.out[this.index] = this.constant;
+		}
+	}
+}
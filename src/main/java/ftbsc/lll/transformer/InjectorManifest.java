@@ -0,0 +1,194 @@
+package ftbsc.lll.transformer;
+
+import ftbsc.lll.IInjector;
+import org.objectweb.asm.ClassReader;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Reads and writes the injector manifest: a compact binary index listing, for each
+ * injector, the class it targets, whether its subclasses are targeted as well and
+ * the name and descriptor of the method.
+ * It's meant to be generated at build time, through {@link #main(String[])} or
+ * directly by an annotation processor, and lets {@link InjectorRegistry} index
+ * the injectors without reading their class files.
+ */
+public class InjectorManifest {
+	/**
+	 * The location of the manifest within a jar.
+	 */
+	public static final String LOCATION = "META-INF/lillero/injectors.idx";
+
+	/**
+	 * Marks manifest files.
+	 */
+	private static final int MAGIC = 0x4C4C4C49;
+
+	/**
+	 * The version of the file format.
+	 */
+	private static final int FORMAT_VERSION = 2;
+
+	/**
+	 * Writes a manifest.
+	 * @param injectors the {@link InjectorInfo}s to write
+	 * @param out the {@link OutputStream} to write to, will not be closed
+	 * @throws IOException if writing fails
+	 */
+	public static void write(Collection<InjectorInfo> injectors, OutputStream out) throws IOException {
+		Map<String, Integer> table = new LinkedHashMap<>();
+		for(InjectorInfo info : injectors)
+			for(String s : new String[] { info.className, info.targetClass, info.methodName, info.methodDesc })
+				if(s != null) table.putIfAbsent(s, table.size());
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+		data.writeInt(MAGIC);
+		data.writeInt(FORMAT_VERSION);
+		data.writeInt(table.size());
+		for(String s : table.keySet()) {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			data.writeShort(bytes.length);
+			data.write(bytes);
+		}
+		data.writeInt(injectors.size());
+		for(InjectorInfo info : injectors) {
+			for(String s : new String[] { info.className, info.targetClass, info.methodName, info.methodDesc })
+				data.writeInt(s == null ? -1 : table.get(s));
+			data.writeBoolean(info.targetSubclasses);
+		}
+		data.flush();
+	}
+
+	/**
+	 * Reads a manifest.
+	 * @param buffer a {@link ByteBuffer} containing the manifest
+	 * @return the {@link InjectorInfo}s in the manifest
+	 * @throws IOException if the data is not in the right format
+	 */
+	public static List<InjectorInfo> read(ByteBuffer buffer) throws IOException {
+		try {
+			int version = buffer.getInt() == MAGIC ? buffer.getInt() : -1;
+			if(version != 1 && version != FORMAT_VERSION) //version 1 lacks the subclass flag
+				throw new IOException("Unsupported injector manifest format!");
+			String[] table = new String[buffer.getInt()];
+			for(int i = 0; i < table.length; i++) {
+				byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+				buffer.get(bytes);
+				table[i] = new String(bytes, StandardCharsets.UTF_8);
+			}
+			int count = buffer.getInt();
+			List<InjectorInfo> res = new ArrayList<>(count);
+			for(int i = 0; i < count; i++) {
+				String className = table[buffer.getInt()];
+				int target = buffer.getInt(), name = buffer.getInt(), desc = buffer.getInt();
+				boolean subclasses = version != 1 && buffer.get() != 0;
+				res.add(new InjectorInfo(className,
+					target == -1 ? null : table[target],
+					name == -1 ? null : table[name],
+					desc == -1 ? null : table[desc],
+					subclasses));
+			}
+			return res;
+		} catch(RuntimeException e) { //buffer underflow and out of bounds indices
+			throw new IOException("Malformed injector manifest!", e);
+		}
+	}
+
+	/**
+	 * Reads all manifests visible to a {@link ClassLoader}. Manifests which are plain
+	 * files are memory-mapped, the others are read into memory.
+	 * @param loader the {@link ClassLoader} to look for manifests with
+	 * @return the {@link InjectorInfo}s, by injector class name
+	 * @throws IOException if reading fails
+	 */
+	public static Map<String, InjectorInfo> readAll(ClassLoader loader) throws IOException {
+		Map<String, InjectorInfo> res = new HashMap<>();
+		Enumeration<URL> manifests = loader.getResources(LOCATION);
+		while(manifests.hasMoreElements()) {
+			for(InjectorInfo info : read(open(manifests.nextElement())))
+				res.putIfAbsent(info.className, info);
+		}
+		return res;
+	}
+
+	/**
+	 * Opens a manifest, memory-mapping it if possible.
+	 * @param url the {@link URL} of the manifest
+	 * @return a {@link ByteBuffer} with its contents
+	 * @throws IOException if reading fails
+	 */
+	private static ByteBuffer open(URL url) throws IOException {
+		if(url.getProtocol().equals("file")) {
+			try(FileChannel channel = FileChannel.open(Paths.get(url.toURI()), StandardOpenOption.READ)) {
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			} catch(URISyntaxException ignored) {} //fall back to reading it
+		}
+		try(InputStream in = url.openStream()) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			for(int read; (read = in.read(buffer)) != -1;)
+				out.write(buffer, 0, read);
+			return ByteBuffer.wrap(out.toByteArray());
+		}
+	}
+
+	/**
+	 * Generates the manifest for a build. Injectors are looked up through their
+	 * service declaration, and their class files are read to find their targets.
+	 * Usage: {@code InjectorManifest <output dir> <input dir>...}, where the input
+	 * directories contain the compiled classes and resources (including the
+	 * service declaration) and the manifest is written to
+	 * {@code <output dir>/META-INF/lillero/injectors.idx}.
+	 * @param args the command line arguments
+	 * @throws IOException if reading or writing fails
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2) {
+			System.err.println("Usage: InjectorManifest <output dir> <input dir>...");
+			System.exit(1);
+		}
+		List<Path> inputs = new ArrayList<>();
+		for(int i = 1; i < args.length; i++)
+			inputs.add(Paths.get(args[i]));
+		Set<String> names = new LinkedHashSet<>();
+		for(Path input : inputs) {
+			Path services = input.resolve("META-INF/services/" + IInjector.class.getName());
+			if(!Files.isRegularFile(services)) continue;
+			try(BufferedReader in = Files.newBufferedReader(services, StandardCharsets.UTF_8)) {
+				InjectorRegistry.readServices(in, names);
+			}
+		}
+
+		List<InjectorInfo> injectors = new ArrayList<>();
+		for(String name : names) {
+			Path classFile = null;
+			for(Path input : inputs) {
+				Path candidate = input.resolve(name.replace('.', '/') + ".class");
+				if(Files.isRegularFile(candidate)) {
+					classFile = candidate;
+					break;
+				}
+			}
+			if(classFile == null) {
+				System.err.printf("Could not find class file for %s, skipping.%n", name);
+				continue;
+			}
+			InjectorInfo info = InjectorInfo.read(new ClassReader(Files.readAllBytes(classFile)));
+			if(info.targetClass == null)
+				System.err.printf("The target of %s is not a constant, it will be instantiated at startup.%n", name);
+			injectors.add(info);
+		}
+
+		Path output = Paths.get(args[0]).resolve(LOCATION);
+		Files.createDirectories(output.getParent());
+		try(OutputStream out = Files.newOutputStream(output)) {
+			write(injectors, out);
+		}
+	}
+}
@@ -0,0 +1,423 @@
+package ftbsc.lll.transformer;
+
+import ftbsc.lll.IInjector;
+import ftbsc.lll.exceptions.InjectionException;
+import ftbsc.lll.hierarchy.IClassHierarchy;
+import org.objectweb.asm.ClassReader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of {@link IInjector}s, indexed by the class they target.
+ * Injectors declared as services are only instantiated once their target class is
+ * requested, as long as their target can be read from their class file (see
+ * {@link InjectorInfo}).
+ * The order in which injectors should be applied to each class is computed
+ * once, the first time it's requested: injectors are sorted by
+ * {@link IInjector#priority()} while respecting their {@link IInjector#before()}
+ * and {@link IInjector#after()} constraints, so that they can all be applied
+ * in one go.
+ * Injectors which also target subclasses are matched against the supertypes of
+ * each requested class, as provided by an {@link IClassHierarchy}: with a
+ * {@link ftbsc.lll.hierarchy.ClassHierarchy}, which caches them, that's a
+ * constant-time check for each of them.
+ */
+public class InjectorRegistry {
+	/**
+	 * The location of the service declarations.
+	 */
+	private static final String SERVICES = "META-INF/services/" + IInjector.class.getName();
+
+	/**
+	 * The injectors for each class, in registration order.
+	 */
+	private final Map<String, List<Entry>> injectors = new ConcurrentHashMap<>();
+
+	/**
+	 * The injectors for each class, in the order they should be applied in.
+	 */
+	private final Map<String, List<IInjector>> ordered = new ConcurrentHashMap<>();
+
+	/**
+	 * The injectors which also target subclasses, by the internal name of the class they target.
+	 */
+	private final Map<String, List<Entry>> hierarchical = new ConcurrentHashMap<>();
+
+	/**
+	 * The {@link IClassHierarchy} used to find the supertypes of a class, may be null.
+	 */
+	private final IClassHierarchy hierarchy;
+
+	/**
+	 * Constructs a registry which ignores subclasses: injectors are only applied
+	 * to the class they name.
+	 */
+	public InjectorRegistry() {
+		this(null);
+	}
+
+	/**
+	 * Public constructor.
+	 * @param hierarchy the {@link IClassHierarchy} to find the supertypes of classes with,
+	 *                  may be null to ignore subclasses
+	 */
+	public InjectorRegistry(IClassHierarchy hierarchy) {
+		this.hierarchy = hierarchy;
+	}
+
+	/**
+	 * Creates a registry containing all the injectors declared as services.
+	 * Service declarations are read directly, so that injectors whose target can
+	 * be determined are not instantiated until needed. Targets are looked up in the
+	 * {@link InjectorManifest}s first, and in the injectors' class files otherwise.
+	 * @param loader the {@link ClassLoader} to look for services with
+	 * @return the built {@link InjectorRegistry}
+	 * @throws InjectionException if the service declarations or the manifests cannot be read
+	 */
+	public static InjectorRegistry fromServices(ClassLoader loader) {
+		return fromServices(loader, null);
+	}
+
+	/**
+	 * Creates a registry containing all the injectors declared as services, which
+	 * also applies injectors to the subclasses of their targets when they ask for it.
+	 * @param loader the {@link ClassLoader} to look for services with
+	 * @param hierarchy the {@link IClassHierarchy} to find the supertypes of classes with,
+	 *                  may be null to ignore subclasses
+	 * @return the built {@link InjectorRegistry}
+	 * @throws InjectionException if the service declarations or the manifests cannot be read
+	 * @see #fromServices(ClassLoader)
+	 */
+	public static InjectorRegistry fromServices(ClassLoader loader, IClassHierarchy hierarchy) {
+		Map<String, InjectorInfo> manifest;
+		try {
+			manifest = InjectorManifest.readAll(loader);
+		} catch(IOException e) {
+			throw new InjectionException("Failed to read injector manifests!", e);
+		}
+		InjectorRegistry registry = new InjectorRegistry(hierarchy);
+		for(String className : readServices(loader)) {
+			InjectorInfo info = manifest.get(className);
+			if(info != null) registry.register(info, loader);
+			else registry.register(className, loader);
+		}
+		return registry;
+	}
+
+	/**
+	 * Reads the names of all the injectors declared as services.
+	 * @param loader the {@link ClassLoader} to look for services with
+	 * @return the fully qualified names of the injectors, without duplicates
+	 * @throws InjectionException if the service declarations cannot be read
+	 */
+	public static Set<String> readServices(ClassLoader loader) {
+		Set<String> names = new LinkedHashSet<>();
+		try {
+			Enumeration<URL> files = loader.getResources(SERVICES);
+			while(files.hasMoreElements()) {
+				try(BufferedReader in = new BufferedReader(new InputStreamReader(files.nextElement().openStream(), StandardCharsets.UTF_8))) {
+					readServices(in, names);
+				}
+			}
+		} catch(IOException e) {
+			throw new InjectionException("Failed to read service declarations!", e);
+		}
+		return names;
+	}
+
+	/**
+	 * Reads the names of the injectors in a service declaration.
+	 * @param in a {@link BufferedReader} for the declaration
+	 * @param names the set to add the fully qualified names to
+	 * @throws IOException if reading fails
+	 */
+	static void readServices(BufferedReader in, Set<String> names) throws IOException {
+		String line;
+		while((line = in.readLine()) != null) {
+			int comment = line.indexOf('#');
+			if(comment != -1) line = line.substring(0, comment);
+			line = line.trim();
+			if(!line.isEmpty()) names.add(line);
+		}
+	}
+
+	/**
+	 * Registers an injector.
+	 * @param injector the {@link IInjector} to register
+	 */
+	public void register(IInjector injector) {
+		this.register(injector.targetClass(), injector.targetSubclasses(), new Entry(injector));
+	}
+
+	/**
+	 * Registers an injector given the name of its class. It will be instantiated
+	 * once its target is requested, or right away if its target cannot be read
+	 * from its class file.
+	 * @param className the fully qualified name of the injector class
+	 * @param loader the {@link ClassLoader} the injector should be loaded from
+	 * @return the {@link InjectorInfo} of the injector, with its target
+	 * @throws InjectionException if the injector cannot be read or instantiated
+	 */
+	public InjectorInfo register(String className, ClassLoader loader) {
+		InjectorInfo info = new InjectorInfo(className, null, null, null);
+		try(InputStream in = loader.getResourceAsStream(className.replace('.', '/') + ".class")) {
+			if(in != null) info = InjectorInfo.read(new ClassReader(in));
+		} catch(IOException e) {
+			throw new InjectionException("Failed to read injector " + className + "!", e);
+		}
+		return this.register(info, loader);
+	}
+
+	/**
+	 * Registers an injector given its {@link InjectorInfo}. It will be instantiated
+	 * once its target is requested, or right away if its target is unknown.
+	 * @param info the {@link InjectorInfo}
+	 * @param loader the {@link ClassLoader} the injector should be loaded from
+	 * @return the {@link InjectorInfo} of the injector, with its target
+	 * @throws InjectionException if the injector needs to be instantiated and that fails
+	 */
+	public InjectorInfo register(InjectorInfo info, ClassLoader loader) {
+		Entry entry = new Entry(info.className, loader);
+		if(info.targetClass == null) {
+			IInjector injector = entry.get();
+			info = new InjectorInfo(info.className, injector.targetClass(), injector.methodName(),
+				injector.methodDesc(), injector.targetSubclasses());
+		}
+		this.register(info.targetClass, info.targetSubclasses, entry);
+		return info;
+	}
+
+	/**
+	 * Adds an {@link Entry} to the registry.
+	 * @param target the fully qualified name of the class it targets
+	 * @param subclasses whether it targets the subclasses of the class as well
+	 * @param entry the {@link Entry}
+	 */
+	private void register(String target, boolean subclasses, Entry entry) {
+		while(true) { //the list may be dropped by unregister() in the meantime
+			List<Entry> entries = this.injectors.computeIfAbsent(target, k -> Collections.synchronizedList(new ArrayList<>()));
+			synchronized(entries) {
+				if(this.injectors.get(target) != entries) continue;
+				entries.add(entry);
+				break;
+			}
+		}
+		if(subclasses) {
+			this.hierarchical.computeIfAbsent(target.replace('.', '/'), k -> Collections.synchronizedList(new ArrayList<>())).add(entry);
+			this.ordered.clear();
+		} else this.ordered.remove(target);
+	}
+
+	/**
+	 * Removes the injectors of a class, whether they were instantiated or not.
+	 * Useful to replace an injector with a newer version of it.
+	 * @param className the fully qualified name of the injector class
+	 * @return an {@link InjectorInfo} for each removed injector, telling what it targeted
+	 */
+	public List<InjectorInfo> unregister(String className) {
+		List<InjectorInfo> res = new ArrayList<>();
+		for(Map.Entry<String, List<Entry>> target : this.injectors.entrySet()) {
+			List<Entry> entries = target.getValue();
+			synchronized(entries) {
+				for(Iterator<Entry> iter = entries.iterator(); iter.hasNext();) {
+					Entry entry = iter.next();
+					if(!entry.className.equals(className)) continue;
+					iter.remove();
+					boolean subclasses = false;
+					List<Entry> inherited = this.hierarchical.get(target.getKey().replace('.', '/'));
+					if(inherited != null) subclasses = inherited.remove(entry);
+					res.add(new InjectorInfo(className, target.getKey(), null, null, subclasses));
+				}
+				if(entries.isEmpty()) this.injectors.remove(target.getKey(), entries);
+			}
+		}
+		if(!res.isEmpty()) this.ordered.clear();
+		return res;
+	}
+
+	/**
+	 * Classes which only inherit their injectors from a supertype are not included:
+	 * when subclasses are targeted, check {@link #getInjectors(String)} instead.
+	 * @return the fully qualified names of all the classes targeted by an injector
+	 */
+	public Set<String> getTargets() {
+		return Collections.unmodifiableSet(this.injectors.keySet());
+	}
+
+	/**
+	 * @return the internal names of the classes targeted by an injector which also
+	 *         targets their subclasses
+	 */
+	public Set<String> getHierarchicalTargets() {
+		Set<String> res = new HashSet<>();
+		for(Map.Entry<String, List<Entry>> entry : this.hierarchical.entrySet())
+			if(!entry.getValue().isEmpty()) res.add(entry.getKey());
+		return res;
+	}
+
+	/**
+	 * Gets the injectors to apply on a class, in the order they should be applied in.
+	 * This includes those inherited from its supertypes, if the registry has an
+	 * {@link IClassHierarchy} which knows about the class.
+	 * Injectors which were not instantiated yet are instantiated here.
+	 * @param targetClass the fully qualified name of the class
+	 * @return the ordered {@link IInjector}s, possibly empty
+	 * @throws InjectionException if the ordering constraints are circular, or
+	 *                            an injector could not be instantiated
+	 */
+	public List<IInjector> getInjectors(String targetClass) {
+		List<IInjector> res = this.ordered.get(targetClass);
+		if(res == null) {
+			List<IInjector> instances = new ArrayList<>();
+			collect(this.injectors.get(targetClass), instances);
+			if(this.hierarchy != null && !this.hierarchical.isEmpty()) {
+				String internalName = targetClass.replace('.', '/');
+				Set<String> ancestors = this.hierarchy.getAncestors(internalName);
+				for(Map.Entry<String, List<Entry>> inherited : this.hierarchical.entrySet())
+					if(!inherited.getKey().equals(internalName) && ancestors.contains(inherited.getKey()))
+						collect(inherited.getValue(), instances);
+			}
+			if(instances.isEmpty()) return Collections.emptyList();
+			res = Collections.unmodifiableList(sort(targetClass, instances));
+			this.ordered.put(targetClass, res);
+		}
+		return res;
+	}
+
+	/**
+	 * Instantiates the injectors in a list of {@link Entry entries}.
+	 * @param entries the {@link Entry entries}, may be null
+	 * @param out the list to add the {@link IInjector}s to
+	 * @throws InjectionException if an injector could not be instantiated
+	 */
+	private static void collect(List<Entry> entries, List<IInjector> out) {
+		if(entries == null) return;
+		synchronized(entries) {
+			for(Entry entry : entries)
+				out.add(entry.get());
+		}
+	}
+
+	/**
+	 * Sorts the injectors targeting a class: a topological sort on the ordering
+	 * constraints, which picks the injector with the highest priority whenever
+	 * it may choose.
+	 * @param targetClass the fully qualified name of the class
+	 * @param group the {@link IInjector}s to sort, in registration order
+	 * @return the sorted list
+	 * @throws InjectionException if the ordering constraints are circular
+	 */
+	private static List<IInjector> sort(String targetClass, List<IInjector> group) {
+		Map<String, Integer> byName = new HashMap<>();
+		for(int i = 0; i < group.size(); i++)
+			byName.put(group.get(i).name(), i);
+		List<Set<Integer>> successors = new ArrayList<>();
+		int[] incoming = new int[group.size()];
+		for(int i = 0; i < group.size(); i++)
+			successors.add(new HashSet<>());
+		for(int i = 0; i < group.size(); i++) {
+			for(String name : group.get(i).before()) {
+				Integer j = byName.get(name);
+				if(j != null && successors.get(i).add(j)) incoming[j]++;
+			}
+			for(String name : group.get(i).after()) {
+				Integer j = byName.get(name);
+				if(j != null && successors.get(j).add(i)) incoming[i]++;
+			}
+		}
+
+		PriorityQueue<Integer> ready = new PriorityQueue<>(
+			Comparator.<Integer>comparingInt(i -> -group.get(i).priority()).thenComparingInt(i -> i));
+		for(int i = 0; i < group.size(); i++)
+			if(incoming[i] == 0) ready.add(i);
+		List<IInjector> res = new ArrayList<>(group.size());
+		while(!ready.isEmpty()) {
+			int cur = ready.poll();
+			res.add(group.get(cur));
+			for(int next : successors.get(cur))
+				if(--incoming[next] == 0) ready.add(next);
+		}
+
+		if(res.size() != group.size()) {
+			StringJoiner cycle = new StringJoiner(", ");
+			for(int i = 0; i < group.size(); i++)
+				if(incoming[i] != 0) cycle.add(group.get(i).name());
+			throw new InjectionException(String.format("Could not order %s on %s: their constraints are circular!",
+				cycle, targetClass));
+		}
+		return res;
+	}
+
+	/**
+	 * Holds an injector, which may not have been instantiated yet.
+	 */
+	private static class Entry {
+		/**
+		 * The fully qualified name of the injector class.
+		 */
+		private final String className;
+
+		/**
+		 * The {@link ClassLoader} to load the injector from.
+		 */
+		private final ClassLoader loader;
+
+		/**
+		 * The injector, once instantiated.
+		 */
+		private volatile IInjector instance;
+
+		/**
+		 * Constructs an entry for an injector which was already instantiated.
+		 * @param instance the {@link IInjector}
+		 */
+		private Entry(IInjector instance) {
+			this.className = instance.getClass().getName();
+			this.loader = null;
+			this.instance = instance;
+		}
+
+		/**
+		 * Constructs an entry for an injector to be instantiated later.
+		 * @param className the fully qualified name of the injector class
+		 * @param loader the {@link ClassLoader} to load it from
+		 */
+		private Entry(String className, ClassLoader loader) {
+			this.className = className;
+			this.loader = loader;
+		}
+
+		/**
+		 * Gets the injector, instantiating it if needed.
+		 * @return the {@link IInjector}
+		 * @throws InjectionException if the injector could not be instantiated
+		 */
+		private IInjector get() {
+			IInjector res = this.instance;
+			if(res == null) {
+				synchronized(this) {
+					res = this.instance;
+					if(res == null) {
+						try {
+							res = Class.forName(this.className, true, this.loader)
+								.asSubclass(IInjector.class)
+								.getDeclaredConstructor()
+								.newInstance();
+						} catch(ReflectiveOperationException | ClassCastException e) {
+							throw new InjectionException("Failed to instantiate injector " + this.className + "!", e);
+						}
+						this.instance = res;
+					}
+				}
+			}
+			return res;
+		}
+	}
+}
@@ -0,0 +1,273 @@
+package ftbsc.lll.transformer;
+
+import ftbsc.lll.IInjector;
+import ftbsc.lll.exceptions.InjectionException;
+import ftbsc.lll.exceptions.VerificationException;
+import ftbsc.lll.hierarchy.ClassHierarchy;
+import ftbsc.lll.utils.analysis.IndexedClassNode;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Applies the {@link IInjector}s declared as services to a jar ahead of time, writing
+ * a patched copy of it, so that no transformation is needed when it's loaded.
+ * Classes are patched in parallel, so injectors must be safe to apply to several
+ * classes at once. The input is read through a memory mapping, and the entries
+ * which are not patched are copied as they are stored, without being inflated.
+ * Modification times are kept, so patching the same jar twice gives the same result.
+ * In multi-release jars, every version of a class is patched.
+ * If any injector fails, nothing is written.
+ * Optionally, the modified methods are verified with a {@link MethodVerifier}, and
+ * those failing verification count as failures of the injectors which modified them,
+ * and they may be cleaned up with a {@link PeepholeOptimizer}.
+ */
+public class JarPatcher {
+	/**
+	 * The directory holding the classes of multi-release jars meant for later versions.
+	 */
+	private static final String VERSIONS = "META-INF/versions/";
+
+	/**
+	 * The {@link ClassTransformer} applying the injectors.
+	 */
+	private final ClassTransformer transformer;
+
+	/**
+	 * The {@link InjectorRegistry} holding the injectors.
+	 */
+	private final InjectorRegistry registry;
+
+	/**
+	 * The {@link MethodVerifier} checking the modified methods, null if they are not checked.
+	 */
+	private final MethodVerifier verifier;
+
+	/**
+	 * The pending verifications.
+	 */
+	private final Queue<CompletableFuture<List<VerificationException>>> verifications = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * How many classes each injector modified, by name.
+	 */
+	private final ConcurrentMap<String, LongAdder> applied = new ConcurrentHashMap<>();
+
+	/**
+	 * The failures of each injector, by name, or by class when the injector is unknown.
+	 */
+	private final ConcurrentMap<String, Queue<String>> failures = new ConcurrentHashMap<>();
+
+	/**
+	 * Public constructor.
+	 * @param transformer the {@link ClassTransformer} applying the injectors
+	 * @param registry the {@link InjectorRegistry} holding the injectors
+	 */
+	public JarPatcher(ClassTransformer transformer, InjectorRegistry registry) {
+		this(transformer, registry, null);
+	}
+
+	/**
+	 * Public constructor.
+	 * @param transformer the {@link ClassTransformer} applying the injectors
+	 * @param registry the {@link InjectorRegistry} holding the injectors
+	 * @param verifier the {@link MethodVerifier} to check the modified methods with,
+	 *                 may be null
+	 */
+	public JarPatcher(ClassTransformer transformer, InjectorRegistry registry, MethodVerifier verifier) {
+		this.transformer = transformer;
+		this.registry = registry;
+		this.verifier = verifier;
+	}
+
+	/**
+	 * Runs the patcher.
+	 * @param args the options, then the input jar, the output jar, and the jars and
+	 *             directories containing the injectors; the options are {@code --optimize}
+	 *             and {@code --verify}, or {@code --verify=<cache file>} to keep the
+	 *             verification cache between runs
+	 * @throws IOException if the jars could not be read or written
+	 */
+	public static void main(String[] args) throws IOException {
+		int first = 0;
+		boolean verify = false;
+		Path cache = null;
+		PeepholeOptimizer optimizer = null;
+		for(; first < args.length && args[first].startsWith("--"); first++) {
+			if(args[first].equals("--optimize")) {
+				optimizer = new PeepholeOptimizer();
+			} else if(args[first].startsWith("--verify")) {
+				verify = true;
+				if(args[first].startsWith("--verify="))
+					cache = Paths.get(args[first].substring(9));
+			} else break;
+		}
+		if(args.length - first < 2 || args[first].startsWith("--")) {
+			System.err.println("Usage: JarPatcher [--optimize] [--verify[=<cache file>]] <input jar> <output jar> [injector classpath...]");
+			System.exit(1);
+		}
+		List<URL> urls = new ArrayList<>();
+		urls.add(Paths.get(args[first]).toUri().toURL());
+		for(int i = first + 2; i < args.length; i++)
+			for(String entry : args[i].split(File.pathSeparator))
+				urls.add(Paths.get(entry).toUri().toURL());
+		try(URLClassLoader loader = new URLClassLoader(urls.toArray(new URL[0]), JarPatcher.class.getClassLoader())) {
+			ClassHierarchy hierarchy = new ClassHierarchy(loader);
+			MethodVerifier verifier = null;
+			if(verify) {
+				verifier = new MethodVerifier(hierarchy);
+				if(cache != null) verifier.load(cache);
+			}
+			JarPatcher patcher = new JarPatcher(new ClassTransformer(hierarchy, optimizer),
+				InjectorRegistry.fromServices(loader, hierarchy), verifier);
+			long start = System.nanoTime();
+			boolean success = patcher.patch(Paths.get(args[first]), Paths.get(args[first + 1]));
+			if(cache != null) verifier.save(cache);
+			System.out.print(patcher.report());
+			if(optimizer != null) System.out.print(optimizer.report());
+			System.out.printf("%s in %d ms.%n", success ? "Done" : "Failed", (System.nanoTime() - start) / 1000000);
+			if(!success) System.exit(2);
+		}
+	}
+
+	/**
+	 * Patches a jar.
+	 * @param input the {@link Path} of the jar to patch
+	 * @param output the {@link Path} to write the patched jar to
+	 * @return whether all injectors succeeded: if not, nothing is written
+	 * @throws IOException if the jars could not be read or written
+	 */
+	public boolean patch(Path input, Path output) throws IOException {
+		try(MappedZip zip = new MappedZip(input)) {
+			List<MappedZip.Entry> entries = zip.getEntries();
+			byte[][] patched = new byte[entries.size()][];
+			IOException[] error = new IOException[1];
+			IntStream.range(0, entries.size()).parallel().forEach(i -> {
+				try {
+					patched[i] = this.patch(zip, entries.get(i));
+				} catch(IOException e) {
+					synchronized(error) {
+						error[0] = e;
+					}
+				}
+			});
+			if(error[0] != null) throw error[0];
+			for(CompletableFuture<List<VerificationException>> verification : this.verifications)
+				for(VerificationException e : verification.join())
+					for(String injector : e.getInjectors())
+						this.fail(injector, e);
+			this.verifications.clear();
+			if(!this.failures.isEmpty()) return false;
+
+			Path temp = Files.createTempFile(output.toAbsolutePath().getParent(), output.getFileName().toString(), ".tmp");
+			try {
+				try(OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16);
+				    ZipWriter writer = new ZipWriter(out)) {
+					for(int i = 0; i < entries.size(); i++) {
+						if(patched[i] != null) writer.write(entries.get(i), patched[i]);
+						else writer.writeRaw(entries.get(i), zip.getRaw(entries.get(i)));
+					}
+				}
+				Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Applies the injectors to an entry, if it's a class targeted by any, including
+	 * the versions of it under {@code META-INF/versions/} in multi-release jars.
+	 * @param zip the {@link MappedZip} containing the entry
+	 * @param entry the {@link MappedZip.Entry}
+	 * @return the patched class file, or null if the entry should be copied as it is
+	 * @throws IOException if the entry could not be read
+	 */
+	private byte[] patch(MappedZip zip, MappedZip.Entry entry) throws IOException {
+		String path = entry.name;
+		if(path.startsWith(VERSIONS)) { //multi-release classes are patched like the others
+			int slash = path.indexOf('/', VERSIONS.length());
+			path = slash == -1 ? "" : path.substring(slash + 1);
+		}
+		if(!path.endsWith(".class") || path.startsWith("META-INF/")) return null;
+		String className = path.substring(0, path.length() - 6).replace('/', '.');
+		List<IInjector> injectors;
+		try {
+			injectors = this.registry.getInjectors(className);
+		} catch(InjectionException e) {
+			this.fail(e.getInjector() != null ? e.getInjector() : className, e);
+			return null;
+		}
+		if(injectors.isEmpty()) return null;
+
+		ClassReader reader = new ClassReader(zip.read(entry));
+		ClassNode clazz = new IndexedClassNode();
+		reader.accept(clazz, 0);
+		try {
+			Map<MethodNode, List<String>> modified = this.transformer.trace(clazz, injectors);
+			if(modified.isEmpty()) return null; //a subclass overriding none of the targets
+			byte[] res = this.transformer.write(clazz, reader, modified.keySet());
+			if(this.verifier != null)
+				this.verifications.add(this.verifier.verify(clazz, modified));
+			Set<String> names = new HashSet<>();
+			for(List<String> responsible : modified.values())
+				names.addAll(responsible);
+			for(String name : names)
+				this.applied.computeIfAbsent(name, k -> new LongAdder()).increment();
+			return res;
+		} catch(InjectionException e) {
+			this.fail(e.getInjector() != null ? e.getInjector() : className, e);
+		} catch(RuntimeException e) {
+			this.fail(className, e);
+		}
+		return null;
+	}
+
+	/**
+	 * Records a failure.
+	 * @param culprit the name of the injector which failed, or of the class it failed on
+	 * @param e the exception
+	 */
+	private void fail(String culprit, Exception e) {
+		StringBuilder message = new StringBuilder(String.valueOf(e.getMessage()));
+		for(Throwable cause = e.getCause(); cause != null; cause = cause.getCause())
+			message.append(" Caused by: ").append(cause);
+		this.failures.computeIfAbsent(culprit, k -> new ConcurrentLinkedQueue<>()).add(message.toString());
+	}
+
+	/**
+	 * Describes the results so far: how many classes each injector modified, and
+	 * the failures of each injector.
+	 * @return the report, one line per injector and failure
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		for(Map.Entry<String, LongAdder> entry : new TreeMap<>(this.applied).entrySet())
+			sb.append(String.format("%s: applied to %d class(es)%n", entry.getKey(), entry.getValue().sum()));
+		for(Map.Entry<String, Queue<String>> entry : new TreeMap<>(this.failures).entrySet()) {
+			sb.append(String.format("%s: %d failure(s)%n", entry.getKey(), entry.getValue().size()));
+			for(String failure : entry.getValue())
+				sb.append("  ").append(failure).append(System.lineSeparator());
+		}
+		return sb.toString();
+	}
+}
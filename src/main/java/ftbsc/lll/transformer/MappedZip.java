@@ -0,0 +1,274 @@
+package ftbsc.lll.transformer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A zip file read through a memory mapping, whose entries may be handed out raw,
+ * still compressed, as well as inflated. Only what {@link JarPatcher} needs is
+ * supported: a single disk, no ZIP64 and no encryption.
+ * Reads are absolute, so entries may be read from several threads at once.
+ */
+final class MappedZip implements Closeable {
+	/**
+	 * The signature of the end of central directory record.
+	 */
+	private static final int END_SIGNATURE = 0x06054b50;
+
+	/**
+	 * The signature of a central directory header.
+	 */
+	private static final int CENTRAL_SIGNATURE = 0x02014b50;
+
+	/**
+	 * The signature of a local file header.
+	 */
+	private static final int LOCAL_SIGNATURE = 0x04034b50;
+
+	/**
+	 * The flag telling names are UTF-8.
+	 */
+	static final int UTF8 = 1 << 11;
+
+	/**
+	 * The charset of names without the UTF-8 flag.
+	 */
+	private static final Charset CP437 = Charset.forName("IBM437");
+
+	/**
+	 * The {@link FileChannel} of the file.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * The mapping of the whole file, in little-endian order.
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * The entries, in central directory order.
+	 */
+	private final List<Entry> entries;
+
+	/**
+	 * Opens a zip file and reads its central directory.
+	 * @param path the {@link Path} of the file
+	 * @throws IOException if the file cannot be read or is not a supported zip file
+	 */
+	MappedZip(Path path) throws IOException {
+		this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			if(this.channel.size() > Integer.MAX_VALUE)
+				throw new ZipException("Zip files larger than 2 GiB are not supported!");
+			MappedByteBuffer mapped = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.channel.size());
+			this.buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+			this.entries = Collections.unmodifiableList(this.readCentralDirectory());
+		} catch(IOException | RuntimeException e) {
+			this.channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the central directory.
+	 * @return the {@link Entry entries}
+	 * @throws ZipException if the file is not a supported zip file
+	 */
+	private List<Entry> readCentralDirectory() throws ZipException {
+		int end = -1;
+		for(int pos = this.buffer.limit() - 22; pos >= Math.max(0, this.buffer.limit() - 22 - 0xFFFF); pos--) {
+			if(this.buffer.getInt(pos) == END_SIGNATURE) {
+				end = pos;
+				break;
+			}
+		}
+		if(end == -1)
+			throw new ZipException("End of central directory not found!");
+		int count = Short.toUnsignedInt(this.buffer.getShort(end + 10));
+		long offset = Integer.toUnsignedLong(this.buffer.getInt(end + 16));
+		if(count == 0xFFFF || offset == 0xFFFFFFFFL)
+			throw new ZipException("ZIP64 files are not supported!");
+
+		List<Entry> res = new ArrayList<>(count);
+		int pos = (int) offset;
+		for(int i = 0; i < count; i++) {
+			if(this.buffer.getInt(pos) != CENTRAL_SIGNATURE)
+				throw new ZipException("Invalid central directory header!");
+			Entry entry = new Entry();
+			entry.versionMadeBy = Short.toUnsignedInt(this.buffer.getShort(pos + 4));
+			entry.flags = Short.toUnsignedInt(this.buffer.getShort(pos + 8));
+			entry.method = Short.toUnsignedInt(this.buffer.getShort(pos + 10));
+			entry.time = Short.toUnsignedInt(this.buffer.getShort(pos + 12));
+			entry.date = Short.toUnsignedInt(this.buffer.getShort(pos + 14));
+			entry.crc = Integer.toUnsignedLong(this.buffer.getInt(pos + 16));
+			entry.compressedSize = Integer.toUnsignedLong(this.buffer.getInt(pos + 20));
+			entry.size = Integer.toUnsignedLong(this.buffer.getInt(pos + 24));
+			int nameLength = Short.toUnsignedInt(this.buffer.getShort(pos + 28));
+			int extraLength = Short.toUnsignedInt(this.buffer.getShort(pos + 30));
+			int commentLength = Short.toUnsignedInt(this.buffer.getShort(pos + 32));
+			entry.externalAttributes = Integer.toUnsignedLong(this.buffer.getInt(pos + 38));
+			long local = Integer.toUnsignedLong(this.buffer.getInt(pos + 42));
+			if((entry.flags & 1) != 0)
+				throw new ZipException("Encrypted entries are not supported!");
+			if(entry.compressedSize == 0xFFFFFFFFL || entry.size == 0xFFFFFFFFL || local == 0xFFFFFFFFL)
+				throw new ZipException("ZIP64 entries are not supported!");
+			byte[] name = new byte[nameLength];
+			((ByteBuffer) this.buffer.duplicate().position(pos + 46)).get(name);
+			entry.rawName = name;
+			entry.name = new String(name, (entry.flags & UTF8) != 0 ? StandardCharsets.UTF_8 : CP437);
+			if(this.buffer.getInt((int) local) != LOCAL_SIGNATURE)
+				throw new ZipException("Invalid local file header for " + entry.name + "!");
+			entry.dataOffset = (int) local + 30
+				+ Short.toUnsignedInt(this.buffer.getShort((int) local + 26))
+				+ Short.toUnsignedInt(this.buffer.getShort((int) local + 28));
+			res.add(entry);
+			pos += 46 + nameLength + extraLength + commentLength;
+		}
+		return res;
+	}
+
+	/**
+	 * @return the entries, in central directory order
+	 */
+	List<Entry> getEntries() {
+		return this.entries;
+	}
+
+	/**
+	 * Gets the data of an entry as it's stored, without inflating it.
+	 * @param entry the {@link Entry}
+	 * @return a {@link ByteBuffer} over the stored data
+	 */
+	ByteBuffer getRaw(Entry entry) {
+		ByteBuffer res = this.buffer.duplicate();
+		res.limit(entry.dataOffset + (int) entry.compressedSize).position(entry.dataOffset);
+		return res.slice();
+	}
+
+	/**
+	 * Reads the data of an entry, inflating it if needed, and checks its CRC.
+	 * @param entry the {@link Entry}
+	 * @return the uncompressed data
+	 * @throws IOException if the data is corrupt or the compression method unsupported
+	 */
+	byte[] read(Entry entry) throws IOException {
+		ByteBuffer raw = this.getRaw(entry);
+		byte[] res = new byte[(int) entry.size];
+		if(entry.method == 0) {
+			raw.get(res);
+		} else if(entry.method == 8) {
+			byte[] input = new byte[raw.remaining()];
+			raw.get(input);
+			Inflater inflater = new Inflater(true);
+			try {
+				inflater.setInput(input);
+				int read = 0;
+				while(read < res.length && !inflater.finished()) {
+					int n = inflater.inflate(res, read, res.length - read);
+					if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+					read += n;
+				}
+				if(read != res.length)
+					throw new ZipException("Truncated entry " + entry.name + "!");
+			} catch(DataFormatException e) {
+				throw new ZipException("Corrupt entry " + entry.name + ": " + e.getMessage());
+			} finally {
+				inflater.end();
+			}
+		} else throw new ZipException("Unsupported compression method " + entry.method + " for " + entry.name + "!");
+		CRC32 crc = new CRC32();
+		crc.update(res);
+		if(crc.getValue() != entry.crc)
+			throw new ZipException("CRC mismatch for " + entry.name + "!");
+		return res;
+	}
+
+	/**
+	 * Closes the file. The mapping is released once it's garbage collected.
+	 * @throws IOException if closing fails
+	 */
+	@Override
+	public void close() throws IOException {
+		this.channel.close();
+	}
+
+	/**
+	 * An entry of the zip file, as described by the central directory.
+	 */
+	static final class Entry {
+		/**
+		 * The name of the entry.
+		 */
+		String name;
+
+		/**
+		 * The name of the entry, as it's stored.
+		 */
+		byte[] rawName;
+
+		/**
+		 * The version of the program which made the entry, and its system.
+		 */
+		int versionMadeBy;
+
+		/**
+		 * The general purpose flags.
+		 */
+		int flags;
+
+		/**
+		 * The compression method: 0 for stored, 8 for deflated.
+		 */
+		int method;
+
+		/**
+		 * The last modification time, in MS-DOS format.
+		 */
+		int time;
+
+		/**
+		 * The last modification date, in MS-DOS format.
+		 */
+		int date;
+
+		/**
+		 * The CRC-32 of the uncompressed data.
+		 */
+		long crc;
+
+		/**
+		 * The size of the stored data.
+		 */
+		long compressedSize;
+
+		/**
+		 * The size of the uncompressed data.
+		 */
+		long size;
+
+		/**
+		 * The external file attributes.
+		 */
+		long externalAttributes;
+
+		/**
+		 * Where the stored data starts in the file.
+		 */
+		int dataOffset;
+	}
+}
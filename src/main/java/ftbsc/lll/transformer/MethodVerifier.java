@@ -0,0 +1,267 @@
+package ftbsc.lll.transformer;
+
+import ftbsc.lll.exceptions.VerificationException;
+import ftbsc.lll.hierarchy.ClassInfo;
+import ftbsc.lll.hierarchy.IClassHierarchy;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.SimpleVerifier;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/**
+ * Verifies the methods modified by injectors, rather than whole classes: the
+ * untouched ones were already verified along with the original class.
+ * Methods are checked in parallel on an {@link Executor} with ASM's {@link SimpleVerifier},
+ * resolving types through an {@link IClassHierarchy} instead of loading them, and
+ * failures are blamed on the injectors which modified the method.
+ * The hashes of the methods which passed are cached, and may be saved and loaded
+ * again, so that a method whose code did not change is not verified on the next run.
+ * The cache is keyed by the code of the method and the header of its class only:
+ * it should be discarded when the classes it refers to change.
+ */
+public class MethodVerifier {
+	/**
+	 * The {@link IClassHierarchy} types are resolved through.
+	 */
+	private final IClassHierarchy hierarchy;
+
+	/**
+	 * The {@link Executor} methods are verified on.
+	 */
+	private final Executor executor;
+
+	/**
+	 * The hashes of the methods which passed verification.
+	 */
+	private final Set<String> verified = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Public constructor. Methods are verified on the common {@link ForkJoinPool}.
+	 * @param hierarchy the {@link IClassHierarchy} to resolve types through
+	 */
+	public MethodVerifier(IClassHierarchy hierarchy) {
+		this(hierarchy, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Public constructor.
+	 * @param hierarchy the {@link IClassHierarchy} to resolve types through
+	 * @param executor the {@link Executor} to verify methods on
+	 */
+	public MethodVerifier(IClassHierarchy hierarchy, Executor executor) {
+		this.hierarchy = hierarchy;
+		this.executor = executor;
+	}
+
+	/**
+	 * Verifies the modified methods of a class, as given by
+	 * {@link ClassTransformer#trace(ClassNode, List)}. Methods are looked up by name
+	 * and descriptor, so the class may have been written in the meantime, but it
+	 * should not change until verification is over.
+	 * @param clazz the {@link ClassNode} containing the methods
+	 * @param modified the names of the injectors responsible for each modified {@link MethodNode}
+	 * @return a {@link CompletableFuture} completing with the failures, empty if all methods passed
+	 */
+	public CompletableFuture<List<VerificationException>> verify(ClassNode clazz, Map<MethodNode, List<String>> modified) {
+		Map<String, MethodNode> current = new HashMap<>();
+		for(MethodNode method : clazz.methods)
+			current.put(method.name + method.desc, method);
+		List<CompletableFuture<VerificationException>> tasks = new ArrayList<>(modified.size());
+		for(Map.Entry<MethodNode, List<String>> entry : modified.entrySet()) {
+			MethodNode method = current.get(entry.getKey().name + entry.getKey().desc);
+			if(method == null) continue; //removed
+			tasks.add(CompletableFuture.supplyAsync(() -> this.verify(clazz, method, entry.getValue()), this.executor));
+		}
+		return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0]))
+			.thenApply(v -> tasks.stream()
+				.map(CompletableFuture::join)
+				.filter(Objects::nonNull)
+				.collect(Collectors.toList()));
+	}
+
+	/**
+	 * Verifies a single method, unless it already passed.
+	 * @param clazz the {@link ClassNode} containing the method
+	 * @param method the {@link MethodNode} to verify
+	 * @param injectors the names of the injectors which modified it
+	 * @return the failure, or null if the method passed
+	 */
+	private VerificationException verify(ClassNode clazz, MethodNode method, List<String> injectors) {
+		if((method.access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) return null;
+		String hash = hash(clazz, method);
+		if(this.verified.contains(hash)) return null;
+		List<Type> interfaces = new ArrayList<>(clazz.interfaces.size());
+		for(String itf : clazz.interfaces)
+			interfaces.add(Type.getObjectType(itf));
+		Analyzer<BasicValue> analyzer = new Analyzer<>(new HierarchyVerifier(
+			Type.getObjectType(clazz.name),
+			clazz.superName == null ? null : Type.getObjectType(clazz.superName),
+			interfaces, (clazz.access & Opcodes.ACC_INTERFACE) != 0));
+		try {
+			analyzer.analyze(clazz.name, method);
+		} catch(AnalyzerException | RuntimeException e) {
+			return new VerificationException(String.format("Verification of %s::%s%s, modified by %s, failed!",
+				clazz.name, method.name, method.desc, String.join(", ", injectors)), e, injectors);
+		}
+		this.verified.add(hash);
+		return null;
+	}
+
+	/**
+	 * Hashes a method, along with the header of its class, by writing them alone
+	 * to a class file.
+	 * @param clazz the {@link ClassNode} containing the method
+	 * @param method the {@link MethodNode} to hash
+	 * @return the SHA-256 of the class file, in hexadecimal
+	 */
+	private static String hash(ClassNode clazz, MethodNode method) {
+		ClassWriter writer = new ClassWriter(0);
+		writer.visit(clazz.version, clazz.access, clazz.name, null, clazz.superName,
+			clazz.interfaces.toArray(new String[0]));
+		method.accept(writer);
+		writer.visitEnd();
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256").digest(writer.toByteArray());
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); //every JVM must provide SHA-256
+		}
+		StringBuilder sb = new StringBuilder(digest.length * 2);
+		for(byte b : digest)
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return sb.toString();
+	}
+
+	/**
+	 * @return how many methods are known to pass verification
+	 */
+	public int getCacheSize() {
+		return this.verified.size();
+	}
+
+	/**
+	 * Adds the hashes saved by {@link #save(Path)} to the cache. Nothing is done if
+	 * the file does not exist.
+	 * @param path the {@link Path} of the cache file
+	 * @throws IOException if the file could not be read
+	 */
+	public void load(Path path) throws IOException {
+		if(!Files.exists(path)) return;
+		for(String line : Files.readAllLines(path, StandardCharsets.UTF_8))
+			if(!line.isEmpty()) this.verified.add(line);
+	}
+
+	/**
+	 * Saves the cache, one hash per line.
+	 * @param path the {@link Path} of the cache file
+	 * @throws IOException if the file could not be written
+	 */
+	public void save(Path path) throws IOException {
+		Files.write(path, new TreeSet<>(this.verified), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * A {@link SimpleVerifier} resolving types through the {@link IClassHierarchy}.
+	 * As the JVM does, any reference is accepted where an interface is expected.
+	 */
+	private class HierarchyVerifier extends SimpleVerifier {
+		/**
+		 * Constructs a verifier for the methods of a class.
+		 * @param currentClass the {@link Type} of the class
+		 * @param currentSuperClass the {@link Type} of its superclass, may be null
+		 * @param currentClassInterfaces the {@link Type}s of the interfaces it implements
+		 * @param isInterface whether the class is an interface
+		 */
+		private HierarchyVerifier(Type currentClass, Type currentSuperClass, List<Type> currentClassInterfaces, boolean isInterface) {
+			super(Opcodes.ASM9, currentClass, currentSuperClass, currentClassInterfaces, isInterface);
+		}
+
+		/**
+		 * Checks whether a value may be used where another type is expected.
+		 * @param value the value
+		 * @param expected the expected value
+		 * @return true if it may
+		 */
+		@Override
+		protected boolean isSubTypeOf(BasicValue value, BasicValue expected) {
+			Type type = value.getType(), expectedType = expected.getType();
+			if(expectedType != null && expectedType.getSort() == Type.OBJECT && type != null
+				&& (type.getSort() == Type.OBJECT && !type.getDescriptor().equals("Lnull;") || type.getSort() == Type.ARRAY))
+				return this.isAssignableFrom(expectedType, type) || this.isInterface(expectedType);
+			return super.isSubTypeOf(value, expected);
+		}
+
+		/**
+		 * Checks whether a reference type may be assigned another.
+		 * @param type1 the {@link Type} assigned to
+		 * @param type2 the {@link Type} of the value
+		 * @return true if it may
+		 */
+		@Override
+		protected boolean isAssignableFrom(Type type1, Type type2) {
+			if(type1.equals(type2)) return true;
+			if(type2.getDescriptor().equals("Lnull;")) return true;
+			if(type1.getSort() == Type.ARRAY) {
+				if(type2.getSort() != Type.ARRAY) return false;
+				Type element1 = Type.getType(type1.getDescriptor().substring(1));
+				Type element2 = Type.getType(type2.getDescriptor().substring(1));
+				return isReference(element1) && isReference(element2)
+					? this.isAssignableFrom(element1, element2)
+					: element1.equals(element2);
+			}
+			if(type2.getSort() == Type.ARRAY) {
+				String name = type1.getInternalName();
+				return name.equals("java/lang/Object") || name.equals("java/lang/Cloneable")
+					|| name.equals("java/io/Serializable");
+			}
+			return MethodVerifier.this.hierarchy.isAssignableFrom(type1.getInternalName(), type2.getInternalName());
+		}
+
+		/**
+		 * @param type a {@link Type}
+		 * @return whether it's an object or array type
+		 */
+		private boolean isReference(Type type) {
+			return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
+		}
+
+		/**
+		 * @param type the {@link Type} of a class
+		 * @return whether it's an interface
+		 */
+		@Override
+		protected boolean isInterface(Type type) {
+			return type.getSort() == Type.OBJECT
+				&& MethodVerifier.this.hierarchy.requireClassInfo(type.getInternalName()).isInterface();
+		}
+
+		/**
+		 * @param type the {@link Type} of a class
+		 * @return the {@link Type} of its superclass, null if it has none
+		 */
+		@Override
+		protected Type getSuperClass(Type type) {
+			if(type.getSort() != Type.OBJECT) return Type.getObjectType("java/lang/Object");
+			ClassInfo info = MethodVerifier.this.hierarchy.requireClassInfo(type.getInternalName());
+			return info.superName == null ? null : Type.getObjectType(info.superName);
+		}
+	}
+}
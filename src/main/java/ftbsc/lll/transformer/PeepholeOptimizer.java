@@ -0,0 +1,503 @@
+package ftbsc.lll.transformer;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Cleans up what injectors leave behind in the methods they modify: unreachable
+ * code, jumps to jumps or to the next instruction, values pushed only to be popped,
+ * variables loaded only to be stored back, single use variables, orphan labels and
+ * redundant line numbers.
+ * It only ever removes instructions or replaces them with shorter ones, and does
+ * not keep frames up to date: they must be computed again afterwards, as
+ * {@link ClassTransformer} does for modified methods.
+ * The size of the code of each method before and after is recorded, so that the
+ * bytes saved can be reported.
+ */
+public class PeepholeOptimizer implements Opcodes {
+	/**
+	 * The maximum number of passes on a single method.
+	 */
+	private static final int MAX_PASSES = 16;
+
+	/**
+	 * The {@link Result}s so far.
+	 */
+	private final Queue<Result> results = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Optimises a method, recording the result.
+	 * @param clazz the {@link ClassNode} containing the method
+	 * @param method the {@link MethodNode} to optimise
+	 * @return how many bytes of code were saved
+	 */
+	public int optimize(ClassNode clazz, MethodNode method) {
+		if(method.instructions.size() == 0) return 0;
+		int before = codeSize(clazz, method);
+		for(int i = 0; i < MAX_PASSES; i++) {
+			boolean changed = removeDeadCode(method);
+			changed |= simplifyJumps(method);
+			changed |= removePairs(method);
+			changed |= pruneLines(method);
+			changed |= pruneLabels(method);
+			if(!changed) break;
+		}
+		int after = codeSize(clazz, method);
+		this.results.add(new Result(clazz.name, method.name, method.desc, before, after));
+		return before - after;
+	}
+
+	/**
+	 * Removes the instructions which can't be reached, along with the exception
+	 * handlers which no longer cover any instruction. Labels are left to
+	 * {@link #pruneLabels(MethodNode)}.
+	 * @param method the {@link MethodNode}
+	 * @return whether anything was removed
+	 */
+	private static boolean removeDeadCode(MethodNode method) {
+		InsnList insns = method.instructions;
+		boolean[] reached = new boolean[insns.size()];
+		Deque<AbstractInsnNode> queue = new ArrayDeque<>();
+		queue.add(insns.getFirst());
+		boolean grown = true;
+		while(grown) {
+			while(!queue.isEmpty()) {
+				AbstractInsnNode node = queue.poll();
+				for(; node != null && !reached[insns.indexOf(node)]; node = node.getNext()) {
+					reached[insns.indexOf(node)] = true;
+					if(node instanceof JumpInsnNode) {
+						queue.add(((JumpInsnNode) node).label);
+						if(node.getOpcode() == GOTO) break;
+					} else if(node instanceof TableSwitchInsnNode) {
+						queue.add(((TableSwitchInsnNode) node).dflt);
+						queue.addAll(((TableSwitchInsnNode) node).labels);
+						break;
+					} else if(node instanceof LookupSwitchInsnNode) {
+						queue.add(((LookupSwitchInsnNode) node).dflt);
+						queue.addAll(((LookupSwitchInsnNode) node).labels);
+						break;
+					} else if(isExit(node.getOpcode()) || node.getOpcode() == RET) break;
+				}
+			}
+			grown = false;
+			for(TryCatchBlockNode block : method.tryCatchBlocks) {
+				if(reached[insns.indexOf(block.handler)]) continue;
+				for(int i = insns.indexOf(block.start); i < insns.indexOf(block.end); i++) {
+					if(reached[i]) {
+						queue.add(block.handler);
+						grown = true;
+						break;
+					}
+				}
+			}
+		}
+
+		boolean changed = false;
+		AbstractInsnNode[] nodes = insns.toArray();
+		for(int i = 0; i < nodes.length; i++) {
+			if(!reached[i] && !(nodes[i] instanceof LabelNode)) {
+				insns.remove(nodes[i]);
+				changed = true;
+			}
+		}
+		if(changed)
+			method.tryCatchBlocks.removeIf(block -> nextReal(block.start) == nextReal(block.end));
+		return changed;
+	}
+
+	/**
+	 * Threads jumps to jumps, turns jumps to returns into returns when both are
+	 * covered by the same exception handlers, and removes jumps to the next
+	 * instruction, popping their operands if they are conditional.
+	 * @param method the {@link MethodNode}
+	 * @return whether anything changed
+	 */
+	private static boolean simplifyJumps(MethodNode method) {
+		InsnList insns = method.instructions;
+		boolean changed = false;
+		for(AbstractInsnNode node : insns.toArray()) {
+			if(node instanceof JumpInsnNode && node.getOpcode() != JSR) {
+				JumpInsnNode jump = (JumpInsnNode) node;
+				LabelNode target = thread(jump.label);
+				if(target != jump.label) {
+					jump.label = target;
+					changed = true;
+				}
+				AbstractInsnNode destination = nextReal(target);
+				if(destination == null) continue;
+				if(destination == nextReal(jump.getNext())) {
+					if(jump.getOpcode() == GOTO) insns.remove(jump);
+					else insns.set(jump, new InsnNode(jump.getOpcode() >= IF_ICMPEQ && jump.getOpcode() <= IF_ACMPNE ? POP2 : POP));
+					changed = true;
+				} else if(jump.getOpcode() == GOTO && isExit(destination.getOpcode())
+					&& sameHandlers(method, jump, destination)) {
+					insns.set(jump, new InsnNode(destination.getOpcode()));
+					changed = true;
+				}
+			} else if(node instanceof TableSwitchInsnNode) {
+				TableSwitchInsnNode table = (TableSwitchInsnNode) node;
+				LabelNode dflt = thread(table.dflt);
+				changed |= threadAll(table.labels) || dflt != table.dflt;
+				table.dflt = dflt;
+			} else if(node instanceof LookupSwitchInsnNode) {
+				LookupSwitchInsnNode lookup = (LookupSwitchInsnNode) node;
+				LabelNode dflt = thread(lookup.dflt);
+				changed |= threadAll(lookup.labels) || dflt != lookup.dflt;
+				lookup.dflt = dflt;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Checks whether two instructions are covered by the same exception handlers,
+	 * so that one may be moved in place of the other without changing which handler
+	 * catches what it throws.
+	 * @param method the {@link MethodNode}
+	 * @param first an instruction of the method
+	 * @param second another instruction of the method
+	 * @return whether they are
+	 */
+	private static boolean sameHandlers(MethodNode method, AbstractInsnNode first, AbstractInsnNode second) {
+		InsnList insns = method.instructions;
+		int a = insns.indexOf(first), b = insns.indexOf(second);
+		for(TryCatchBlockNode block : method.tryCatchBlocks) {
+			int start = insns.indexOf(block.start), end = insns.indexOf(block.end);
+			if((a >= start && a < end) != (b >= start && b < end)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Follows the chain of {@code GOTO}s starting at a label.
+	 * @param label the {@link LabelNode}
+	 * @return the label at the end of the chain
+	 */
+	private static LabelNode thread(LabelNode label) {
+		Set<LabelNode> visited = new HashSet<>();
+		for(AbstractInsnNode next = nextReal(label); next != null && next.getOpcode() == GOTO && visited.add(label);
+		    next = nextReal(label))
+			label = ((JumpInsnNode) next).label;
+		return label;
+	}
+
+	/**
+	 * Follows the chains of {@code GOTO}s starting at several labels.
+	 * @param labels the {@link LabelNode}s, which are replaced
+	 * @return whether any of them changed
+	 */
+	private static boolean threadAll(List<LabelNode> labels) {
+		boolean changed = false;
+		for(ListIterator<LabelNode> iter = labels.listIterator(); iter.hasNext();) {
+			LabelNode label = iter.next(), target = thread(label);
+			if(target != label) {
+				iter.set(target);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Removes pairs of consecutive instructions which cancel each other out:
+	 * a value pushed without side effects and popped, a variable loaded and stored
+	 * back, and a variable stored and loaded right away when it's not used anywhere
+	 * else nor declared.
+	 * @param method the {@link MethodNode}
+	 * @return whether anything was removed
+	 */
+	private static boolean removePairs(MethodNode method) {
+		InsnList insns = method.instructions;
+		boolean changed = false;
+		AbstractInsnNode node = insns.getFirst();
+		while(node != null) {
+			AbstractInsnNode next = node.getNext();
+			while(next instanceof FrameNode)
+				next = next.getNext();
+			if(next != null && cancels(method, node, next)) {
+				AbstractInsnNode after = next.getNext();
+				insns.remove(node);
+				insns.remove(next);
+				changed = true;
+				node = after;
+			} else node = next;
+		}
+		return changed;
+	}
+
+	/**
+	 * Checks whether two consecutive instructions cancel each other out.
+	 * @param method the {@link MethodNode} containing them
+	 * @param first the first instruction
+	 * @param second the second instruction
+	 * @return true if both may be removed
+	 */
+	private static boolean cancels(MethodNode method, AbstractInsnNode first, AbstractInsnNode second) {
+		switch(second.getOpcode()) {
+			case POP:
+				return first.getOpcode() == DUP || pushes(first) == 1;
+			case POP2:
+				return first.getOpcode() == DUP2 || pushes(first) == 2;
+			case ISTORE: case LSTORE: case FSTORE: case DSTORE: case ASTORE:
+				return first.getOpcode() == second.getOpcode() - (ISTORE - ILOAD)
+					&& ((VarInsnNode) first).var == ((VarInsnNode) second).var;
+			case ILOAD: case LLOAD: case FLOAD: case DLOAD: case ALOAD:
+				return first.getOpcode() == second.getOpcode() + (ISTORE - ILOAD)
+					&& ((VarInsnNode) first).var == ((VarInsnNode) second).var
+					&& isOnlyUse(method, (VarInsnNode) first, (VarInsnNode) second);
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Tells the size of the value an instruction pushes, if it has no other effect.
+	 * @param node the instruction
+	 * @return the size of the value, or 0 if it has side effects or is not a push
+	 */
+	private static int pushes(AbstractInsnNode node) {
+		switch(node.getOpcode()) {
+			case ACONST_NULL: case ICONST_M1: case ICONST_0: case ICONST_1: case ICONST_2:
+			case ICONST_3: case ICONST_4: case ICONST_5: case FCONST_0: case FCONST_1: case FCONST_2:
+			case BIPUSH: case SIPUSH: case ILOAD: case FLOAD: case ALOAD:
+				return 1;
+			case LCONST_0: case LCONST_1: case DCONST_0: case DCONST_1: case LLOAD: case DLOAD:
+				return 2;
+			case LDC:
+				Object cst = ((LdcInsnNode) node).cst;
+				if(cst instanceof Long || cst instanceof Double) return 2;
+				//loading classes, handles and dynamic constants may fail or run code
+				return cst instanceof Type || cst instanceof Handle || cst instanceof ConstantDynamic ? 0 : 1;
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * Checks whether a pair of instructions is the only one to use a variable.
+	 * @param method the {@link MethodNode}
+	 * @param store the store instruction
+	 * @param load the load instruction
+	 * @return true if no other instruction uses the variable, and it's not declared
+	 */
+	private static boolean isOnlyUse(MethodNode method, VarInsnNode store, VarInsnNode load) {
+		if(method.localVariables != null)
+			for(LocalVariableNode variable : method.localVariables)
+				if(variable.index == store.var) return false;
+		for(AbstractInsnNode node : method.instructions) {
+			if(node == store || node == load) continue;
+			if(node instanceof VarInsnNode && ((VarInsnNode) node).var == store.var
+				|| node instanceof IincInsnNode && ((IincInsnNode) node).var == store.var)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes the line numbers which don't change the line: those covering no
+	 * instruction, and those with the same line as the previous one.
+	 * @param method the {@link MethodNode}
+	 * @return whether anything was removed
+	 */
+	private static boolean pruneLines(MethodNode method) {
+		InsnList insns = method.instructions;
+		boolean changed = false, covered = false;
+		LineNumberNode last = null;
+		for(AbstractInsnNode node : insns.toArray()) {
+			if(node instanceof LineNumberNode) {
+				LineNumberNode line = (LineNumberNode) node;
+				if(last != null && last.line == line.line) {
+					insns.remove(line);
+					changed = true;
+					continue;
+				}
+				if(last != null && !covered) {
+					insns.remove(last);
+					changed = true;
+				}
+				last = line;
+				covered = false;
+			} else if(node.getOpcode() >= 0) covered = true;
+		}
+		return changed;
+	}
+
+	/**
+	 * Removes the labels nothing refers to.
+	 * @param method the {@link MethodNode}
+	 * @return whether anything was removed
+	 */
+	private static boolean pruneLabels(MethodNode method) {
+		Set<LabelNode> used = new HashSet<>();
+		for(AbstractInsnNode node : method.instructions) {
+			if(node instanceof JumpInsnNode) {
+				used.add(((JumpInsnNode) node).label);
+			} else if(node instanceof TableSwitchInsnNode) {
+				used.add(((TableSwitchInsnNode) node).dflt);
+				used.addAll(((TableSwitchInsnNode) node).labels);
+			} else if(node instanceof LookupSwitchInsnNode) {
+				used.add(((LookupSwitchInsnNode) node).dflt);
+				used.addAll(((LookupSwitchInsnNode) node).labels);
+			} else if(node instanceof LineNumberNode) {
+				used.add(((LineNumberNode) node).start);
+			} else if(node instanceof FrameNode) {
+				for(List<Object> types : Arrays.asList(((FrameNode) node).local, ((FrameNode) node).stack))
+					if(types != null)
+						for(Object type : types)
+							if(type instanceof LabelNode) used.add((LabelNode) type);
+			}
+		}
+		for(TryCatchBlockNode block : method.tryCatchBlocks)
+			Collections.addAll(used, block.start, block.end, block.handler);
+		if(method.localVariables != null)
+			for(LocalVariableNode variable : method.localVariables)
+				Collections.addAll(used, variable.start, variable.end);
+		for(List<LocalVariableAnnotationNode> annotations : Arrays.asList(
+			method.visibleLocalVariableAnnotations, method.invisibleLocalVariableAnnotations))
+			if(annotations != null)
+				for(LocalVariableAnnotationNode annotation : annotations) {
+					used.addAll(annotation.start);
+					used.addAll(annotation.end);
+				}
+
+		boolean changed = false;
+		for(AbstractInsnNode node : method.instructions.toArray()) {
+			if(node instanceof LabelNode && !used.contains(node)) {
+				method.instructions.remove(node);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Finds the first actual instruction starting from a node.
+	 * @param node the node to start from, may be null
+	 * @return the node itself if it's an instruction, or the first one after it,
+	 *         null if there are none
+	 */
+	private static AbstractInsnNode nextReal(AbstractInsnNode node) {
+		while(node != null && node.getOpcode() < 0)
+			node = node.getNext();
+		return node;
+	}
+
+	/**
+	 * @param opcode an opcode
+	 * @return whether it's a return or {@code ATHROW}
+	 */
+	private static boolean isExit(int opcode) {
+		return opcode >= IRETURN && opcode <= RETURN || opcode == ATHROW;
+	}
+
+	/**
+	 * Measures the code of a method, by writing it alone to a class file.
+	 * @param clazz the {@link ClassNode} containing the method
+	 * @param method the {@link MethodNode}
+	 * @return the length of its code, in bytes
+	 */
+	private static int codeSize(ClassNode clazz, MethodNode method) {
+		ClassWriter writer = new ClassWriter(0);
+		writer.visit(clazz.version, clazz.access, clazz.name, null, clazz.superName, null);
+		LabelNode end = new LabelNode();
+		method.instructions.add(end);
+		try {
+			MethodVisitor visitor = writer.visitMethod(method.access, method.name, method.desc, null, null);
+			method.accept(new MethodVisitor(ASM9, visitor) {
+				@Override
+				public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {}
+			});
+			return end.getLabel().getOffset();
+		} finally {
+			method.instructions.remove(end);
+		}
+	}
+
+	/**
+	 * @return the {@link Result}s so far
+	 */
+	public List<Result> getResults() {
+		return new ArrayList<>(this.results);
+	}
+
+	/**
+	 * @return the bytes of code saved so far
+	 */
+	public long getBytesSaved() {
+		long res = 0;
+		for(Result result : this.results)
+			res += result.before - result.after;
+		return res;
+	}
+
+	/**
+	 * Describes the results so far: the size of each method which got smaller, and
+	 * the total.
+	 * @return the report, one line per method
+	 */
+	public String report() {
+		List<Result> sorted = this.getResults();
+		sorted.sort(Comparator.comparing((Result r) -> r.owner).thenComparing(r -> r.name).thenComparing(r -> r.desc));
+		StringBuilder sb = new StringBuilder();
+		for(Result result : sorted)
+			if(result.before != result.after)
+				sb.append(String.format("%s::%s%s: %d -> %d bytes%n", result.owner, result.name, result.desc,
+					result.before, result.after));
+		sb.append(String.format("Saved %d bytes in %d method(s).%n", this.getBytesSaved(), sorted.size()));
+		return sb.toString();
+	}
+
+	/**
+	 * The outcome of optimising a method.
+	 */
+	public static final class Result {
+		/**
+		 * The internal name of the class containing the method.
+		 */
+		public final String owner;
+
+		/**
+		 * The name of the method.
+		 */
+		public final String name;
+
+		/**
+		 * The descriptor of the method.
+		 */
+		public final String desc;
+
+		/**
+		 * The size of its code before, in bytes.
+		 */
+		public final int before;
+
+		/**
+		 * The size of its code after, in bytes.
+		 */
+		public final int after;
+
+		/**
+		 * Private constructor.
+		 * @param owner the internal name of the class containing the method
+		 * @param name the name of the method
+		 * @param desc the descriptor of the method
+		 * @param before the size of its code before, in bytes
+		 * @param after the size of its code after, in bytes
+		 */
+		private Result(String owner, String name, String desc, int before, int after) {
+			this.owner = owner;
+			this.name = name;
+			this.desc = desc;
+			this.before = before;
+			this.after = after;
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package ftbsc.lll.transformer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a zip file, taking entries either as uncompressed data or as the raw
+ * stored data of a {@link MappedZip} entry, which is copied as is.
+ * Names are written as they were stored, along with the flag telling whether they
+ * are UTF-8, and extra fields are dropped.
+ */
+final class ZipWriter implements Closeable {
+	/**
+	 * The {@link OutputStream} to write to.
+	 */
+	private final OutputStream out;
+
+	/**
+	 * The entries written so far.
+	 */
+	private final List<MappedZip.Entry> written = new ArrayList<>();
+
+	/**
+	 * The offsets of the local headers of the entries written so far.
+	 */
+	private final List<Long> offsets = new ArrayList<>();
+
+	/**
+	 * The number of bytes written so far.
+	 */
+	private long offset;
+
+	/**
+	 * The {@link Deflater} used for new entries.
+	 */
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+	/**
+	 * Public constructor.
+	 * @param out the {@link OutputStream} to write to, which should be buffered
+	 */
+	ZipWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Copies an entry of a {@link MappedZip} without inflating it.
+	 * @param entry the {@link MappedZip.Entry}
+	 * @param raw its stored data, as given by {@link MappedZip#getRaw(MappedZip.Entry)}
+	 * @throws IOException if writing fails
+	 */
+	void writeRaw(MappedZip.Entry entry, ByteBuffer raw) throws IOException {
+		MappedZip.Entry copy = copyOf(entry);
+		this.writeLocalHeader(copy);
+		if(raw.hasArray()) {
+			this.out.write(raw.array(), raw.arrayOffset() + raw.position(), raw.remaining());
+		} else {
+			byte[] chunk = new byte[Math.min(raw.remaining(), 1 << 16)];
+			while(raw.hasRemaining()) {
+				int n = Math.min(chunk.length, raw.remaining());
+				raw.get(chunk, 0, n);
+				this.out.write(chunk, 0, n);
+			}
+		}
+		this.offset += copy.compressedSize;
+	}
+
+	/**
+	 * Writes an entry with new data, deflating it, keeping the rest of the metadata
+	 * of the entry it replaces.
+	 * @param entry the {@link MappedZip.Entry} the data replaces
+	 * @param data the uncompressed data
+	 * @throws IOException if writing fails
+	 */
+	void write(MappedZip.Entry entry, byte[] data) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		this.deflater.reset();
+		this.deflater.setInput(data);
+		this.deflater.finish();
+		byte[] compressed = new byte[Math.max(64, data.length + data.length / 1000 + 64)];
+		int length = 0;
+		while(!this.deflater.finished()) {
+			if(length == compressed.length)
+				compressed = Arrays.copyOf(compressed, compressed.length * 2);
+			length += this.deflater.deflate(compressed, length, compressed.length - length);
+		}
+		MappedZip.Entry copy = copyOf(entry);
+		copy.flags &= MappedZip.UTF8;
+		copy.method = 8;
+		copy.crc = crc.getValue();
+		copy.size = data.length;
+		copy.compressedSize = length;
+		this.writeLocalHeader(copy);
+		this.out.write(compressed, 0, length);
+		this.offset += length;
+	}
+
+	/**
+	 * Copies the metadata of an entry.
+	 * @param entry the {@link MappedZip.Entry}
+	 * @return the copy, with the flags which may be kept
+	 */
+	private static MappedZip.Entry copyOf(MappedZip.Entry entry) {
+		MappedZip.Entry res = new MappedZip.Entry();
+		res.name = entry.name;
+		res.rawName = entry.rawName;
+		res.versionMadeBy = entry.versionMadeBy;
+		res.flags = entry.flags & (MappedZip.UTF8 | 0b110); //compression options, sizes are never deferred
+		res.method = entry.method;
+		res.time = entry.time;
+		res.date = entry.date;
+		res.crc = entry.crc;
+		res.compressedSize = entry.compressedSize;
+		res.size = entry.size;
+		res.externalAttributes = entry.externalAttributes;
+		return res;
+	}
+
+	/**
+	 * Writes the local header of an entry and records it for the central directory.
+	 * @param entry the {@link MappedZip.Entry}
+	 * @throws IOException if writing fails
+	 */
+	private void writeLocalHeader(MappedZip.Entry entry) throws IOException {
+		if(this.written.size() == 0xFFFF || this.offset > 0xFFFFFFFFL - entry.compressedSize)
+			throw new ZipException("The output would need ZIP64, which is not supported!");
+		byte[] name = entry.rawName;
+		ByteBuffer header = ByteBuffer.allocate(30 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0x04034b50)
+			.putShort((short) 20)
+			.putShort((short) entry.flags)
+			.putShort((short) entry.method)
+			.putShort((short) entry.time)
+			.putShort((short) entry.date)
+			.putInt((int) entry.crc)
+			.putInt((int) entry.compressedSize)
+			.putInt((int) entry.size)
+			.putShort((short) name.length)
+			.putShort((short) 0)
+			.put(name);
+		this.written.add(entry);
+		this.offsets.add(this.offset);
+		this.out.write(header.array());
+		this.offset += header.capacity();
+	}
+
+	/**
+	 * Writes the central directory and closes the underlying stream.
+	 * @throws IOException if writing fails
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			long start = this.offset;
+			for(int i = 0; i < this.written.size(); i++) {
+				MappedZip.Entry entry = this.written.get(i);
+				byte[] name = entry.rawName;
+				ByteBuffer header = ByteBuffer.allocate(46 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(0x02014b50)
+					.putShort((short) entry.versionMadeBy)
+					.putShort((short) 20)
+					.putShort((short) entry.flags)
+					.putShort((short) entry.method)
+					.putShort((short) entry.time)
+					.putShort((short) entry.date)
+					.putInt((int) entry.crc)
+					.putInt((int) entry.compressedSize)
+					.putInt((int) entry.size)
+					.putShort((short) name.length)
+					.putShort((short) 0)
+					.putShort((short) 0)
+					.putShort((short) 0)
+					.putShort((short) 0)
+					.putInt((int) entry.externalAttributes)
+					.putInt(this.offsets.get(i).intValue())
+					.put(name);
+				this.out.write(header.array());
+				this.offset += header.capacity();
+			}
+			if(this.offset > 0xFFFFFFFFL)
+				throw new ZipException("The output would need ZIP64, which is not supported!");
+			ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+			end.putInt(0x06054b50)
+				.putShort((short) 0)
+				.putShort((short) 0)
+				.putShort((short) this.written.size())
+				.putShort((short) this.written.size())
+				.putInt((int) (this.offset - start))
+				.putInt((int) start)
+				.putShort((short) 0);
+			this.out.write(end.array());
+		} finally {
+			this.deflater.end();
+			this.out.close();
+		}
+	}
+}
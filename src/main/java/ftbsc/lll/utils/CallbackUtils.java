@@ -0,0 +1,218 @@
+package ftbsc.lll.utils;
+
+import ftbsc.lll.exceptions.PatternNotFoundException;
+import ftbsc.lll.hooks.ReturnSlot;
+import ftbsc.lll.proxies.impl.MethodProxy;
+import ftbsc.lll.utils.nodes.MethodProxyInsnNode;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Injects calls to static hooks at the head of a method, at its tail or before
+ * each of its returns, passing them the instance and the arguments of the method
+ * without boxing them.
+ * Nothing is allocated when the hooks are called: a head hook cancels the method
+ * by returning true, after handing the value to return to {@link ReturnSlot} if
+ * needed, and a return hook overrides the returned value by returning another one.
+ * The arguments are read from the locals holding them, so hooks after the head
+ * see any value the method assigned to them.
+ * The descriptors hooks must have are given by {@link StackUtils#hookDescriptor}.
+ */
+public class CallbackUtils implements Opcodes {
+	/**
+	 * The internal name of {@link ReturnSlot}.
+	 */
+	private static final String RETURN_SLOT = Type.getInternalName(ReturnSlot.class);
+
+	/**
+	 * Calls a hook at the head of a method, which may cancel it. Within a constructor,
+	 * the hook is called right after the superclass constructor.
+	 * The hook takes the instance, unless the method is static, and the arguments,
+	 * and returns a boolean: true to return from the method right away. Methods
+	 * returning a value return the one the hook passed to the matching
+	 * {@code ReturnSlot.cancel} method, or zero, false or null if it passed none.
+	 * @param clazz the {@link ClassNode} containing the method
+	 * @param method the {@link MethodNode} to inject into
+	 * @param hook the {@link MethodProxy} of the static hook
+	 * @throws IllegalArgumentException if the hook does not have the expected descriptor,
+	 *                                  or the method has no body, like abstract and native ones
+	 */
+	public static void injectHead(ClassNode clazz, MethodNode method, MethodProxy hook) {
+		checkHook(hook, StackUtils.hookDescriptor(clazz.name, method, Type.BOOLEAN_TYPE));
+		AbstractInsnNode start = getBodyStart(method);
+		if(start == null)
+			throw new IllegalArgumentException(String.format("Method %s%s has no body to inject into!",
+				method.name, method.desc));
+		Type returnType = DescriptorPool.getReturnType(method.desc);
+		LabelNode proceed = new LabelNode();
+		InsnList call = StackUtils.loadArguments(method);
+		call.add(new MethodProxyInsnNode(INVOKESTATIC, hook));
+		call.add(new JumpInsnNode(IFEQ, proceed));
+		switch(returnType.getSort()) {
+			case Type.VOID:
+				break;
+			case Type.LONG:
+				call.add(new MethodInsnNode(INVOKESTATIC, RETURN_SLOT, "takeLong", "()J", false));
+				break;
+			case Type.FLOAT:
+				call.add(new MethodInsnNode(INVOKESTATIC, RETURN_SLOT, "takeFloat", "()F", false));
+				break;
+			case Type.DOUBLE:
+				call.add(new MethodInsnNode(INVOKESTATIC, RETURN_SLOT, "takeDouble", "()D", false));
+				break;
+			case Type.OBJECT:
+			case Type.ARRAY:
+				call.add(new MethodInsnNode(INVOKESTATIC, RETURN_SLOT, "takeObject", "()Ljava/lang/Object;", false));
+				if(!returnType.getDescriptor().equals("Ljava/lang/Object;"))
+					call.add(new TypeInsnNode(CHECKCAST, returnType.getInternalName()));
+				break;
+			default:
+				call.add(new MethodInsnNode(INVOKESTATIC, RETURN_SLOT, "takeInt", "()I", false));
+		}
+		call.add(StackUtils.returnValue(returnType));
+		call.add(proceed);
+		method.instructions.insertBefore(start, call);
+		method.maxStack = Math.max(method.maxStack, Math.max(argumentsSize(method), 2));
+	}
+
+	/**
+	 * Calls a hook before the last return of a method, which may override the
+	 * returned value.
+	 * The hook takes the instance, unless the method is static, the arguments and
+	 * the value being returned, if any, and returns the value to return instead.
+	 * @param clazz the {@link ClassNode} containing the method
+	 * @param method the {@link MethodNode} to inject into
+	 * @param hook the {@link MethodProxy} of the static hook
+	 * @throws IllegalArgumentException if the hook does not have the expected descriptor
+	 * @throws PatternNotFoundException if the method never returns
+	 */
+	public static void injectTail(ClassNode clazz, MethodNode method, MethodProxy hook) {
+		AbstractInsnNode site = returns().reverse().build().find(method).getFirst();
+		injectReturn(method, hook, site, prepareReturn(clazz, method, hook));
+	}
+
+	/**
+	 * Calls a hook before each return of a method, which may override the returned value.
+	 * The hook takes the instance, unless the method is static, the arguments and
+	 * the value being returned, if any, and returns the value to return instead.
+	 * Returns added by previous injections, such as those of cancelled head hooks,
+	 * are included.
+	 * @param clazz the {@link ClassNode} containing the method
+	 * @param method the {@link MethodNode} to inject into
+	 * @param hook the {@link MethodProxy} of the static hook
+	 * @return how many returns the hook was injected before
+	 * @throws IllegalArgumentException if the hook does not have the expected descriptor
+	 */
+	public static int injectReturns(ClassNode clazz, MethodNode method, MethodProxy hook) {
+		PatternMatcher matcher = returns().build();
+		List<AbstractInsnNode> sites = new ArrayList<>();
+		for(AbstractInsnNode from = method.instructions.getFirst(); from != null;) {
+			AbstractInsnNode site;
+			try {
+				site = matcher.find(method, from).getFirst();
+			} catch(PatternNotFoundException e) {
+				break;
+			}
+			sites.add(site);
+			from = site.getNext();
+		}
+		if(sites.isEmpty()) return 0;
+		int var = prepareReturn(clazz, method, hook);
+		for(AbstractInsnNode site : sites)
+			injectReturn(method, hook, site, var);
+		return sites.size();
+	}
+
+	/**
+	 * @return a {@link PatternMatcher.Builder} for return instructions
+	 */
+	private static PatternMatcher.Builder returns() {
+		return PatternMatcher.builder().check(insn -> insn.getOpcode() >= IRETURN && insn.getOpcode() <= RETURN,
+			IRETURN, LRETURN, FRETURN, DRETURN, ARETURN, RETURN);
+	}
+
+	/**
+	 * Checks the descriptor of a return hook, and reserves the local holding the
+	 * returned value while the arguments are loaded.
+	 * @param clazz the {@link ClassNode} containing the method
+	 * @param method the {@link MethodNode} to inject into
+	 * @param hook the {@link MethodProxy} of the static hook
+	 * @return the index of the local, -1 if the method returns nothing
+	 * @throws IllegalArgumentException if the hook does not have the expected descriptor
+	 */
+	private static int prepareReturn(ClassNode clazz, MethodNode method, MethodProxy hook) {
+		Type returnType = DescriptorPool.getReturnType(method.desc);
+		if(returnType.getSort() == Type.VOID) {
+			checkHook(hook, StackUtils.hookDescriptor(clazz.name, method, Type.VOID_TYPE));
+			return -1;
+		}
+		checkHook(hook, StackUtils.hookDescriptor(clazz.name, method, returnType, returnType));
+		int var = method.maxLocals;
+		method.maxLocals += returnType.getSize();
+		method.maxStack += argumentsSize(method) + returnType.getSize();
+		return var;
+	}
+
+	/**
+	 * Calls a return hook before a return instruction.
+	 * @param method the {@link MethodNode} to inject into
+	 * @param hook the {@link MethodProxy} of the static hook
+	 * @param site the return instruction
+	 * @param var the local holding the returned value, as given by {@link #prepareReturn}
+	 */
+	private static void injectReturn(MethodNode method, MethodProxy hook, AbstractInsnNode site, int var) {
+		InsnList call = new InsnList();
+		Type returnType = DescriptorPool.getReturnType(method.desc);
+		if(var != -1)
+			call.add(StackUtils.store(returnType, var));
+		call.add(StackUtils.loadArguments(method));
+		if(var != -1)
+			call.add(StackUtils.load(returnType, var));
+		call.add(new MethodProxyInsnNode(INVOKESTATIC, hook));
+		method.instructions.insertBefore(site, call);
+	}
+
+	/**
+	 * Finds where the body of a method starts: after the call to the superclass
+	 * or another constructor within a constructor, where {@code this} may not be
+	 * used yet, and at the first instruction otherwise.
+	 * @param method the {@link MethodNode}
+	 * @return the first node of the body, null if it's empty
+	 */
+	public static AbstractInsnNode getBodyStart(MethodNode method) {
+		AbstractInsnNode first = method.instructions.getFirst();
+		if(!method.name.equals("<init>")) return first;
+		int created = 0; //objects created but not initialised yet
+		for(AbstractInsnNode insn = first; insn != null; insn = insn.getNext()) {
+			if(insn.getOpcode() == NEW) created++;
+			else if(insn.getOpcode() == INVOKESPECIAL && ((MethodInsnNode) insn).name.equals("<init>"))
+				if(created-- == 0) return insn.getNext();
+		}
+		return null;
+	}
+
+	/**
+	 * Checks that a hook has the expected descriptor.
+	 * @param hook the {@link MethodProxy} of the hook
+	 * @param expected the expected descriptor
+	 * @throws IllegalArgumentException if it's not the case
+	 */
+	private static void checkHook(MethodProxy hook, String expected) {
+		if(!hook.descriptor.equals(expected))
+			throw new IllegalArgumentException(String.format("Hook %s has descriptor %s, expected %s!",
+				hook.name, hook.descriptor, expected));
+	}
+
+	/**
+	 * @param method a {@link MethodNode}
+	 * @return the size of its arguments, including the instance if it's not static
+	 */
+	private static int argumentsSize(MethodNode method) {
+		int size = Type.getArgumentsAndReturnSizes(method.desc) >> 2;
+		return (method.access & ACC_STATIC) != 0 ? size - 1 : size;
+	}
+}
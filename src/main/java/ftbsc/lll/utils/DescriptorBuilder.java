@@ -113,7 +113,7 @@ public class DescriptorBuilder {
 	/**
 	 * Builds the descriptor into a string.
 	 * Example result: {@code int m(Object[] o)} becomes {@code ([Ljava/lang/Object;)I}
-	 * @return the resulting descriptor
+	 * @return the resulting descriptor, as pooled by {@link DescriptorPool}
 	 */
 	public String build() {
 		StringBuilder sb = new StringBuilder();
@@ -121,7 +121,7 @@ public class DescriptorBuilder {
 		for(String p : params)
 			sb.append(p);
 		sb.append(')').append(returnType);
-		return sb.toString();
+		return DescriptorPool.intern(sb.toString());
 	}
 
 	/**
@@ -129,13 +129,9 @@ public class DescriptorBuilder {
 	 * @param name the fully qualified name of the object type
 	 * @param arrayLevel how many levels of array are there
 	 *                   (example: String is 0, String[] is 1, String[][] is 2, etc.)
-	 * @return object descriptor
+	 * @return object descriptor, as pooled by {@link DescriptorPool}
 	 */
 	public static String nameToDescriptor(String name, int arrayLevel) {
-		StringBuilder sb = new StringBuilder();
-		for(int i = 0; i < arrayLevel; i++)
-			sb.append('[');
-		sb.append('L').append(name.replace('.', '/')).append(';');
-		return sb.toString();
+		return DescriptorPool.getDescriptor(name, arrayLevel);
 	}
 }
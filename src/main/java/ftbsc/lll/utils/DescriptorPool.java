@@ -0,0 +1,233 @@
+package ftbsc.lll.utils;
+
+import ftbsc.lll.proxies.impl.TypeProxy;
+import org.objectweb.asm.Type;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A pool of descriptors shared by the whole library, so that the same descriptor
+ * used by thousands of proxies and injectors is stored and parsed only once.
+ * Descriptors are canonicalised, and the {@link Type}s and {@link TypeProxy}s
+ * parsed from them are cached. Arrays returned by this class are copies, as the
+ * cached ones are shared.
+ * The pool only grows: {@link #clear()} may be called once patching is over.
+ */
+public final class DescriptorPool {
+	/**
+	 * The canonical instance of each string.
+	 */
+	private static final ConcurrentMap<String, String> STRINGS = new ConcurrentHashMap<>();
+
+	/**
+	 * The descriptors of the classes, by fully qualified name.
+	 */
+	private static final ConcurrentMap<String, String> DESCRIPTORS = new ConcurrentHashMap<>();
+
+	/**
+	 * The parsed types, by descriptor.
+	 */
+	private static final ConcurrentMap<String, Type> TYPES = new ConcurrentHashMap<>();
+
+	/**
+	 * The parsed method descriptors.
+	 */
+	private static final ConcurrentMap<String, Signature> SIGNATURES = new ConcurrentHashMap<>();
+
+	/**
+	 * The {@link TypeProxy}s, by modifiers and descriptor.
+	 */
+	private static final ConcurrentMap<Integer, ConcurrentMap<String, TypeProxy>> PROXIES = new ConcurrentHashMap<>();
+
+	/**
+	 * Private constructor, as this class only has static methods.
+	 */
+	private DescriptorPool() {}
+
+	/**
+	 * Gets the canonical instance of a string.
+	 * @param s the string, may be null
+	 * @return an equal string, the same instance for all equal strings
+	 */
+	public static String intern(String s) {
+		if(s == null) return null;
+		String res = STRINGS.putIfAbsent(s, s);
+		return res == null ? s : res;
+	}
+
+	/**
+	 * Gets the descriptor of a class, as {@link DescriptorBuilder#nameToDescriptor(String, int)}.
+	 * @param fqn the fully qualified name of the class
+	 * @param arrayLevel how many levels of array are there
+	 * @return the canonical descriptor
+	 */
+	public static String getDescriptor(String fqn, int arrayLevel) {
+		String res = DESCRIPTORS.get(fqn);
+		if(res == null) {
+			res = intern('L' + fqn.replace('.', '/') + ';');
+			DESCRIPTORS.putIfAbsent(fqn, res);
+		}
+		if(arrayLevel == 0) return res;
+		StringBuilder sb = new StringBuilder(arrayLevel + res.length());
+		for(int i = 0; i < arrayLevel; i++)
+			sb.append('[');
+		return intern(sb.append(res).toString());
+	}
+
+	/**
+	 * Gets the {@link Type} of a descriptor.
+	 * @param descriptor a field or method descriptor
+	 * @return the {@link Type}
+	 */
+	public static Type getType(String descriptor) {
+		Type res = TYPES.get(descriptor);
+		if(res == null) {
+			res = Type.getType(intern(descriptor));
+			Type previous = TYPES.putIfAbsent(descriptor, res);
+			if(previous != null) res = previous;
+		}
+		return res;
+	}
+
+	/**
+	 * Gets the types of the arguments of a method.
+	 * @param descriptor the method descriptor
+	 * @return the {@link Type}s of the arguments, a new array
+	 */
+	public static Type[] getArgumentTypes(String descriptor) {
+		return signature(descriptor).arguments.clone();
+	}
+
+	/**
+	 * Gets the types of the arguments of a method, without copying them.
+	 * @param descriptor the method descriptor
+	 * @return the {@link Type}s of the arguments, a shared array which must not be modified
+	 */
+	static Type[] argumentTypes(String descriptor) {
+		return signature(descriptor).arguments;
+	}
+
+	/**
+	 * Gets the return type of a method.
+	 * @param descriptor the method descriptor
+	 * @return the {@link Type} of the returned value
+	 */
+	public static Type getReturnType(String descriptor) {
+		return signature(descriptor).returnType;
+	}
+
+	/**
+	 * Gets the {@link TypeProxy}s of the parameters of a method.
+	 * @param descriptor the method descriptor
+	 * @return the {@link TypeProxy}s of the parameters, a new array
+	 */
+	public static TypeProxy[] getParameterProxies(String descriptor) {
+		return signature(descriptor).parameters.clone();
+	}
+
+	/**
+	 * Gets the {@link TypeProxy} of the return type of a method.
+	 * @param descriptor the method descriptor
+	 * @return the {@link TypeProxy} of the returned value
+	 */
+	public static TypeProxy getReturnTypeProxy(String descriptor) {
+		return signature(descriptor).returnProxy;
+	}
+
+	/**
+	 * Gets the {@link TypeProxy} of a descriptor, as {@link TypeProxy#from(Type, int)}.
+	 * @param descriptor a field descriptor
+	 * @param modifiers the modifiers of the class
+	 * @return the shared {@link TypeProxy}
+	 */
+	public static TypeProxy getTypeProxy(String descriptor, int modifiers) {
+		ConcurrentMap<String, TypeProxy> proxies = PROXIES.get(modifiers);
+		if(proxies == null) {
+			proxies = new ConcurrentHashMap<>();
+			ConcurrentMap<String, TypeProxy> previous = PROXIES.putIfAbsent(modifiers, proxies);
+			if(previous != null) proxies = previous;
+		}
+		//not computeIfAbsent: building a proxy may look up those of its outer classes
+		TypeProxy res = proxies.get(descriptor);
+		if(res == null) {
+			res = TypeProxy.from(getType(descriptor), modifiers);
+			TypeProxy previous = proxies.putIfAbsent(descriptor, res);
+			if(previous != null) res = previous;
+		}
+		return res;
+	}
+
+	/**
+	 * Gets a parsed method descriptor, parsing it if needed.
+	 * @param descriptor the method descriptor
+	 * @return the {@link Signature}
+	 */
+	private static Signature signature(String descriptor) {
+		Signature res = SIGNATURES.get(descriptor);
+		if(res == null) {
+			res = new Signature(intern(descriptor));
+			Signature previous = SIGNATURES.putIfAbsent(descriptor, res);
+			if(previous != null) res = previous;
+		}
+		return res;
+	}
+
+	/**
+	 * @return how many strings are pooled
+	 */
+	public static int size() {
+		return STRINGS.size();
+	}
+
+	/**
+	 * Empties the pool. Instances handed out before are still valid, but will not
+	 * be shared with those handed out after.
+	 */
+	public static void clear() {
+		for(Map<?, ?> map : new Map<?, ?>[] { SIGNATURES, PROXIES, TYPES, DESCRIPTORS, STRINGS })
+			map.clear();
+	}
+
+	/**
+	 * A parsed method descriptor.
+	 */
+	private static final class Signature {
+		/**
+		 * The types of the arguments.
+		 */
+		private final Type[] arguments;
+
+		/**
+		 * The return type.
+		 */
+		private final Type returnType;
+
+		/**
+		 * The proxies of the types of the arguments.
+		 */
+		private final TypeProxy[] parameters;
+
+		/**
+		 * The proxy of the return type.
+		 */
+		private final TypeProxy returnProxy;
+
+		/**
+		 * Parses a method descriptor.
+		 * @param descriptor the canonical method descriptor
+		 */
+		private Signature(String descriptor) {
+			Type method = getType(descriptor);
+			this.arguments = method.getArgumentTypes();
+			this.returnType = getType(method.getReturnType().getDescriptor());
+			this.parameters = new TypeProxy[this.arguments.length];
+			for(int i = 0; i < this.arguments.length; i++) {
+				this.arguments[i] = getType(this.arguments[i].getDescriptor());
+				this.parameters[i] = getTypeProxy(this.arguments[i].getDescriptor(), 0);
+			}
+			this.returnProxy = getTypeProxy(this.returnType.getDescriptor(), 0);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package ftbsc.lll.utils;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Keeps track of the instructions matched by {@link PatternMatcher}s on the
+ * current thread while it's active. Used to find out which regions of a method
+ * an injector worked on.
+ */
+public class MatchRecorder {
+	/**
+	 * The recorder active on each thread.
+	 */
+	private static final ThreadLocal<MatchRecorder> CURRENT = new ThreadLocal<>();
+
+	/**
+	 * The nodes matched so far.
+	 */
+	private final Set<AbstractInsnNode> matched = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	/**
+	 * The recorder that was active before this one, if any.
+	 */
+	private final MatchRecorder previous;
+
+	/**
+	 * Private constructor, recorders should be created through {@link #start()}.
+	 * @param previous the recorder that was active before this one
+	 */
+	private MatchRecorder(MatchRecorder previous) {
+		this.previous = previous;
+	}
+
+	/**
+	 * Starts recording matches on the current thread.
+	 * @return the new active {@link MatchRecorder}
+	 */
+	public static MatchRecorder start() {
+		MatchRecorder recorder = new MatchRecorder(CURRENT.get());
+		CURRENT.set(recorder);
+		return recorder;
+	}
+
+	/**
+	 * Stops recording, restoring whichever recorder was active before.
+	 * @return the nodes matched while the recorder was active
+	 */
+	public Set<AbstractInsnNode> stop() {
+		if(this.previous == null) CURRENT.remove();
+		else CURRENT.set(this.previous);
+		return this.matched;
+	}
+
+	/**
+	 * Records a match, if a recorder is active. Used internally.
+	 * @param first the first node of the match
+	 * @param last the last node of the match, which must follow the first
+	 */
+	static void record(AbstractInsnNode first, AbstractInsnNode last) {
+		MatchRecorder recorder = CURRENT.get();
+		if(recorder == null) return;
+		for(AbstractInsnNode cur = first; cur != null; cur = cur.getNext()) {
+			for(MatchRecorder r = recorder; r != null; r = r.previous)
+				r.matched.add(cur);
+			if(cur == last) break;
+		}
+	}
+}
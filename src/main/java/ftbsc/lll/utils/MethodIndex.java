@@ -0,0 +1,64 @@
+package ftbsc.lll.utils;
+
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.*;
+
+/**
+ * Indexes the methods of a class by name and descriptor, so that
+ * {@link MethodSelector}s can be resolved with hash lookups.
+ */
+public class MethodIndex {
+	/**
+	 * The {@link ClassNode} being indexed.
+	 */
+	public final ClassNode clazz;
+
+	/**
+	 * The methods of the class, by name.
+	 */
+	private final Map<String, List<MethodNode>> byName = new HashMap<>();
+
+	/**
+	 * The methods of the class, by name and descriptor.
+	 */
+	private final Map<String, MethodNode> byNameAndDesc = new HashMap<>();
+
+	/**
+	 * Public constructor, indexes the class in a single pass.
+	 * The index does not follow later changes to the list of methods.
+	 * @param clazz the {@link ClassNode} to index
+	 */
+	public MethodIndex(ClassNode clazz) {
+		this.clazz = clazz;
+		for(MethodNode method : clazz.methods) {
+			this.byName.computeIfAbsent(method.name, k -> new ArrayList<>(1)).add(method);
+			this.byNameAndDesc.put(method.name + method.desc, method);
+		}
+	}
+
+	/**
+	 * @param name the name of the method
+	 * @param desc the descriptor of the method
+	 * @return the {@link MethodNode}, or null if there is no such method
+	 */
+	public MethodNode get(String name, String desc) {
+		return this.byNameAndDesc.get(name + desc);
+	}
+
+	/**
+	 * @param name the name of the methods
+	 * @return all the methods with that name, possibly none
+	 */
+	public List<MethodNode> getAll(String name) {
+		return this.byName.getOrDefault(name, Collections.emptyList());
+	}
+
+	/**
+	 * @return all methods of the class, in declaration order
+	 */
+	public List<MethodNode> getAll() {
+		return this.clazz.methods;
+	}
+}
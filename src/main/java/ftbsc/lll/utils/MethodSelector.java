@@ -0,0 +1,157 @@
+package ftbsc.lll.utils;
+
+import ftbsc.lll.proxies.impl.MethodProxy;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Describes a set of methods within a class, to be resolved against a {@link MethodIndex}.
+ * Exact names and descriptors are resolved through hash lookups, while patterns and
+ * predicates are tested against every method of the class.
+ */
+public abstract class MethodSelector {
+	/**
+	 * Adds the selected methods to a set.
+	 * @param index the {@link MethodIndex} of the class
+	 * @param out the set to add the methods to
+	 */
+	protected abstract void collect(MethodIndex index, Set<MethodNode> out);
+
+	/**
+	 * Finds the selected methods within a class.
+	 * @param index the {@link MethodIndex} of the class
+	 * @return the selected {@link MethodNode}s, in declaration order
+	 */
+	public List<MethodNode> resolve(MethodIndex index) {
+		Set<MethodNode> selected = Collections.newSetFromMap(new IdentityHashMap<>());
+		this.collect(index, selected);
+		if(selected.size() < 2)
+			return new ArrayList<>(selected);
+		List<MethodNode> res = new ArrayList<>(selected.size());
+		for(MethodNode method : index.getAll())
+			if(selected.contains(method)) res.add(method);
+		return res;
+	}
+
+	/**
+	 * Selects a single method.
+	 * @param name the name of the method
+	 * @param desc the descriptor of the method
+	 * @return the built {@link MethodSelector}
+	 */
+	public static MethodSelector exact(String name, String desc) {
+		return new MethodSelector() {
+			@Override
+			protected void collect(MethodIndex index, Set<MethodNode> out) {
+				MethodNode method = index.get(name, desc);
+				if(method != null) out.add(method);
+			}
+
+			@Override
+			public String toString() {
+				return name + desc;
+			}
+		};
+	}
+
+	/**
+	 * Selects the methods represented by the given proxies. Their parents are ignored:
+	 * the selector is always resolved against the class being patched.
+	 * @param methods the {@link MethodProxy}s representing the methods
+	 * @return the built {@link MethodSelector}
+	 */
+	public static MethodSelector of(MethodProxy... methods) {
+		MethodSelector[] selectors = new MethodSelector[methods.length];
+		for(int i = 0; i < methods.length; i++)
+			selectors[i] = exact(methods[i].name, methods[i].descriptor);
+		return anyOf(selectors);
+	}
+
+	/**
+	 * Selects all overloads of a method.
+	 * @param name the name of the method
+	 * @return the built {@link MethodSelector}
+	 */
+	public static MethodSelector named(String name) {
+		return new MethodSelector() {
+			@Override
+			protected void collect(MethodIndex index, Set<MethodNode> out) {
+				out.addAll(index.getAll(name));
+			}
+
+			@Override
+			public String toString() {
+				return name + "*";
+			}
+		};
+	}
+
+	/**
+	 * Selects the methods whose descriptor matches a regular expression.
+	 * @param name the name of the methods, null to accept any
+	 * @param descPattern the regular expression to match descriptors against
+	 * @return the built {@link MethodSelector}
+	 */
+	public static MethodSelector pattern(String name, String descPattern) {
+		Pattern pattern = Pattern.compile(descPattern);
+		return new MethodSelector() {
+			@Override
+			protected void collect(MethodIndex index, Set<MethodNode> out) {
+				for(MethodNode method : name == null ? index.getAll() : index.getAll(name))
+					if(pattern.matcher(method.desc).matches()) out.add(method);
+			}
+
+			@Override
+			public String toString() {
+				return (name == null ? "*" : name) + "/" + descPattern + "/";
+			}
+		};
+	}
+
+	/**
+	 * Selects the methods satisfying a predicate.
+	 * @param predicate the {@link Predicate} to test methods with
+	 * @return the built {@link MethodSelector}
+	 */
+	public static MethodSelector matching(Predicate<MethodNode> predicate) {
+		return new MethodSelector() {
+			@Override
+			protected void collect(MethodIndex index, Set<MethodNode> out) {
+				for(MethodNode method : index.getAll())
+					if(predicate.test(method)) out.add(method);
+			}
+
+			@Override
+			public String toString() {
+				return "<predicate>";
+			}
+		};
+	}
+
+	/**
+	 * Selects the methods selected by any of the given selectors.
+	 * @param selectors the {@link MethodSelector}s to combine
+	 * @return the built {@link MethodSelector}
+	 */
+	public static MethodSelector anyOf(MethodSelector... selectors) {
+		if(selectors.length == 1) return selectors[0];
+		return new MethodSelector() {
+			@Override
+			protected void collect(MethodIndex index, Set<MethodNode> out) {
+				for(MethodSelector selector : selectors)
+					selector.collect(index, out);
+			}
+
+			@Override
+			public String toString() {
+				StringJoiner joiner = new StringJoiner(", ", "[", "]");
+				for(MethodSelector selector : selectors)
+					joiner.add(selector.toString());
+				return joiner.toString();
+			}
+		};
+	}
+}
@@ -0,0 +1,332 @@
+package ftbsc.lll.utils;
+
+import ftbsc.lll.exceptions.InjectionException;
+import ftbsc.lll.hierarchy.IClassHierarchy;
+import ftbsc.lll.utils.analysis.TypeInterpreter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+import java.util.*;
+
+/**
+ * Moves blocks of instructions into synthetic helper methods.
+ * A small call site is much friendlier to the JIT's inlining heuristics than a
+ * large block of injected code, especially in methods which are already big.
+ */
+public class OutlineUtils implements Opcodes {
+	/**
+	 * Inserts a block of instructions before the given node, and then outlines it
+	 * into a private static synthetic method of the given class.
+	 * The values the block takes from the stack and the locals it reads become the
+	 * parameters of the helper, and the value it leaves on the stack (if any) becomes
+	 * its return value.
+	 * The block must not jump outside itself, return from the method or write
+	 * to locals which are already in use at the insertion point: locals introduced
+	 * by the block are confined to the helper.
+	 * @param clazz the {@link ClassNode} to add the helper to
+	 * @param method the {@link MethodNode} the block is meant for
+	 * @param location the node before which the block should be inserted
+	 * @param block the instructions to outline, will be emptied
+	 * @return the {@link MethodNode} of the generated helper
+	 * @throws InjectionException if the block cannot be outlined
+	 */
+	public static MethodNode outline(ClassNode clazz, MethodNode method, AbstractInsnNode location, InsnList block) {
+		return outline(clazz, method, location, block, null);
+	}
+
+	/**
+	 * Inserts a block of instructions before the given node, and then outlines it
+	 * into a private static synthetic method of the given class.
+	 * Works like {@link #outline(ClassNode, MethodNode, AbstractInsnNode, InsnList)},
+	 * but uses an {@link IClassHierarchy} to find more precise types for the parameters.
+	 * @param clazz the {@link ClassNode} to add the helper to
+	 * @param method the {@link MethodNode} the block is meant for
+	 * @param location the node before which the block should be inserted
+	 * @param block the instructions to outline, will be emptied
+	 * @param hierarchy the {@link IClassHierarchy} to use, may be null
+	 * @return the {@link MethodNode} of the generated helper
+	 * @throws InjectionException if the block cannot be outlined
+	 */
+	public static MethodNode outline(ClassNode clazz, MethodNode method, AbstractInsnNode location, InsnList block, IClassHierarchy hierarchy) {
+		if(block.size() == 0)
+			throw new InjectionException("Cannot outline an empty block!");
+		AbstractInsnNode first = block.getFirst();
+		List<AbstractInsnNode> ordered = Arrays.asList(block.toArray());
+		Set<AbstractInsnNode> nodes = Collections.newSetFromMap(new IdentityHashMap<>());
+		nodes.addAll(ordered);
+		method.instructions.insertBefore(location, block);
+
+		int maxLocals = method.maxLocals, maxStack = method.maxStack;
+		Frame<BasicValue>[] frames;
+		try {
+			checkBlock(method, nodes);
+			for(AbstractInsnNode cur : ordered) {
+				if(cur instanceof VarInsnNode)
+					method.maxLocals = Math.max(method.maxLocals, ((VarInsnNode) cur).var + 2);
+				else if(cur instanceof IincInsnNode)
+					method.maxLocals = Math.max(method.maxLocals, ((IincInsnNode) cur).var + 1);
+			}
+			method.maxStack += nodes.size() * 2; //an upper bound, we can't know it yet
+			frames = new Analyzer<>(new TypeInterpreter(hierarchy)).analyze(clazz.name, method);
+		} catch(AnalyzerException | InjectionException e) {
+			for(AbstractInsnNode cur : ordered)
+				method.instructions.remove(cur);
+			method.maxLocals = maxLocals;
+			method.maxStack = maxStack;
+			if(e instanceof InjectionException) throw (InjectionException) e;
+			throw new InjectionException("Failed to analyze " + method.name + " for outlining!", e);
+		}
+
+		Frame<BasicValue> entry = frames[method.instructions.indexOf(first)];
+		Frame<BasicValue> exit = frames[method.instructions.indexOf(location)];
+		if(entry == null || exit == null)
+			throw new InjectionException("Cannot outline a block placed in unreachable code!");
+
+		//find out how deep into the stack the block reaches, and how much it leaves on it
+		int lowest = entry.getStackSize(), highest = 0;
+		for(AbstractInsnNode cur = first; cur != location; cur = cur.getNext()) {
+			Frame<BasicValue> frame = frames[method.instructions.indexOf(cur)];
+			if(frame == null) continue;
+			lowest = Math.min(lowest, frame.getStackSize() - valuesRead(cur, frame));
+		}
+		lowest = Math.min(lowest, exit.getStackSize());
+		int inputs = entry.getStackSize() - lowest;
+		int outputs = exit.getStackSize() - lowest;
+		if(outputs > 1)
+			throw new InjectionException("Cannot outline a block leaving more than one value on the stack!");
+		for(AbstractInsnNode cur = first; cur != location; cur = cur.getNext()) {
+			Frame<BasicValue> frame = frames[method.instructions.indexOf(cur)];
+			if(frame != null) highest = Math.max(highest, slotsAbove(frame, lowest));
+		}
+		highest = Math.max(highest, slotsAbove(exit, lowest));
+
+		//find out which locals are read by the block, and remap the others
+		List<Type> params = new ArrayList<>();
+		for(int i = lowest; i < entry.getStackSize(); i++)
+			params.add(TypeInterpreter.declarableType(entry.getStack(i)));
+		TreeMap<Integer, Type> liveIn = new TreeMap<>();
+		for(AbstractInsnNode cur : ordered) {
+			int var;
+			boolean store;
+			if(cur instanceof VarInsnNode) {
+				var = ((VarInsnNode) cur).var;
+				store = cur.getOpcode() >= ISTORE && cur.getOpcode() <= ASTORE;
+			} else if(cur instanceof IincInsnNode) {
+				var = ((IincInsnNode) cur).var;
+				store = true;
+			} else continue;
+			BasicValue value = entry.getLocal(var);
+			if(value == BasicValue.UNINITIALIZED_VALUE) continue; //local introduced by the block
+			if(store)
+				throw new InjectionException(String.format("Cannot outline a block writing to local %d, which is in use!", var));
+			liveIn.put(var, localType(method, location, var, value));
+		}
+
+		Map<Integer, Integer> remap = new HashMap<>();
+		int slot = 0;
+		for(Type t : params)
+			slot += t.getSize();
+		for(Map.Entry<Integer, Type> local : liveIn.entrySet()) {
+			params.add(local.getValue());
+			remap.put(local.getKey(), slot);
+			slot += local.getValue().getSize();
+		}
+		for(AbstractInsnNode cur : ordered) {
+			int var = cur instanceof VarInsnNode ? ((VarInsnNode) cur).var
+				: cur instanceof IincInsnNode ? ((IincInsnNode) cur).var : -1;
+			if(var == -1 || remap.containsKey(var)) continue;
+			remap.put(var, slot);
+			slot += cur.getOpcode() == LLOAD || cur.getOpcode() == DLOAD
+				|| cur.getOpcode() == LSTORE || cur.getOpcode() == DSTORE ? 2 : 1;
+		}
+
+		Type returnType = outputs == 1
+			? TypeInterpreter.declarableType(exit.getStack(exit.getStackSize() - 1))
+			: Type.VOID_TYPE;
+		String desc = Type.getMethodDescriptor(returnType, params.toArray(new Type[0]));
+
+		//build the helper
+		boolean itf = (clazz.access & ACC_INTERFACE) != 0;
+		int access = ACC_STATIC | ACC_SYNTHETIC | (!itf || (clazz.version & 0xFFFF) >= V9 ? ACC_PRIVATE : ACC_PUBLIC);
+		MethodNode helper = new MethodNode(access, helperName(clazz, method), desc, null, null);
+		int paramSlot = 0;
+		for(int i = 0; i < inputs; i++) {
+			Type t = params.get(i);
+			helper.instructions.add(StackUtils.load(t, paramSlot));
+			paramSlot += t.getSize();
+		}
+		for(AbstractInsnNode cur : ordered) {
+			method.instructions.remove(cur);
+			if(cur.getType() == AbstractInsnNode.FRAME) continue;
+			if(cur instanceof VarInsnNode)
+				((VarInsnNode) cur).var = remap.get(((VarInsnNode) cur).var);
+			else if(cur instanceof IincInsnNode)
+				((IincInsnNode) cur).var = remap.get(((IincInsnNode) cur).var);
+			helper.instructions.add(cur);
+		}
+		helper.instructions.add(StackUtils.returnValue(returnType));
+		helper.maxLocals = slot;
+		helper.maxStack = Math.max(highest, returnType.getSize());
+		clazz.methods.add(helper);
+
+		//replace the block with the call
+		InsnSequence call = new InsnSequence();
+		for(Map.Entry<Integer, Type> local : liveIn.entrySet())
+			call.add(StackUtils.load(local.getValue(), local.getKey()));
+		call.add(new MethodInsnNode(INVOKESTATIC, clazz.name, helper.name, helper.desc, itf));
+		method.instructions.insertBefore(location, call);
+		method.maxLocals = maxLocals;
+		method.maxStack = maxStack + slot + returnType.getSize();
+		if(method.localVariables != null)
+			method.localVariables.removeIf(v -> nodes.contains(v.start) || nodes.contains(v.end));
+		return helper;
+	}
+
+	/**
+	 * Makes sure that control flow never enters or leaves the block through
+	 * anything but its first and last instruction.
+	 * @param method the {@link MethodNode} containing the block
+	 * @param nodes the nodes of the block
+	 * @throws InjectionException if the check fails
+	 */
+	private static void checkBlock(MethodNode method, Set<AbstractInsnNode> nodes) {
+		for(AbstractInsnNode cur : method.instructions) {
+			boolean inside = nodes.contains(cur);
+			List<LabelNode> targets = new ArrayList<>();
+			if(cur instanceof JumpInsnNode)
+				targets.add(((JumpInsnNode) cur).label);
+			else if(cur instanceof TableSwitchInsnNode) {
+				targets.add(((TableSwitchInsnNode) cur).dflt);
+				targets.addAll(((TableSwitchInsnNode) cur).labels);
+			} else if(cur instanceof LookupSwitchInsnNode) {
+				targets.add(((LookupSwitchInsnNode) cur).dflt);
+				targets.addAll(((LookupSwitchInsnNode) cur).labels);
+			} else if(inside) {
+				int opcode = cur.getOpcode();
+				if((opcode >= IRETURN && opcode <= RETURN) || opcode == RET)
+					throw new InjectionException("Cannot outline a block returning from the method!");
+			}
+			for(LabelNode target : targets)
+				if(inside != nodes.contains(target))
+					throw new InjectionException("Cannot outline a block with jumps crossing its boundaries!");
+			if(inside && cur.getOpcode() == JSR)
+				throw new InjectionException("Cannot outline a block containing subroutines!");
+		}
+		for(TryCatchBlockNode tcb : method.tryCatchBlocks)
+			if(nodes.contains(tcb.start) || nodes.contains(tcb.end) || nodes.contains(tcb.handler))
+				throw new InjectionException("Cannot outline a block containing exception handlers!");
+	}
+
+	/**
+	 * Finds the type a local should be passed to the helper as. Debug information is
+	 * preferred when available, as it's more accurate than what the analysis can tell.
+	 * @param method the {@link MethodNode} containing the local
+	 * @param location the node before which the block is inserted
+	 * @param var the index of the local
+	 * @param value the value of the local according to the analysis
+	 * @return the type of the local
+	 */
+	private static Type localType(MethodNode method, AbstractInsnNode location, int var, BasicValue value) {
+		if(method.localVariables != null && value.isReference()) {
+			int index = method.instructions.indexOf(location);
+			for(LocalVariableNode local : method.localVariables)
+				if(local.index == var
+					&& method.instructions.indexOf(local.start) < index
+					&& method.instructions.indexOf(local.end) >= index)
+					return Type.getType(local.desc);
+		}
+		return TypeInterpreter.declarableType(value);
+	}
+
+	/**
+	 * Picks a name for the helper that doesn't clash with other methods of the class.
+	 * @param clazz the {@link ClassNode} the helper is going to be added to
+	 * @param method the {@link MethodNode} the block comes from
+	 * @return the name
+	 */
+	private static String helperName(ClassNode clazz, MethodNode method) {
+		String base = method.name.replace("<", "").replace(">", "") + "$lll$outlined$";
+		Set<String> names = new HashSet<>();
+		for(MethodNode m : clazz.methods)
+			names.add(m.name);
+		int i = 0;
+		while(names.contains(base + i)) i++;
+		return base + i;
+	}
+
+	/**
+	 * Counts how many stack slots above a given depth are occupied in a frame.
+	 * @param frame the {@link Frame} to check
+	 * @param depth the depth, as a number of values
+	 * @return the number of slots
+	 */
+	private static int slotsAbove(Frame<BasicValue> frame, int depth) {
+		int slots = 0;
+		for(int i = depth; i < frame.getStackSize(); i++)
+			slots += frame.getStack(i).getSize();
+		return slots;
+	}
+
+	/**
+	 * Finds out how many values an instruction reads from the top of the stack.
+	 * @param insn the instruction
+	 * @param frame the {@link Frame} before the execution of the instruction
+	 * @return the number of values read, not to be confused with the number of slots
+	 */
+	static int valuesRead(AbstractInsnNode insn, Frame<BasicValue> frame) {
+		int opcode = insn.getOpcode();
+		switch(opcode) {
+			case -1:
+			case NOP: case ACONST_NULL: case ICONST_M1: case ICONST_0: case ICONST_1: case ICONST_2:
+			case ICONST_3: case ICONST_4: case ICONST_5: case LCONST_0: case LCONST_1: case FCONST_0:
+			case FCONST_1: case FCONST_2: case DCONST_0: case DCONST_1: case BIPUSH: case SIPUSH: case LDC:
+			case ILOAD: case LLOAD: case FLOAD: case DLOAD: case ALOAD: case IINC: case GOTO: case JSR:
+			case RET: case RETURN: case GETSTATIC: case NEW:
+				return 0;
+			case IALOAD: case LALOAD: case FALOAD: case DALOAD: case AALOAD: case BALOAD: case CALOAD: case SALOAD:
+			case SWAP: case DUP_X1: case PUTFIELD:
+				return 2;
+			case IASTORE: case LASTORE: case FASTORE: case DASTORE: case AASTORE: case BASTORE: case CASTORE: case SASTORE:
+				return 3;
+			case POP2: case DUP2:
+				return topSize(frame, 0) == 2 ? 1 : 2;
+			case DUP_X2:
+				return topSize(frame, 1) == 2 ? 2 : 3;
+			case DUP2_X1:
+				return topSize(frame, 0) == 2 ? 2 : 3;
+			case DUP2_X2:
+				if(topSize(frame, 0) == 2)
+					return topSize(frame, 1) == 2 ? 2 : 3;
+				return topSize(frame, 2) == 2 ? 3 : 4;
+			case INVOKEVIRTUAL: case INVOKESPECIAL: case INVOKEINTERFACE:
+				return Type.getArgumentTypes(((MethodInsnNode) insn).desc).length + 1;
+			case INVOKESTATIC:
+				return Type.getArgumentTypes(((MethodInsnNode) insn).desc).length;
+			case INVOKEDYNAMIC:
+				return Type.getArgumentTypes(((InvokeDynamicInsnNode) insn).desc).length;
+			case MULTIANEWARRAY:
+				return ((MultiANewArrayInsnNode) insn).dims;
+			default:
+				if(opcode >= IADD && opcode <= DREM) return 2;
+				if(opcode >= ISHL && opcode <= LXOR) return 2;
+				if(opcode >= LCMP && opcode <= DCMPG) return 2;
+				if(opcode >= IF_ICMPEQ && opcode <= IF_ACMPNE) return 2;
+				return 1; //everything else reads a single value
+		}
+	}
+
+	/**
+	 * Gets the size of a value on the stack.
+	 * @param frame the {@link Frame} to check
+	 * @param depth how far from the top the value is, 0 being the top
+	 * @return the size of the value
+	 */
+	private static int topSize(Frame<BasicValue> frame, int depth) {
+		return frame.getStack(frame.getStackSize() - 1 - depth).getSize();
+	}
+}
@@ -0,0 +1,553 @@
+package ftbsc.lll.utils;
+
+import ftbsc.lll.utils.PatternMatcher.Alternation;
+import ftbsc.lll.utils.PatternMatcher.Element;
+import ftbsc.lll.utils.PatternMatcher.Repetition;
+import ftbsc.lll.utils.PatternMatcher.Sequence;
+import ftbsc.lll.utils.PatternMatcher.Step;
+import ftbsc.lll.utils.analysis.MethodAnalysis;
+import ftbsc.lll.utils.analysis.OpcodeSummary;
+import org.objectweb.asm.tree.AbstractInsnNode;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+
+/**
+ * Searches for the pattern of a {@link PatternMatcher}.
+ * The pattern is first turned into a position automaton, with one position for
+ * each step (steps which may repeat are copied as needed). Sets of positions are
+ * then built into the states of a DFA as searches reach them, and kept for later
+ * searches. States keep their positions in order of preference, which is how
+ * earlier alternatives and greedy or lazy repetitions are honoured, and a search
+ * never goes back over the nodes it has seen: a forward pass finds where the
+ * preferred match ends, then a backward pass over the reversed automaton finds
+ * where it starts.
+ */
+class PatternAutomaton {
+	/**
+	 * Marks the end of the pattern, or of a fragment, in follow lists.
+	 */
+	private static final int END = -1;
+
+	/**
+	 * Marks, in first lists, that a fragment may match nothing.
+	 */
+	private static final int EMPTY = -2;
+
+	/**
+	 * The number of node classes: one per opcode, then one per type of pseudo-instruction.
+	 */
+	private static final int CLASSES = 256 + 16;
+
+	/**
+	 * The maximum number of steps whose results may be part of a transition key.
+	 */
+	private static final int MAX_RESULTS = 55;
+
+	/**
+	 * The maximum number of states kept.
+	 */
+	private static final int MAX_STATES = 4096;
+
+	/**
+	 * Flags states searching for a match start on each node they consume.
+	 */
+	private static final int UNANCHORED = 1;
+
+	/**
+	 * Flags states reached by ending a match.
+	 */
+	private static final int MATCHED = 2;
+
+	/**
+	 * Flags states of the reversed automaton.
+	 */
+	private static final int BACKWARD = 4;
+
+	/**
+	 * The step of each position.
+	 */
+	final Step[] steps;
+
+	/**
+	 * The positions a match may start with, by preference.
+	 */
+	private final int[] first;
+
+	/**
+	 * The positions which may follow each position, by preference, with {@link #END}
+	 * where the match may end.
+	 */
+	private final int[][] follow;
+
+	/**
+	 * The positions which may precede each position.
+	 */
+	private final int[][] preceding;
+
+	/**
+	 * Whether each position may start a match.
+	 */
+	private final boolean[] initial;
+
+	/**
+	 * Whether the step of each position only depends on the opcode.
+	 */
+	private final boolean[] pure;
+
+	/**
+	 * Whether LABEL instructions are skipped within a match.
+	 */
+	private final boolean ignoreLabels;
+
+	/**
+	 * Whether FRAME instructions are skipped within a match.
+	 */
+	private final boolean ignoreFrames;
+
+	/**
+	 * Whether LINENUMBER instructions are skipped within a match.
+	 */
+	private final boolean ignoreLineNumbers;
+
+	/**
+	 * The states built so far, in both directions.
+	 */
+	private final ConcurrentMap<State, State> states = new ConcurrentHashMap<>();
+
+	/**
+	 * The state searching for a match, before any node.
+	 */
+	private final State searching;
+
+	/**
+	 * The state which has found nothing and may no longer start a match.
+	 */
+	private final State dead;
+
+	/**
+	 * The state of a match anchored at the next node.
+	 */
+	private final State anchored;
+
+	/**
+	 * The state of a backward pass, starting from the end of a match.
+	 */
+	private final State ending;
+
+	/**
+	 * The steps built during construction.
+	 */
+	private final List<Step> positions = new ArrayList<>();
+
+	/**
+	 * The follow lists built during construction.
+	 */
+	private final List<List<Integer>> follows = new ArrayList<>();
+
+	/**
+	 * Builds the automaton of a pattern.
+	 * @param elements the elements of the pattern, in order
+	 * @param ignoreLabels whether LABEL instructions are skipped within a match
+	 * @param ignoreFrames whether FRAME instructions are skipped within a match
+	 * @param ignoreLineNumbers whether LINENUMBER instructions are skipped within a match
+	 */
+	PatternAutomaton(List<Element> elements, boolean ignoreLabels, boolean ignoreFrames, boolean ignoreLineNumbers) {
+		this.ignoreLabels = ignoreLabels;
+		this.ignoreFrames = ignoreFrames;
+		this.ignoreLineNumbers = ignoreLineNumbers;
+		List<Integer> first = this.compile(new Sequence(elements));
+		first.remove((Integer) EMPTY); //matches are never empty
+		int size = this.positions.size();
+		this.steps = this.positions.toArray(new Step[0]);
+		this.first = toArray(first);
+		this.follow = new int[size][];
+		this.initial = new boolean[size];
+		this.pure = new boolean[size];
+		List<List<Integer>> preceding = new ArrayList<>();
+		for(int i = 0; i < size; i++) preceding.add(new ArrayList<>());
+		for(int p = 0; p < size; p++) {
+			this.follow[p] = toArray(this.follows.get(p));
+			this.pure[p] = this.steps[p].isPure();
+			for(int q : this.follow[p])
+				if(q != END) preceding.get(q).add(p);
+		}
+		for(int p : this.first)
+			this.initial[p] = true;
+		this.preceding = new int[size][];
+		List<Integer> last = new ArrayList<>();
+		for(int p = 0; p < size; p++) {
+			this.preceding[p] = toArray(preceding.get(p));
+			if(this.follows.get(p).contains(END)) last.add(p << 1);
+		}
+		this.positions.clear();
+		this.follows.clear();
+		this.searching = this.intern(new State(new int[0], UNANCHORED));
+		this.dead = this.intern(new State(new int[0], 0));
+		int[] anchored = new int[this.first.length];
+		for(int i = 0; i < anchored.length; i++)
+			anchored[i] = this.first[i] << 1;
+		this.anchored = this.intern(new State(anchored, 0));
+		this.ending = this.intern(new State(toArray(last), BACKWARD));
+	}
+
+	/**
+	 * Compiles an element, adding its positions to those built so far.
+	 * @param element the {@link Element}
+	 * @return the positions it may start with, by preference, and {@link #EMPTY}
+	 *         where it may match nothing
+	 */
+	private List<Integer> compile(Element element) {
+		if(element instanceof Step) {
+			int pos = this.positions.size();
+			this.positions.add((Step) element);
+			this.follows.add(new ArrayList<>(Collections.singletonList(END)));
+			return new ArrayList<>(Collections.singletonList(pos));
+		}
+
+		if(element instanceof Sequence) {
+			List<Integer> first = new ArrayList<>(Collections.singletonList(EMPTY));
+			int start = this.positions.size();
+			for(Element e : ((Sequence) element).elements) {
+				int mid = this.positions.size();
+				List<Integer> next = this.compile(e);
+				List<Integer> exits = substitute(next, EMPTY, Collections.singletonList(END));
+				for(int p = start; p < mid; p++)
+					this.follows.set(p, substitute(this.follows.get(p), END, exits));
+				first = substitute(first, EMPTY, next);
+			}
+			return first;
+		}
+
+		if(element instanceof Alternation) {
+			List<Integer> first = new ArrayList<>();
+			for(Element e : ((Alternation) element).alternatives)
+				first.addAll(this.compile(e));
+			return distinct(first);
+		}
+
+		Repetition rep = (Repetition) element;
+		if(rep.min > 0) //unroll the mandatory repetitions
+			return this.compile(new Sequence(Arrays.asList(rep.element,
+				new Repetition(rep.element, rep.min - 1, rep.max < 0 ? -1 : rep.max - 1, rep.lazy))));
+		if(rep.max == 0)
+			return this.compile(new Sequence(Collections.emptyList()));
+		if(rep.max > 1) //nest the optional ones, so that each is only tried after the previous
+			return this.compile(new Repetition(new Sequence(Arrays.asList(rep.element,
+				new Repetition(rep.element, 0, rep.max - 1, rep.lazy))), 0, 1, rep.lazy));
+
+		int start = this.positions.size();
+		List<Integer> first = this.compile(rep.element);
+		if(rep.max < 0) { //loop back from the end to the start
+			first.remove((Integer) EMPTY);
+			List<Integer> exits = new ArrayList<>(first);
+			if(rep.lazy) exits.add(0, END);
+			else exits.add(END);
+			for(int p = start; p < this.positions.size(); p++)
+				this.follows.set(p, substitute(this.follows.get(p), END, exits));
+		}
+		if(rep.lazy) first.add(0, EMPTY);
+		else first.add(EMPTY);
+		return distinct(first);
+	}
+
+	/**
+	 * Replaces a marker in a list of positions, keeping only the first occurrence
+	 * of each.
+	 * @param list the list
+	 * @param marker the marker to replace
+	 * @param replacement the positions to put in its place
+	 * @return the resulting list
+	 */
+	private static List<Integer> substitute(List<Integer> list, int marker, List<Integer> replacement) {
+		List<Integer> res = new ArrayList<>();
+		for(int x : list) {
+			if(x == marker) res.addAll(replacement);
+			else res.add(x);
+		}
+		return distinct(res);
+	}
+
+	/**
+	 * Removes the repeated positions of a list, keeping the first occurrence of each.
+	 * @param list the list
+	 * @return the resulting list
+	 */
+	private static List<Integer> distinct(List<Integer> list) {
+		return new ArrayList<>(new LinkedHashSet<>(list));
+	}
+
+	/**
+	 * @param list a list of integers
+	 * @return the array with the same elements
+	 */
+	private static int[] toArray(List<Integer> list) {
+		int[] res = new int[list.size()];
+		for(int i = 0; i < res.length; i++)
+			res[i] = list.get(i);
+		return res;
+	}
+
+	/**
+	 * @return the step every match starts with, or null if there are several
+	 */
+	Step getInitialStep() {
+		return this.first.length == 1 ? this.steps[this.first[0]] : null;
+	}
+
+	/**
+	 * Searches for the preferred match, which is the one starting first and, among
+	 * those, the one a backtracking search would find first.
+	 * @param analysis the {@link MethodAnalysis} of the method, null if not needed
+	 * @param node the node to start the search on
+	 * @param end the last node a match may start on, null to go on until the end
+	 * @param within the nodes a match may contain, null if there are no restrictions
+	 * @param reverse whether the search goes towards the start of the method
+	 * @return the first and last node of the match, in search order, or null if there is none
+	 */
+	AbstractInsnNode[] find(MethodAnalysis analysis, AbstractInsnNode node, AbstractInsnNode end,
+	                        Predicate<AbstractInsnNode> within, boolean reverse) {
+		State state = this.searching;
+		AbstractInsnNode last = null;
+		boolean pastEnd = false;
+		for(AbstractInsnNode cur = node; cur != null; cur = reverse ? cur.getPrevious() : cur.getNext()) {
+			if(pastEnd) state = state.anchored();
+			if(within == null || within.test(cur)) state = this.next(state, cur, analysis);
+			else state = (state.flags & UNANCHORED) != 0 ? this.searching : this.dead;
+			if((state.flags & MATCHED) != 0) last = cur;
+			if(state.codes.length == 0 && (state.flags & UNANCHORED) == 0) break;
+			if(cur == end) pastEnd = true;
+		}
+		if(last == null) return null;
+
+		//the match ends on the last node found, go back to find out where it starts
+		state = this.ending;
+		AbstractInsnNode first = null;
+		for(AbstractInsnNode cur = last; cur != null; cur = reverse ? cur.getNext() : cur.getPrevious()) {
+			if(within != null && !within.test(cur)) break;
+			state = this.next(state, cur, analysis);
+			if((state.flags & MATCHED) != 0) first = cur;
+			if(state.codes.length == 0 || cur == node) break;
+		}
+		return new AbstractInsnNode[] { first, last };
+	}
+
+	/**
+	 * Tries to match the pattern on the nodes starting exactly from a given one.
+	 * @param analysis the {@link MethodAnalysis} of the method, null if not needed
+	 * @param node the node the match has to start from
+	 * @param reverse whether the match goes towards the start of the method
+	 * @return the last node of the match, or null if there is none
+	 */
+	AbstractInsnNode matchFrom(MethodAnalysis analysis, AbstractInsnNode node, boolean reverse) {
+		State state = this.anchored;
+		AbstractInsnNode last = null;
+		for(AbstractInsnNode cur = node; cur != null && state.codes.length != 0; cur = reverse ? cur.getPrevious() : cur.getNext()) {
+			state = this.next(state, cur, analysis);
+			if((state.flags & MATCHED) != 0) last = cur;
+		}
+		return last;
+	}
+
+	/**
+	 * Gets the state following another on a node, building it if needed.
+	 * @param state the current {@link State}
+	 * @param node the node
+	 * @param analysis the {@link MethodAnalysis} of the method, null if not needed
+	 * @return the next {@link State}
+	 */
+	private State next(State state, AbstractInsnNode node, MethodAnalysis analysis) {
+		int opcode = node.getOpcode();
+		int cls = opcode >= 0 ? opcode : 256 + node.getType();
+		if(state.impure.length == 0) {
+			State res = state.byClass[cls];
+			if(res == null) state.byClass[cls] = res = this.step(state, cls, 0L, node, analysis);
+			return res;
+		}
+		if(state.impure.length > MAX_RESULTS)
+			return this.step(state, cls, 0L, node, analysis);
+		long results = 0L;
+		for(int i = 0; i < state.impure.length; i++)
+			if(this.steps[state.list[state.impure[i]] >> 1].test(analysis, node))
+				results |= 1L << i;
+		Long key = results << 9 | cls;
+		State res = state.byResults.get(key);
+		if(res == null) {
+			res = this.step(state, cls, results, node, analysis);
+			state.byResults.putIfAbsent(key, res);
+		}
+		return res;
+	}
+
+	/**
+	 * Builds the state following another on a node.
+	 * @param state the current {@link State}
+	 * @param cls the class of the node
+	 * @param results the results of the steps which do not only depend on the opcode,
+	 *                in the order they appear in the state
+	 * @param node the node
+	 * @param analysis the {@link MethodAnalysis} of the method, null if not needed
+	 * @return the next {@link State}
+	 */
+	private State step(State state, int cls, long results, AbstractInsnNode node, MethodAnalysis analysis) {
+		boolean backward = (state.flags & BACKWARD) != 0;
+		boolean ignorable = cls >= 256 && (ignoreLabels && cls == 256 + AbstractInsnNode.LABEL
+			|| ignoreFrames && cls == 256 + AbstractInsnNode.FRAME
+			|| ignoreLineNumbers && cls == 256 + AbstractInsnNode.LINE);
+		Set<Integer> codes = new LinkedHashSet<>();
+		boolean matched = false;
+		for(int i = 0, bit = 0; i < state.list.length; i++) {
+			int code = state.list[i], pos = code >> 1;
+			boolean inside = (code & 1) != 0, matches;
+			if(this.pure[pos]) {
+				long[] opcodes = this.steps[pos].opcodes;
+				matches = opcodes == null || OpcodeSummary.contains(opcodes, cls < 256 ? cls : -1);
+			} else if(state.impure.length > MAX_RESULTS) matches = this.steps[pos].test(analysis, node);
+			else matches = (results & 1L << bit++) != 0;
+
+			if(backward) {
+				if(ignorable) { //only the first node of a match may be an ignored one
+					if(inside) codes.add(code);
+					if(matches && this.initial[pos]) matched = true;
+				} else if(matches) {
+					for(int q : this.preceding[pos]) codes.add(q << 1 | 1);
+					if(this.initial[pos]) matched = true;
+				}
+			} else if(inside && ignorable) {
+				codes.add(code);
+			} else if(matches) {
+				for(int q : this.follow[pos]) {
+					if(q == END) {
+						matched = true;
+						break;
+					} else codes.add(q << 1 | 1);
+				}
+				if(matched) break; //the rest is less preferable than this match
+			}
+		}
+		int flags = backward ? BACKWARD : (state.flags & UNANCHORED) != 0 && !matched ? UNANCHORED : 0;
+		if(matched) flags |= MATCHED;
+		int[] res = new int[codes.size()];
+		int i = 0;
+		for(int code : codes) res[i++] = code;
+		return this.intern(new State(res, flags));
+	}
+
+	/**
+	 * Gets the stored copy of a state, storing it if there is room.
+	 * @param state the {@link State}
+	 * @return the stored copy, or the state itself
+	 */
+	private State intern(State state) {
+		State res = this.states.get(state);
+		if(res != null) return res;
+		if(this.states.size() >= MAX_STATES) return state;
+		res = this.states.putIfAbsent(state, state);
+		return res == null ? state : res;
+	}
+
+	/**
+	 * A state of the DFA: the positions which may still lead to a match, by
+	 * preference, and the transitions found so far.
+	 * Positions are encoded as codes, shifted left by one and with the lowest bit
+	 * set if the match already went past its first node.
+	 */
+	private final class State {
+		/**
+		 * The codes of the positions, by preference.
+		 */
+		private final int[] codes;
+
+		/**
+		 * The flags of the state.
+		 */
+		private final int flags;
+
+		/**
+		 * The cached hash code.
+		 */
+		private final int hash;
+
+		/**
+		 * The codes to try on the next node: those of the state, followed by the
+		 * start of a new match if the state is searching for one.
+		 */
+		private final int[] list;
+
+		/**
+		 * The indices, within the list, of the positions whose steps do not only
+		 * depend on the opcode.
+		 */
+		private final int[] impure;
+
+		/**
+		 * The transitions by class of node, if all steps only depend on the opcode.
+		 */
+		private final State[] byClass;
+
+		/**
+		 * The transitions by class of node and results of the other steps.
+		 */
+		private final ConcurrentMap<Long, State> byResults;
+
+		/**
+		 * The same state, no longer searching for a new match.
+		 */
+		private State anchored;
+
+		/**
+		 * Builds a state.
+		 * @param codes the codes of the positions, by preference
+		 * @param flags the flags of the state
+		 */
+		private State(int[] codes, int flags) {
+			this.codes = codes;
+			this.flags = flags;
+			this.hash = Arrays.hashCode(codes) * 31 + flags;
+			if((flags & UNANCHORED) != 0) {
+				Set<Integer> list = new LinkedHashSet<>();
+				for(int code : codes) list.add(code);
+				for(int pos : PatternAutomaton.this.first) list.add(pos << 1);
+				this.list = toArray(new ArrayList<>(list));
+			} else this.list = codes;
+			List<Integer> impure = new ArrayList<>();
+			for(int i = 0; i < this.list.length; i++)
+				if(!PatternAutomaton.this.pure[this.list[i] >> 1]) impure.add(i);
+			this.impure = toArray(impure);
+			this.byClass = this.impure.length == 0 ? new State[CLASSES] : null;
+			this.byResults = this.impure.length == 0 ? null : new ConcurrentHashMap<>();
+		}
+
+		/**
+		 * @return the same state, no longer searching for a new match
+		 */
+		private State anchored() {
+			if((this.flags & UNANCHORED) == 0) return this;
+			if(this.anchored == null)
+				this.anchored = PatternAutomaton.this.intern(new State(this.codes, this.flags & ~UNANCHORED));
+			return this.anchored;
+		}
+
+		/**
+		 * @return the cached hash code
+		 */
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		/**
+		 * @param obj another object
+		 * @return whether it's a {@link State} with the same codes and flags
+		 */
+		@Override
+		public boolean equals(Object obj) {
+			if(this == obj) return true;
+			if(!(obj instanceof State)) return false;
+			State other = (State) obj;
+			return this.hash == other.hash && this.flags == other.flags && Arrays.equals(this.codes, other.codes);
+		}
+	}
+}
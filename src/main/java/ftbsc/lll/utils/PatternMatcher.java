@@ -1,21 +1,75 @@
 package ftbsc.lll.utils;
 
 import ftbsc.lll.exceptions.PatternNotFoundException;
-import org.objectweb.asm.tree.AbstractInsnNode;
-import org.objectweb.asm.tree.MethodNode;
+import ftbsc.lll.proxies.AbstractProxy;
+import ftbsc.lll.proxies.impl.FieldProxy;
+import ftbsc.lll.proxies.impl.MethodProxy;
+import ftbsc.lll.proxies.impl.TypeProxy;
+import ftbsc.lll.utils.analysis.*;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.SourceValue;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
 import java.util.function.Predicate;
 
 /**
  * Describes a pattern to match on a list of ASM instructions.
+ * Besides plain sequences of steps, patterns may have optional and repeated parts
+ * and alternatives, much like regular expressions. They are searched by a DFA
+ * built as needed, which never goes back over the instructions it has seen.
+ * Patterns may also check the types and sources of the values on the stack and
+ * in the local variables: those rely on the {@link MethodAnalysis} of the method,
+ * which is shared with any other pattern searching it. The same analysis allows
+ * searching within a single {@link BasicBlock} or {@link Loop}.
+ * Steps may declare which opcodes they can match: methods whose {@link OpcodeSummary}
+ * shows they lack any of them are rejected without being searched. Steps matching a
+ * reference to a member, a type or a constant also use the {@link ReferenceIndex} of
+ * the method: to reject it if the reference is missing, and to jump straight to the
+ * places where it's used when the pattern starts with them.
  */
 public class PatternMatcher {
 	/**
-	 * The list of predicates to match.
+	 * The automaton searching for the pattern, null if the pattern is empty.
 	 */
-	private final List<Predicate<AbstractInsnNode>> predicates;
+	private final PatternAutomaton automaton;
+
+	/**
+	 * The steps every match goes through which look up their nodes in the {@link ReferenceIndex}.
+	 */
+	private final List<Step> indexed = new ArrayList<>();
+
+	/**
+	 * Whether any of the steps has a condition on the frame.
+	 */
+	private final boolean needsAnalysis;
+
+	/**
+	 * For each step every match goes through, the set of opcodes it may match:
+	 * a method must contain at least one opcode of each set to contain a match.
+	 */
+	private final List<long[]> required = new ArrayList<>();
+
+	/**
+	 * The minimum number of method instructions a method must contain to contain a match.
+	 */
+	private final int minMethodInsns;
+
+	/**
+	 * The minimum number of field instructions a method must contain to contain a match.
+	 */
+	private final int minFieldInsns;
+
+	/**
+	 * The minimum number of type instructions a method must contain to contain a match.
+	 */
+	private final int minTypeInsns;
 
 	/**
 	 * Whether pattern search should be done from the end.
@@ -40,15 +94,36 @@ public class PatternMatcher {
 	/**
 	 * Private constructor because a PatternMatcher should only ever be initialized
 	 * through the builder.
-	 * @param predicates the list of predicates to match
+	 * @param elements the list of elements to match
 	 * @param reverse search direction
 	 * @param ignoreLabels whether LABEL instructions should be ignored
 	 * @param ignoreFrames whether FRAME instructions should be ignored
 	 * @param ignoreLineNumbers whether LINENUMBER instructions should be ignored
 	 */
-	private PatternMatcher(List<Predicate<AbstractInsnNode>> predicates, boolean reverse,
+	private PatternMatcher(List<Element> elements, boolean reverse,
 	                       boolean ignoreLabels, boolean ignoreFrames, boolean ignoreLineNumbers) {
-		this.predicates = predicates;
+		this.automaton = elements.isEmpty() ? null
+			: new PatternAutomaton(elements, ignoreLabels, ignoreFrames, ignoreLineNumbers);
+		boolean needsAnalysis = false;
+		if(this.automaton != null)
+			for(Step step : this.automaton.steps)
+				if(step.condition != null) needsAnalysis = true;
+		List<Step> mandatory = new ArrayList<>();
+		for(Element element : elements)
+			element.collectMandatory(mandatory);
+		int methods = 0, fields = 0, types = 0;
+		for(Step step : mandatory) {
+			if(step.lookup != null) this.indexed.add(step);
+			if(step.opcodes == null) continue;
+			this.required.add(step.opcodes);
+			if(OpcodeSummary.isSubset(step.opcodes, OpcodeSummary.METHOD_INSNS)) methods++;
+			else if(OpcodeSummary.isSubset(step.opcodes, OpcodeSummary.FIELD_INSNS)) fields++;
+			else if(OpcodeSummary.isSubset(step.opcodes, OpcodeSummary.TYPE_INSNS)) types++;
+		}
+		this.needsAnalysis = needsAnalysis;
+		this.minMethodInsns = methods;
+		this.minFieldInsns = fields;
+		this.minTypeInsns = types;
 		this.reverse = reverse;
 		this.ignoreLabels = ignoreLabels;
 		this.ignoreFrames = ignoreFrames;
@@ -68,47 +143,329 @@ public class PatternMatcher {
 	 * @return the InsnSequence object representing the matched pattern
 	 */
 	public InsnSequence find(MethodNode node) {
-		return find(reverse ? node.instructions.getLast() : node.instructions.getFirst());
+		Step initial = automaton == null ? null : automaton.getInitialStep();
+		if(initial == null || initial.lookup == null)
+			return find(node, reverse ? node.instructions.getLast() : node.instructions.getFirst());
+		MethodAnalysis analysis = prepare(node, needsAnalysis);
+		List<? extends AbstractInsnNode> candidates = initial.lookup.apply(analysis.getReferences());
+		for(int i = 0; i < candidates.size(); i++) {
+			AbstractInsnNode first = candidates.get(reverse ? candidates.size() - 1 - i : i);
+			if(first.getPrevious() == null && first != node.instructions.getFirst())
+				continue; //removed since the index was built
+			AbstractInsnNode last = automaton.matchFrom(analysis, first, reverse);
+			if(last != null) return reverse ? matched(last, first) : matched(first, last);
+		}
+		throw new PatternNotFoundException("Failed to find pattern!");
 	}
 
 	/**
 	 * Tries to match the given pattern starting from a given node.
+	 * Patterns with conditions on the frame cannot be searched this way, since the
+	 * method the node belongs to is unknown.
 	 * @param node the node to start the search on
 	 * @return the {@link InsnSequence} object representing the matched pattern
+	 * @throws IllegalStateException if the pattern has conditions on the frame
 	 */
 	public InsnSequence find(AbstractInsnNode node) {
-		if(node != null) {
-			AbstractInsnNode first, last;
-			for(AbstractInsnNode cur = node; cur != null; cur = reverse ? cur.getPrevious() : cur.getNext()) {
-				if(predicates.size() == 0) return new InsnSequence(cur); //match whatever
-				first = cur;
-				last = cur;
-				for(int match = 0; last != null && match < predicates.size(); last = reverse ? last.getPrevious() : last.getNext()) {
-					if(match != 0) {
-						if(ignoreLabels && last.getType() == AbstractInsnNode.LABEL) continue;
-						if(ignoreFrames && last.getType() == AbstractInsnNode.FRAME) continue;
-						if(ignoreLineNumbers && last.getType() == AbstractInsnNode.LINE) continue;
-					}
-					if(!predicates.get(match).test(last)) break;
-					if(match == predicates.size() - 1) {
-						if(reverse) return new InsnSequence(last, first); //we are matching backwards
-						else return new InsnSequence(first, last);
-					} else match++;
-				}
+		if(needsAnalysis)
+			throw new IllegalStateException("This pattern checks frames: the method to search must be given!");
+		return find(null, node, null, null);
+	}
+
+	/**
+	 * Tries to match the given pattern starting from a given node of a {@link MethodNode}.
+	 * @param method the {@link MethodNode} the node belongs to
+	 * @param node the node to start the search on
+	 * @return the {@link InsnSequence} object representing the matched pattern
+	 */
+	public InsnSequence find(MethodNode method, AbstractInsnNode node) {
+		return find(prepare(method, needsAnalysis), node, null, null);
+	}
+
+	/**
+	 * Tries to match the given pattern within a {@link BasicBlock} of a {@link MethodNode}.
+	 * @param method the {@link MethodNode} the block belongs to
+	 * @param block the {@link BasicBlock}, as given by the {@link MethodAnalysis} of the method
+	 * @return the {@link InsnSequence} object representing the matched pattern
+	 */
+	public InsnSequence find(MethodNode method, BasicBlock block) {
+		MethodAnalysis analysis = prepare(method, true);
+		return find(analysis, reverse ? block.getLast() : block.getFirst(), reverse ? block.getFirst() : block.getLast(),
+			node -> analysis.getBlock(node) == block);
+	}
+
+	/**
+	 * Tries to match the given pattern within a {@link Loop} of a {@link MethodNode}.
+	 * A match may span several blocks, as long as they are all part of the loop.
+	 * @param method the {@link MethodNode} the loop belongs to
+	 * @param loop the {@link Loop}, as given by the {@link MethodAnalysis} of the method
+	 * @return the {@link InsnSequence} object representing the matched pattern
+	 */
+	public InsnSequence find(MethodNode method, Loop loop) {
+		MethodAnalysis analysis = prepare(method, true);
+		List<BasicBlock> blocks = loop.getBlocks();
+		AbstractInsnNode first = blocks.get(0).getFirst(), last = blocks.get(blocks.size() - 1).getLast();
+		return find(analysis, reverse ? last : first, reverse ? first : last,
+			node -> loop.contains(analysis.getBlock(node)));
+	}
+
+	/**
+	 * Gets the {@link MethodAnalysis} of a method to search, and checks whether it
+	 * may contain a match at all, judging by its opcodes and references.
+	 * @param method the {@link MethodNode}
+	 * @param validate whether the analysis should be fully checked against the
+	 *                 instructions, rather than only against their size and ends
+	 * @return the {@link MethodAnalysis}
+	 * @throws PatternNotFoundException if the method cannot contain a match
+	 */
+	private MethodAnalysis prepare(MethodNode method, boolean validate) {
+		MethodAnalysis analysis = MethodAnalysis.of(method);
+		if(validate) analysis.validate();
+		if(automaton != null) {
+			OpcodeSummary summary = analysis.getOpcodes();
+			boolean possible = summary.getMethodInsns() >= minMethodInsns
+				&& summary.getFieldInsns() >= minFieldInsns
+				&& summary.getTypeInsns() >= minTypeInsns;
+			for(int i = 0; possible && i < required.size(); i++)
+				possible = summary.containsAny(required.get(i));
+			if(possible && !indexed.isEmpty()) {
+				ReferenceIndex references = analysis.getReferences();
+				for(int i = 0; possible && i < indexed.size(); i++)
+					possible = !indexed.get(i).lookup.apply(references).isEmpty();
+			}
+			if(!possible) throw new PatternNotFoundException("Failed to find pattern!");
+		}
+		return analysis;
+	}
+
+	/**
+	 * Tries to match the given pattern starting from a given node.
+	 * @param analysis the {@link MethodAnalysis} of the method, null if not needed
+	 * @param node the node to start the search on
+	 * @param end the node to end the search on, null to go on until the end
+	 * @param within the nodes a match may contain, null if there are no restrictions
+	 * @return the {@link InsnSequence} object representing the matched pattern
+	 */
+	private InsnSequence find(MethodAnalysis analysis, AbstractInsnNode node, AbstractInsnNode end,
+	                          Predicate<AbstractInsnNode> within) {
+		if(automaton == null) { //match whatever
+			for(AbstractInsnNode cur = node; cur != null; cur = cur == end ? null : reverse ? cur.getPrevious() : cur.getNext())
+				if(within == null || within.test(cur)) return matched(cur, cur);
+		} else if(node != null) {
+			AbstractInsnNode[] match = automaton.find(analysis, node, end, within, reverse);
+			if(match != null) {
+				if(reverse) return matched(match[1], match[0]); //we are matching backwards
+				else return matched(match[0], match[1]);
 			}
 		}
 		throw new PatternNotFoundException("Failed to find pattern!");
 	}
 
+	/**
+	 * Builds the result of a successful match, recording it if needed.
+	 * @param first the first node of the match
+	 * @param last the last node of the match
+	 * @return the {@link InsnSequence} object representing the matched pattern
+	 */
+	private static InsnSequence matched(AbstractInsnNode first, AbstractInsnNode last) {
+		MatchRecorder.record(first, last);
+		return new InsnSequence(first, last);
+	}
+
+	/**
+	 * An element of a pattern.
+	 */
+	abstract static class Element {
+		/**
+		 * Collects the steps every match of this element goes through.
+		 * @param steps the list to add them to
+		 */
+		abstract void collectMandatory(List<Step> steps);
+	}
+
+	/**
+	 * A step of the pattern, matching a single node.
+	 */
+	static class Step extends Element {
+		/**
+		 * The predicate of steps which only check the opcode, if anything.
+		 */
+		private static final Predicate<AbstractInsnNode> ANY = i -> true;
+
+		/**
+		 * The predicate the node has to satisfy.
+		 */
+		private final Predicate<AbstractInsnNode> predicate;
+
+		/**
+		 * The opcodes the node may have, null if there are no restrictions.
+		 */
+		final long[] opcodes;
+
+		/**
+		 * Finds the nodes which may match in a {@link ReferenceIndex}, null if the
+		 * step is not about a reference.
+		 */
+		final Function<ReferenceIndex, List<? extends AbstractInsnNode>> lookup;
+
+		/**
+		 * The condition on the frame the node has to satisfy, null if there is none.
+		 */
+		final BiPredicate<MethodAnalysis, AbstractInsnNode> condition;
+
+		/**
+		 * Private constructor.
+		 * @param predicate the predicate the node has to satisfy
+		 * @param opcodes the opcodes the node may have, null if there are no restrictions
+		 * @param lookup finds the nodes which may match in a {@link ReferenceIndex}, may be null
+		 * @param condition the condition on the frame, null if there is none
+		 */
+		private Step(Predicate<AbstractInsnNode> predicate, long[] opcodes,
+		             Function<ReferenceIndex, List<? extends AbstractInsnNode>> lookup,
+		             BiPredicate<MethodAnalysis, AbstractInsnNode> condition) {
+			this.predicate = predicate;
+			this.opcodes = opcodes;
+			this.lookup = lookup;
+			this.condition = condition;
+		}
+
+		/**
+		 * Checks a node against this step.
+		 * @param analysis the {@link MethodAnalysis} of the method, null if not needed
+		 * @param node the node
+		 * @return true if the node matches
+		 */
+		boolean test(MethodAnalysis analysis, AbstractInsnNode node) {
+			return (this.opcodes == null || OpcodeSummary.contains(this.opcodes, node.getOpcode()))
+				&& this.predicate.test(node)
+				&& (this.condition == null || this.condition.test(analysis, node));
+		}
+
+		/**
+		 * @return whether the outcome only depends on the opcode of the node
+		 */
+		boolean isPure() {
+			return this.predicate == ANY && this.condition == null;
+		}
+
+		/**
+		 * @param steps the list to add this step to
+		 */
+		@Override
+		void collectMandatory(List<Step> steps) {
+			steps.add(this);
+		}
+	}
+
+	/**
+	 * A sequence of elements, matched one after the other.
+	 */
+	static class Sequence extends Element {
+		/**
+		 * The elements, in order.
+		 */
+		final List<Element> elements;
+
+		/**
+		 * Package-private constructor.
+		 * @param elements the elements, in order
+		 */
+		Sequence(List<Element> elements) {
+			this.elements = elements;
+		}
+
+		/**
+		 * @param steps the list to add the steps of all the elements to
+		 */
+		@Override
+		void collectMandatory(List<Step> steps) {
+			for(Element element : this.elements)
+				element.collectMandatory(steps);
+		}
+	}
+
+	/**
+	 * A choice between elements, earlier ones being preferred.
+	 */
+	static class Alternation extends Element {
+		/**
+		 * The alternatives, by preference.
+		 */
+		final List<Element> alternatives;
+
+		/**
+		 * Package-private constructor.
+		 * @param alternatives the alternatives, by preference
+		 */
+		Alternation(List<Element> alternatives) {
+			this.alternatives = alternatives;
+		}
+
+		/**
+		 * Does nothing, as no step is shared by all the alternatives for sure.
+		 * @param steps the list of steps
+		 */
+		@Override
+		void collectMandatory(List<Step> steps) {}
+	}
+
+	/**
+	 * An element matched several times in a row.
+	 */
+	static class Repetition extends Element {
+		/**
+		 * The repeated element.
+		 */
+		final Element element;
+
+		/**
+		 * The minimum number of repetitions.
+		 */
+		final int min;
+
+		/**
+		 * The maximum number of repetitions, negative if unbounded.
+		 */
+		final int max;
+
+		/**
+		 * Whether fewer repetitions are preferred to more.
+		 */
+		final boolean lazy;
+
+		/**
+		 * Package-private constructor.
+		 * @param element the repeated element
+		 * @param min the minimum number of repetitions
+		 * @param max the maximum number of repetitions, negative if unbounded
+		 * @param lazy whether fewer repetitions are preferred to more
+		 */
+		Repetition(Element element, int min, int max, boolean lazy) {
+			this.element = element;
+			this.min = min;
+			this.max = max;
+			this.lazy = lazy;
+		}
+
+		/**
+		 * @param steps the list to add the steps of the mandatory repetitions to
+		 */
+		@Override
+		void collectMandatory(List<Step> steps) {
+			for(int i = 0; i < this.min; i++)
+				this.element.collectMandatory(steps);
+		}
+	}
+
 	/**
 	 * The Builder object for {@link PatternMatcher}.
 	 */
 	public static class Builder {
 
 		/**
-		 * List of predicates the pattern has to match.
+		 * List of elements the pattern has to match.
 		 */
-		private final List<Predicate<AbstractInsnNode>> predicates = new ArrayList<>();
+		private final List<Element> elements = new ArrayList<>();
 
 		/**
 		 * Whether the pattern matching should proceed in reversed order.
@@ -135,7 +492,7 @@ public class PatternMatcher {
 		 * @return the built {@link PatternMatcher}
 		 */
 		public PatternMatcher build() {
-			return new PatternMatcher(predicates, reverse, ignoreLabels, ignoreFrames, ignoreLineNumbers);
+			return new PatternMatcher(new ArrayList<>(elements), reverse, ignoreLabels, ignoreFrames, ignoreLineNumbers);
 		}
 
 		/**
@@ -153,25 +510,136 @@ public class PatternMatcher {
 		 * @return the builder's state after the operation
 		 */
 		public Builder check(Predicate<AbstractInsnNode> predicate) {
-			predicates.add(predicate);
+			elements.add(new Step(predicate, null, null, null));
 			return this;
 		}
 
+		/**
+		 * Adds a custom predicate to the list, which may only match nodes with the
+		 * given opcodes. Declaring them allows methods which lack them to be skipped.
+		 * @param predicate the predicate to add
+		 * @param opcodes the opcodes the predicate may match
+		 * @return the builder's state after the operation
+		 * @throws IllegalArgumentException if an opcode is not between 0 and 255
+		 */
+		public Builder check(Predicate<AbstractInsnNode> predicate, int... opcodes) {
+			elements.add(new Step(predicate, OpcodeSummary.set(opcodes), null, null));
+			return this;
+		}
+
+		/**
+		 * Adds a condition to the last predicate, to be checked against the
+		 * {@link MethodAnalysis} of the method being searched.
+		 * If there are no predicates yet, a wildcard is added first.
+		 * @param condition the condition, taking the analysis and the matched node
+		 * @return the builder's state after the operation
+		 * @throws IllegalStateException if the last element is not a single step
+		 */
+		public Builder where(BiPredicate<MethodAnalysis, AbstractInsnNode> condition) {
+			if(elements.isEmpty()) any();
+			if(!(elements.get(elements.size() - 1) instanceof Step))
+				throw new IllegalStateException("Conditions may only be added to single steps!");
+			Step last = (Step) elements.get(elements.size() - 1);
+			elements.set(elements.size() - 1, new Step(last.predicate, last.opcodes, last.lookup,
+				last.condition == null ? condition : last.condition.and(condition)));
+			return this;
+		}
+
+		/**
+		 * Requires a value on the stack, before the last matched instruction, to be of
+		 * the given type. Booleans, bytes, chars and shorts are all ints here.
+		 * @param depth the position of the value, counting from the top of the
+		 *              stack which is 0; long and double values count as one
+		 * @param type the {@link Type} of the value
+		 * @return the builder's state after the operation
+		 */
+		public Builder withStackType(int depth, Type type) {
+			return where((analysis, node) -> {
+				Frame<BasicValue> frame = analysis.getTypes(node);
+				return frame != null && depth < frame.getStackSize()
+					&& type.equals(frame.getStack(frame.getStackSize() - 1 - depth).getType());
+			});
+		}
+
+		/**
+		 * Requires a local variable, before the last matched instruction, to be of
+		 * the given type. Booleans, bytes, chars and shorts are all ints here.
+		 * @param index the index of the local variable
+		 * @param type the {@link Type} of the value
+		 * @return the builder's state after the operation
+		 */
+		public Builder withLocalType(int index, Type type) {
+			return where((analysis, node) -> {
+				Frame<BasicValue> frame = analysis.getTypes(node);
+				return frame != null && index < frame.getLocals()
+					&& type.equals(frame.getLocal(index).getType());
+			});
+		}
+
+		/**
+		 * Requires all the instructions which may have produced a value on the stack,
+		 * before the last matched instruction, to satisfy a predicate.
+		 * For example, the receiver of an INVOKEVIRTUAL without arguments comes from
+		 * local variable 3 if the predicate on depth 0 checks for ALOAD 3.
+		 * @param depth the position of the value, counting from the top of the
+		 *              stack which is 0; long and double values count as one
+		 * @param source the predicate on the instructions
+		 * @return the builder's state after the operation
+		 */
+		public Builder withStackSource(int depth, Predicate<AbstractInsnNode> source) {
+			return where((analysis, node) -> {
+				Frame<SourceValue> frame = analysis.getSources(node);
+				return frame != null && depth < frame.getStackSize()
+					&& allMatch(frame.getStack(frame.getStackSize() - 1 - depth), source);
+			});
+		}
+
+		/**
+		 * Requires all the instructions which may have set a local variable, before the
+		 * last matched instruction, to satisfy a predicate. Parameters which were never
+		 * overwritten have no source instruction, and never satisfy it.
+		 * @param index the index of the local variable
+		 * @param source the predicate on the instructions
+		 * @return the builder's state after the operation
+		 */
+		public Builder withLocalSource(int index, Predicate<AbstractInsnNode> source) {
+			return where((analysis, node) -> {
+				Frame<SourceValue> frame = analysis.getSources(node);
+				return frame != null && index < frame.getLocals()
+					&& allMatch(frame.getLocal(index), source);
+			});
+		}
+
+		/**
+		 * Checks whether all the sources of a value satisfy a predicate.
+		 * @param value the {@link SourceValue}
+		 * @param source the predicate on the instructions
+		 * @return true if there is at least one source and all of them satisfy it
+		 */
+		private static boolean allMatch(SourceValue value, Predicate<AbstractInsnNode> source) {
+			if(value.insns.isEmpty()) return false;
+			for(AbstractInsnNode insn : value.insns)
+				if(!source.test(insn)) return false;
+			return true;
+		}
+
 		/**
 		 * Wildcard, matches any kind of node.
 		 * @return the builder's state after the operation
 		 */
 		public Builder any() {
-			return check(i -> true);
+			return check(Step.ANY);
 		}
 
 		/**
-		 * Matches a specific opcode.
+		 * Matches a specific opcode, or -1 for labels, line numbers and frames.
 		 * @param opcode opcode to match
 		 * @return the builder's state after the operation
 		 */
 		public Builder opcode(int opcode) {
-			return check(i -> i.getOpcode() == opcode);
+			if(opcode < 0) //not counted by summaries
+				return check(i -> i.getOpcode() == opcode);
+			return check(Step.ANY, opcode);
 		}
 
 		/**
@@ -192,7 +660,7 @@ public class PatternMatcher {
 		 * @return the builder's state after the operation
 		 */
 		public Builder method() {
-			return check(i -> i.getType() == AbstractInsnNode.METHOD_INSN);
+			return check(Step.ANY, Opcodes.INVOKEVIRTUAL, Opcodes.INVOKESPECIAL, Opcodes.INVOKESTATIC, Opcodes.INVOKEINTERFACE);
 		}
 
 		/**
@@ -201,7 +669,7 @@ public class PatternMatcher {
 		 * @return the builder's state after the operation
 		 */
 		public Builder field() {
-			return check(i -> i.getType() == AbstractInsnNode.FIELD_INSN);
+			return check(Step.ANY, Opcodes.GETSTATIC, Opcodes.PUTSTATIC, Opcodes.GETFIELD, Opcodes.PUTFIELD);
 		}
 
 		/**
@@ -209,7 +677,201 @@ public class PatternMatcher {
 		 * @return the builder's state after the operation
 		 */
 		public Builder jump() {
-			return check(i -> i.getType() == AbstractInsnNode.JUMP_INSN);
+			return check(Step.ANY, Opcodes.IFEQ, Opcodes.IFNE, Opcodes.IFLT, Opcodes.IFGE, Opcodes.IFGT, Opcodes.IFLE,
+				Opcodes.IF_ICMPEQ, Opcodes.IF_ICMPNE, Opcodes.IF_ICMPLT, Opcodes.IF_ICMPGE, Opcodes.IF_ICMPGT, Opcodes.IF_ICMPLE,
+				Opcodes.IF_ACMPEQ, Opcodes.IF_ACMPNE, Opcodes.GOTO, Opcodes.JSR, Opcodes.IFNULL, Opcodes.IFNONNULL);
+		}
+
+		/**
+		 * Makes the last element optional. If it can be matched, it will be, unless
+		 * followed by {@link #lazy()}.
+		 * @return the builder's state after the operation
+		 * @throws IllegalStateException if there are no elements yet
+		 */
+		public Builder optional() {
+			return repeat(0, 1);
+		}
+
+		/**
+		 * Makes the last element repeat. It will be matched as many times as possible,
+		 * unless followed by {@link #lazy()}.
+		 * @param min the minimum number of repetitions
+		 * @param max the maximum number of repetitions, -1 for no limit
+		 * @return the builder's state after the operation
+		 * @throws IllegalArgumentException if the bounds are invalid
+		 * @throws IllegalStateException if there are no elements yet
+		 */
+		public Builder repeat(int min, int max) {
+			if(min < 0 || max >= 0 && max < min)
+				throw new IllegalArgumentException(String.format("Invalid repetition bounds: %d, %d!", min, max));
+			if(elements.isEmpty())
+				throw new IllegalStateException("There is nothing to repeat!");
+			Element last = elements.get(elements.size() - 1);
+			elements.set(elements.size() - 1, new Repetition(last, min, max < 0 ? -1 : max, false));
+			return this;
+		}
+
+		/**
+		 * Makes the last repetition match as few times as possible, rather than as
+		 * many: for example, a lazy wildcard only goes as far as the next step.
+		 * @return the builder's state after the operation
+		 * @throws IllegalStateException if the last element is not a repetition
+		 */
+		public Builder lazy() {
+			if(elements.isEmpty() || !(elements.get(elements.size() - 1) instanceof Repetition))
+				throw new IllegalStateException("Only repetitions may be lazy!");
+			Repetition last = (Repetition) elements.get(elements.size() - 1);
+			elements.set(elements.size() - 1, new Repetition(last.element, last.min, last.max, true));
+			return this;
+		}
+
+		/**
+		 * Lazy wildcard, matches any number of nodes, as few as possible.
+		 * @return the builder's state after the operation
+		 */
+		public Builder skip() {
+			return any().repeat(0, -1).lazy();
+		}
+
+		/**
+		 * Adds the elements of another builder as a single element, for example to
+		 * repeat them together. Its flags are not considered.
+		 * @param group the {@link Builder} of the group
+		 * @return the builder's state after the operation
+		 */
+		public Builder group(Builder group) {
+			elements.add(new Sequence(new ArrayList<>(group.elements)));
+			return this;
+		}
+
+		/**
+		 * Matches any of the given alternatives, preferring the earlier ones. Their
+		 * flags are not considered.
+		 * @param alternatives the {@link Builder}s of the alternatives
+		 * @return the builder's state after the operation
+		 */
+		public Builder either(Builder... alternatives) {
+			List<Element> res = new ArrayList<>();
+			for(Builder alternative : alternatives)
+				res.add(new Sequence(new ArrayList<>(alternative.elements)));
+			elements.add(new Alternation(res));
+			return this;
+		}
+
+		/**
+		 * Matches an invocation of a method, with the exact owner, name and descriptor
+		 * of the proxy: calls made on a subclass of the proxy's parent do not match.
+		 * @param method the {@link MethodProxy}, which must have a parent
+		 * @return the builder's state after the operation
+		 */
+		public Builder invokes(MethodProxy method) {
+			String owner = parentOf(method), name = method.name.intern(), desc = method.descriptor.intern();
+			elements.add(new Step(i -> {
+					MethodInsnNode insn = (MethodInsnNode) i;
+					return same(name, insn.name) && same(desc, insn.desc) && same(owner, insn.owner);
+				}, OpcodeSummary.METHOD_INSNS, index -> index.getInvocations(owner, name, desc), null));
+			return this;
+		}
+
+		/**
+		 * Matches a GETFIELD or GETSTATIC reading a field, with the exact owner, name
+		 * and descriptor of the proxy.
+		 * @param field the {@link FieldProxy}, which must have a parent
+		 * @return the builder's state after the operation
+		 */
+		public Builder reads(FieldProxy field) {
+			return access(field, Opcodes.GETFIELD, Opcodes.GETSTATIC);
+		}
+
+		/**
+		 * Matches a PUTFIELD or PUTSTATIC writing a field, with the exact owner, name
+		 * and descriptor of the proxy.
+		 * @param field the {@link FieldProxy}, which must have a parent
+		 * @return the builder's state after the operation
+		 */
+		public Builder writes(FieldProxy field) {
+			return access(field, Opcodes.PUTFIELD, Opcodes.PUTSTATIC);
+		}
+
+		/**
+		 * Matches an access to a field.
+		 * @param field the {@link FieldProxy}, which must have a parent
+		 * @param opcodes the opcodes of the accesses to match
+		 * @return the builder's state after the operation
+		 */
+		private Builder access(FieldProxy field, int... opcodes) {
+			String owner = parentOf(field), name = field.name.intern(), desc = field.descriptor.intern();
+			long[] set = OpcodeSummary.set(opcodes);
+			elements.add(new Step(i -> {
+					FieldInsnNode insn = (FieldInsnNode) i;
+					return same(name, insn.name) && same(desc, insn.desc) && same(owner, insn.owner);
+				}, set, index -> index.getAccesses(owner, name, desc), null));
+			return this;
+		}
+
+		/**
+		 * Matches a type instruction operating on a class: one of NEW, ANEWARRAY,
+		 * CHECKCAST or INSTANCEOF.
+		 * @param type the {@link TypeProxy} of the class, or of the element for ANEWARRAY
+		 * @return the builder's state after the operation
+		 */
+		public Builder type(TypeProxy type) {
+			return type(type, Opcodes.NEW, Opcodes.ANEWARRAY, Opcodes.CHECKCAST, Opcodes.INSTANCEOF);
+		}
+
+		/**
+		 * Matches specific type instructions operating on a class.
+		 * @param type the {@link TypeProxy} of the class, or of the element for ANEWARRAY
+		 * @param opcodes the opcodes to match, among NEW, ANEWARRAY, CHECKCAST and INSTANCEOF
+		 * @return the builder's state after the operation
+		 * @throws IllegalArgumentException if any of the opcodes is not a type instruction
+		 */
+		public Builder type(TypeProxy type, int... opcodes) {
+			long[] set = OpcodeSummary.set(opcodes);
+			if(!OpcodeSummary.isSubset(set, OpcodeSummary.TYPE_INSNS))
+				throw new IllegalArgumentException("Only NEW, ANEWARRAY, CHECKCAST and INSTANCEOF operate on a type!");
+			String internalName = type.internalName.intern();
+			elements.add(new Step(i -> same(internalName, ((TypeInsnNode) i).desc),
+				set, index -> index.getTypeUses(internalName), null));
+			return this;
+		}
+
+		/**
+		 * Matches an LDC loading a constant. Constants which have dedicated instructions,
+		 * such as small integers, are not loaded by LDC and never match.
+		 * @param value the constant, as it would appear in an {@link LdcInsnNode}
+		 * @return the builder's state after the operation
+		 */
+		public Builder ldc(Object value) {
+			Object constant = value instanceof String ? ((String) value).intern() : value;
+			elements.add(new Step(i -> {
+					Object cst = ((LdcInsnNode) i).cst;
+					return cst == constant || constant.equals(cst);
+				}, OpcodeSummary.set(Opcodes.LDC), index -> index.getConstants(constant), null));
+			return this;
+		}
+
+		/**
+		 * Gets the internal name of the parent of a proxy, interned.
+		 * @param proxy the {@link MethodProxy} or {@link FieldProxy}
+		 * @return the internal name of the parent
+		 * @throws IllegalArgumentException if the proxy has no parent
+		 */
+		private static String parentOf(AbstractProxy proxy) {
+			if(proxy.parent == null)
+				throw new IllegalArgumentException("Proxy " + proxy.name + " has no parent!");
+			return proxy.parent.internalName.intern();
+		}
+
+		/**
+		 * Compares an interned string with another, by identity first and then by
+		 * hash code, which is cached, before resorting to the contents.
+		 * @param interned the interned string
+		 * @param other the other string
+		 * @return true if they are equal
+		 */
+		private static boolean same(String interned, String other) {
+			return interned == other || interned.hashCode() == other.hashCode() && interned.equals(other);
 		}
 
 		/**
@@ -1,6 +1,8 @@
 package ftbsc.lll.utils;
 
+import ftbsc.lll.proxies.impl.TypeProxy;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
 
 import java.util.Comparator;
@@ -9,6 +11,8 @@ import java.util.Comparator;
  * Various methods for manipulating the stack.
  * Includes anything from instantiation to variable manipulation - just about
  * anything that loads stuff on or from the stack.
+ * The type-aware helpers pick the instruction matching the type of the value, so
+ * that primitives can be passed around without being boxed.
  */
 public class StackUtils implements Opcodes {
 	/**
@@ -83,4 +87,195 @@ public class StackUtils implements Opcodes {
 		method.localVariables.add(variable);
 		return targetIndex;
 	}
+
+	/**
+	 * Creates the instruction loading a local variable of the given type.
+	 * @param type the {@link Type} of the variable
+	 * @param var the index of the variable
+	 * @return the {@link VarInsnNode}
+	 * @throws IllegalArgumentException if the type is void or a method type
+	 */
+	public static VarInsnNode load(Type type, int var) {
+		return new VarInsnNode(checkValue(type).getOpcode(ILOAD), var);
+	}
+
+	/**
+	 * Creates the instruction loading a local variable of the given type.
+	 * @param type the {@link TypeProxy} of the variable
+	 * @param var the index of the variable
+	 * @return the {@link VarInsnNode}
+	 * @throws IllegalArgumentException if the type is void
+	 */
+	public static VarInsnNode load(TypeProxy type, int var) {
+		return load(DescriptorPool.getType(type.descriptor), var);
+	}
+
+	/**
+	 * Creates the instruction storing a value of the given type into a local variable.
+	 * @param type the {@link Type} of the value
+	 * @param var the index of the variable
+	 * @return the {@link VarInsnNode}
+	 * @throws IllegalArgumentException if the type is void or a method type
+	 */
+	public static VarInsnNode store(Type type, int var) {
+		return new VarInsnNode(checkValue(type).getOpcode(ISTORE), var);
+	}
+
+	/**
+	 * Creates the instruction storing a value of the given type into a local variable.
+	 * @param type the {@link TypeProxy} of the value
+	 * @param var the index of the variable
+	 * @return the {@link VarInsnNode}
+	 * @throws IllegalArgumentException if the type is void
+	 */
+	public static VarInsnNode store(TypeProxy type, int var) {
+		return store(DescriptorPool.getType(type.descriptor), var);
+	}
+
+	/**
+	 * Creates the instruction returning a value of the given type.
+	 * @param type the {@link Type} of the value, {@link Type#VOID_TYPE} for none
+	 * @return the {@link InsnNode}
+	 */
+	public static InsnNode returnValue(Type type) {
+		return new InsnNode(type.getOpcode(IRETURN));
+	}
+
+	/**
+	 * Creates the instruction returning a value of the given type.
+	 * @param type the {@link TypeProxy} of the value
+	 * @return the {@link InsnNode}
+	 */
+	public static InsnNode returnValue(TypeProxy type) {
+		return returnValue(DescriptorPool.getType(type.descriptor));
+	}
+
+	/**
+	 * Creates the instruction pushing the default value of the given type: zero,
+	 * false or null.
+	 * @param type the {@link Type} of the value
+	 * @return the {@link InsnNode}
+	 * @throws IllegalArgumentException if the type is void or a method type
+	 */
+	public static InsnNode defaultValue(Type type) {
+		switch(checkValue(type).getSort()) {
+			case Type.LONG:
+				return new InsnNode(LCONST_0);
+			case Type.FLOAT:
+				return new InsnNode(FCONST_0);
+			case Type.DOUBLE:
+				return new InsnNode(DCONST_0);
+			case Type.OBJECT:
+			case Type.ARRAY:
+				return new InsnNode(ACONST_NULL);
+			default:
+				return new InsnNode(ICONST_0);
+		}
+	}
+
+	/**
+	 * Creates the instruction pushing the default value of the given type: zero,
+	 * false or null.
+	 * @param type the {@link TypeProxy} of the value
+	 * @return the {@link InsnNode}
+	 * @throws IllegalArgumentException if the type is void
+	 */
+	public static InsnNode defaultValue(TypeProxy type) {
+		return defaultValue(DescriptorPool.getType(type.descriptor));
+	}
+
+	/**
+	 * Creates the instructions returning the default value of the given type, or
+	 * nothing if it's void.
+	 * @param type the {@link Type} of the value, {@link Type#VOID_TYPE} for none
+	 * @return an {@link InsnList} containing the instructions
+	 */
+	public static InsnList returnDefault(Type type) {
+		InsnList list = new InsnList();
+		if(type.getSort() != Type.VOID)
+			list.add(defaultValue(type));
+		list.add(returnValue(type));
+		return list;
+	}
+
+	/**
+	 * Creates the instruction duplicating the value of the given type on top of the stack.
+	 * @param type the {@link Type} of the value
+	 * @return the {@link InsnNode}, or null if the type is void
+	 */
+	public static InsnNode dup(Type type) {
+		return type.getSize() == 0 ? null : new InsnNode(type.getSize() == 2 ? DUP2 : DUP);
+	}
+
+	/**
+	 * Creates the instruction discarding the value of the given type on top of the stack.
+	 * @param type the {@link Type} of the value
+	 * @return the {@link InsnNode}, or null if the type is void
+	 */
+	public static InsnNode pop(Type type) {
+		return type.getSize() == 0 ? null : new InsnNode(type.getSize() == 2 ? POP2 : POP);
+	}
+
+	/**
+	 * Creates the instructions loading the arguments of a method, as they are when
+	 * it's entered, in order and without boxing them.
+	 * @param desc the descriptor of the method
+	 * @param isStatic whether the method is static: if it's not, {@code this} is loaded first
+	 * @return an {@link InsnList} containing the instructions
+	 */
+	public static InsnList loadArguments(String desc, boolean isStatic) {
+		InsnList list = new InsnList();
+		int var = 0;
+		if(!isStatic)
+			list.add(new VarInsnNode(ALOAD, var++));
+		for(Type type : DescriptorPool.argumentTypes(desc)) {
+			list.add(load(type, var));
+			var += type.getSize();
+		}
+		return list;
+	}
+
+	/**
+	 * Creates the instructions loading the arguments of a method, as they are when
+	 * it's entered, in order and without boxing them.
+	 * @param method the {@link MethodNode}: if it's not static, {@code this} is loaded first
+	 * @return an {@link InsnList} containing the instructions
+	 */
+	public static InsnList loadArguments(MethodNode method) {
+		return loadArguments(method.desc, (method.access & ACC_STATIC) != 0);
+	}
+
+	/**
+	 * Builds the descriptor of a static hook receiving the instance and the arguments
+	 * of a method, followed by the given extra parameters, all of them unboxed.
+	 * The instructions loading them are given by {@link #loadArguments(MethodNode)}.
+	 * @param owner the internal name of the class containing the method
+	 * @param method the {@link MethodNode} the hook is called from
+	 * @param returnType the {@link Type} returned by the hook
+	 * @param extra the {@link Type}s of the extra parameters
+	 * @return the descriptor of the hook
+	 */
+	public static String hookDescriptor(String owner, MethodNode method, Type returnType, Type... extra) {
+		Type[] args = DescriptorPool.argumentTypes(method.desc);
+		boolean isStatic = (method.access & ACC_STATIC) != 0;
+		Type[] params = new Type[(isStatic ? 0 : 1) + args.length + extra.length];
+		int i = 0;
+		if(!isStatic)
+			params[i++] = Type.getObjectType(owner);
+		System.arraycopy(args, 0, params, i, args.length);
+		System.arraycopy(extra, 0, params, i + args.length, extra.length);
+		return DescriptorPool.intern(Type.getMethodDescriptor(returnType, params));
+	}
+
+	/**
+	 * Makes sure a type may be held in a variable or on the stack.
+	 * @param type the {@link Type}
+	 * @return the type itself
+	 * @throws IllegalArgumentException if the type is void or a method type
+	 */
+	private static Type checkValue(Type type) {
+		if(type.getSort() == Type.VOID || type.getSort() == Type.METHOD)
+			throw new IllegalArgumentException("There are no values of type " + type + "!");
+		return type;
+	}
 }
@@ -0,0 +1,137 @@
+package ftbsc.lll.utils.analysis;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+
+import java.util.*;
+
+/**
+ * A straight sequence of instructions, which control may only enter from the
+ * top and leave from the bottom (or through an exception).
+ * Blocks are built by {@link MethodAnalysis}, and stay valid for as long as the
+ * instructions are only changed without affecting the control flow.
+ */
+public class BasicBlock {
+	/**
+	 * The position of the block within the method.
+	 */
+	final int index;
+
+	/**
+	 * The first instruction of the block.
+	 */
+	AbstractInsnNode first;
+
+	/**
+	 * The last instruction of the block.
+	 */
+	AbstractInsnNode last;
+
+	/**
+	 * The blocks control may go to after this one, including exception handlers.
+	 */
+	final List<BasicBlock> successors = new ArrayList<>();
+
+	/**
+	 * The blocks control may come from.
+	 */
+	final List<BasicBlock> predecessors = new ArrayList<>();
+
+	/**
+	 * The immediate dominator, null for the entry block and unreachable blocks.
+	 */
+	BasicBlock dominator;
+
+	/**
+	 * Package-private constructor.
+	 * @param index the position of the block within the method
+	 * @param first the first instruction of the block
+	 */
+	BasicBlock(int index, AbstractInsnNode first) {
+		this.index = index;
+		this.first = first;
+	}
+
+	/**
+	 * @return the position of the block within the method, starting from 0 for the entry
+	 */
+	public int getIndex() {
+		return this.index;
+	}
+
+	/**
+	 * @return the first instruction of the block
+	 */
+	public AbstractInsnNode getFirst() {
+		return this.first;
+	}
+
+	/**
+	 * @return the last instruction of the block
+	 */
+	public AbstractInsnNode getLast() {
+		return this.last;
+	}
+
+	/**
+	 * @return the blocks control may go to after this one, including exception handlers
+	 */
+	public List<BasicBlock> getSuccessors() {
+		return Collections.unmodifiableList(this.successors);
+	}
+
+	/**
+	 * @return the blocks control may come from
+	 */
+	public List<BasicBlock> getPredecessors() {
+		return Collections.unmodifiableList(this.predecessors);
+	}
+
+	/**
+	 * @return the immediate dominator, null for the entry block and unreachable blocks
+	 */
+	public BasicBlock getDominator() {
+		return this.dominator;
+	}
+
+	/**
+	 * @return whether the block may be reached from the start of the method
+	 */
+	public boolean isReachable() {
+		return this.index == 0 || this.dominator != null;
+	}
+
+	/**
+	 * Checks whether all paths from the start of the method to another block go
+	 * through this one. Blocks dominate themselves.
+	 * @param other the other {@link BasicBlock}
+	 * @return true if this block dominates the other
+	 */
+	public boolean dominates(BasicBlock other) {
+		if(!this.isReachable()) return false;
+		for(BasicBlock cur = other; cur != null; cur = cur.dominator)
+			if(cur == this) return true;
+		return false;
+	}
+
+	/**
+	 * Finds all the blocks control may go through after entering this one.
+	 * @return the reachable {@link BasicBlock}s, including this one if it's part of a loop
+	 */
+	public Set<BasicBlock> getReachable() {
+		Set<BasicBlock> res = new LinkedHashSet<>();
+		Deque<BasicBlock> queue = new ArrayDeque<>(this.successors);
+		while(!queue.isEmpty()) {
+			BasicBlock block = queue.poll();
+			if(res.add(block)) queue.addAll(block.successors);
+		}
+		return res;
+	}
+
+	/**
+	 * @return a string describing the block, for debugging
+	 */
+	@Override
+	public String toString() {
+		return "B" + this.index;
+	}
+}
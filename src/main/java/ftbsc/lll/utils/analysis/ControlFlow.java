@@ -0,0 +1,284 @@
+package ftbsc.lll.utils.analysis;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+
+import java.util.*;
+
+/**
+ * The control flow graph of a method: its basic blocks, their dominators and
+ * the loops they form.
+ * It can be patched after changes which leave the control flow alone, such as
+ * straight code being added to or removed from a block, instead of being built
+ * again from scratch.
+ */
+class ControlFlow {
+	/**
+	 * The blocks, in order.
+	 */
+	final List<BasicBlock> blocks;
+
+	/**
+	 * The block each instruction belongs to.
+	 */
+	private Map<AbstractInsnNode, BasicBlock> blockOf;
+
+	/**
+	 * The try-catch blocks the graph was built with.
+	 */
+	private final List<TryCatchBlockNode> tryCatch;
+
+	/**
+	 * The natural loops, by header, built lazily.
+	 */
+	private List<Loop> loops;
+
+	/**
+	 * Builds the graph of a method. Methods without instructions, such as abstract
+	 * and native ones, have no blocks and no loops.
+	 * @param insns the instructions of the method
+	 * @param indices the position of each instruction
+	 * @param tryCatch the try-catch blocks of the method
+	 */
+	ControlFlow(AbstractInsnNode[] insns, Map<AbstractInsnNode, Integer> indices, List<TryCatchBlockNode> tryCatch) {
+		this.tryCatch = new ArrayList<>(tryCatch);
+		boolean[] leaders = new boolean[insns.length + 1];
+		leaders[0] = true;
+		for(TryCatchBlockNode tcb : tryCatch) {
+			leaders[indices.get(tcb.start)] = true;
+			leaders[indices.get(tcb.end)] = true;
+			leaders[indices.get(tcb.handler)] = true;
+		}
+		for(int i = 0; i < insns.length; i++) {
+			List<LabelNode> targets = targets(insns[i]);
+			for(LabelNode target : targets)
+				leaders[indices.get(target)] = true;
+			if(!targets.isEmpty() || isExit(insns[i]))
+				leaders[i + 1] = true;
+		}
+
+		this.blocks = new ArrayList<>();
+		this.blockOf = new IdentityHashMap<>(insns.length * 2);
+		BasicBlock current = null;
+		for(int i = 0; i < insns.length; i++) {
+			if(leaders[i]) {
+				current = new BasicBlock(this.blocks.size(), insns[i]);
+				this.blocks.add(current);
+			}
+			current.last = insns[i];
+			this.blockOf.put(insns[i], current);
+		}
+
+		for(BasicBlock block : this.blocks) {
+			Set<BasicBlock> successors = new LinkedHashSet<>();
+			for(LabelNode target : targets(block.last))
+				successors.add(this.blockOf.get(target));
+			int opcode = block.last.getOpcode();
+			if(opcode != Opcodes.GOTO && !isSwitch(block.last) && !isExit(block.last)
+				&& block.index + 1 < this.blocks.size())
+				successors.add(this.blocks.get(block.index + 1));
+			for(TryCatchBlockNode tcb : tryCatch)
+				if(block.index >= this.blockOf.get(tcb.start).index && block.index < this.blockOf.get(tcb.end).index)
+					successors.add(this.blockOf.get(tcb.handler));
+			for(BasicBlock successor : successors) {
+				block.successors.add(successor);
+				successor.predecessors.add(block);
+			}
+		}
+		this.computeDominators();
+	}
+
+	/**
+	 * Computes the immediate dominator of each block, with the iterative algorithm
+	 * by Cooper, Harvey and Kennedy.
+	 */
+	private void computeDominators() {
+		if(this.blocks.isEmpty()) return;
+		List<BasicBlock> order = new ArrayList<>(); //postorder
+		boolean[] visited = new boolean[this.blocks.size()];
+		Deque<Iterator<BasicBlock>> stack = new ArrayDeque<>();
+		Deque<BasicBlock> path = new ArrayDeque<>();
+		visited[0] = true;
+		path.push(this.blocks.get(0));
+		stack.push(this.blocks.get(0).successors.iterator());
+		while(!stack.isEmpty()) {
+			Iterator<BasicBlock> iter = stack.peek();
+			if(iter.hasNext()) {
+				BasicBlock next = iter.next();
+				if(!visited[next.index]) {
+					visited[next.index] = true;
+					path.push(next);
+					stack.push(next.successors.iterator());
+				}
+			} else {
+				stack.pop();
+				order.add(path.pop());
+			}
+		}
+
+		int[] rank = new int[this.blocks.size()];
+		for(int i = 0; i < order.size(); i++)
+			rank[order.get(i).index] = i;
+		BasicBlock entry = this.blocks.get(0);
+		BasicBlock[] idom = new BasicBlock[this.blocks.size()];
+		idom[0] = entry;
+		boolean changed = true;
+		while(changed) {
+			changed = false;
+			for(int i = order.size() - 2; i >= 0; i--) { //reverse postorder, skipping the entry
+				BasicBlock block = order.get(i);
+				BasicBlock dom = null;
+				for(BasicBlock pred : block.predecessors) {
+					if(idom[pred.index] == null) continue;
+					if(dom == null) dom = pred;
+					else {
+						BasicBlock a = pred, b = dom;
+						while(a != b) {
+							while(rank[a.index] < rank[b.index]) a = idom[a.index];
+							while(rank[b.index] < rank[a.index]) b = idom[b.index];
+						}
+						dom = a;
+					}
+				}
+				if(dom != idom[block.index]) {
+					idom[block.index] = dom;
+					changed = true;
+				}
+			}
+		}
+		for(BasicBlock block : this.blocks)
+			block.dominator = block == entry ? null : idom[block.index];
+	}
+
+	/**
+	 * @return the natural loops, ordered by header
+	 */
+	List<Loop> getLoops() {
+		if(this.loops == null) {
+			Map<BasicBlock, Set<BasicBlock>> bodies = new LinkedHashMap<>();
+			Map<BasicBlock, List<BasicBlock>> latches = new HashMap<>();
+			for(BasicBlock block : this.blocks) {
+				for(BasicBlock header : block.successors) {
+					if(!header.dominates(block)) continue;
+					Set<BasicBlock> body = bodies.computeIfAbsent(header, k -> new HashSet<>(Collections.singleton(k)));
+					latches.computeIfAbsent(header, k -> new ArrayList<>()).add(block);
+					Deque<BasicBlock> queue = new ArrayDeque<>();
+					if(body.add(block)) queue.add(block);
+					while(!queue.isEmpty())
+						for(BasicBlock pred : queue.poll().predecessors)
+							if(pred.isReachable() && body.add(pred)) queue.add(pred);
+				}
+			}
+			List<Loop> res = new ArrayList<>();
+			for(Map.Entry<BasicBlock, Set<BasicBlock>> entry : bodies.entrySet())
+				res.add(new Loop(entry.getKey(), entry.getValue(), latches.get(entry.getKey())));
+			res.sort(Comparator.comparingInt(loop -> loop.getHeader().getIndex()));
+			this.loops = res;
+		}
+		return this.loops;
+	}
+
+	/**
+	 * @param insn an instruction
+	 * @return the block it belongs to, or null if it's not known
+	 */
+	BasicBlock getBlock(AbstractInsnNode insn) {
+		return this.blockOf.get(insn);
+	}
+
+	/**
+	 * Updates the graph after the instructions changed, if the changes did not affect
+	 * the control flow: instructions which may jump or exit, as well as labels starting
+	 * a block, were neither added nor removed, nothing was moved, and new instructions
+	 * can only be reached by falling through from within their block.
+	 * @param insns the current instructions of the method
+	 * @param indices the position of each instruction as of the last update
+	 * @param tryCatch the current try-catch blocks of the method
+	 * @return true if the graph was updated, false if it needs to be built again
+	 */
+	boolean patch(InsnList insns, Map<AbstractInsnNode, Integer> indices, List<TryCatchBlockNode> tryCatch) {
+		if(!this.tryCatch.equals(tryCatch)) return false;
+		Map<AbstractInsnNode, BasicBlock> updated = new IdentityHashMap<>(insns.size() * 2);
+		BasicBlock current = null;
+		int position = -1;
+		for(AbstractInsnNode cur = insns.getFirst(); cur != null; cur = cur.getNext()) {
+			BasicBlock block = this.blockOf.get(cur);
+			if(block != null) {
+				int index = indices.get(cur);
+				if(index < position) return false; //it was moved
+				position = index;
+				current = block;
+			} else {
+				if(targets(cur).size() != 0 || isExit(cur) || isSwitch(cur)) return false;
+				if(current == null) {
+					if(this.blocks.isEmpty()) return false; //the method was empty
+					if(!this.blocks.get(0).predecessors.isEmpty()) return false; //it would be outside of the loop
+					current = this.blocks.get(0);
+				} else {
+					AbstractInsnNode previous = cur.getPrevious();
+					if(targets(previous).size() != 0 || isExit(previous)) return false; //it would be unreachable
+				}
+			}
+			updated.put(cur, current);
+		}
+
+		for(Map.Entry<AbstractInsnNode, BasicBlock> entry : this.blockOf.entrySet()) {
+			AbstractInsnNode removed = entry.getKey();
+			if(updated.containsKey(removed)) continue;
+			if(removed == entry.getValue().first && removed.getType() == AbstractInsnNode.LABEL) return false;
+			if(targets(removed).size() != 0 || isExit(removed)) return false;
+		}
+
+		Set<BasicBlock> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+		for(AbstractInsnNode cur = insns.getFirst(); cur != null; cur = cur.getNext()) {
+			BasicBlock block = updated.get(cur);
+			if(seen.add(block)) block.first = cur;
+			block.last = cur;
+		}
+		if(seen.size() != this.blocks.size()) return false; //a block was emptied
+		this.blockOf = updated;
+		return true;
+	}
+
+	/**
+	 * @param insn an instruction
+	 * @return the labels it may jump to, including those of switches
+	 */
+	private static List<LabelNode> targets(AbstractInsnNode insn) {
+		switch(insn.getType()) {
+			case AbstractInsnNode.JUMP_INSN:
+				return Collections.singletonList(((JumpInsnNode) insn).label);
+			case AbstractInsnNode.TABLESWITCH_INSN: {
+				TableSwitchInsnNode node = (TableSwitchInsnNode) insn;
+				List<LabelNode> res = new ArrayList<>(node.labels);
+				res.add(node.dflt);
+				return res;
+			}
+			case AbstractInsnNode.LOOKUPSWITCH_INSN: {
+				LookupSwitchInsnNode node = (LookupSwitchInsnNode) insn;
+				List<LabelNode> res = new ArrayList<>(node.labels);
+				res.add(node.dflt);
+				return res;
+			}
+			default:
+				return Collections.emptyList();
+		}
+	}
+
+	/**
+	 * @param insn an instruction
+	 * @return whether it's a switch
+	 */
+	private static boolean isSwitch(AbstractInsnNode insn) {
+		return insn.getType() == AbstractInsnNode.TABLESWITCH_INSN || insn.getType() == AbstractInsnNode.LOOKUPSWITCH_INSN;
+	}
+
+	/**
+	 * @param insn an instruction
+	 * @return whether control never falls through it: returns, throws and RET
+	 */
+	private static boolean isExit(AbstractInsnNode insn) {
+		int opcode = insn.getOpcode();
+		return (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) || opcode == Opcodes.ATHROW || opcode == Opcodes.RET;
+	}
+}
@@ -0,0 +1,172 @@
+package ftbsc.lll.utils.analysis;
+
+import org.objectweb.asm.*;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link ClassNode} which summarises and indexes the instructions of its methods
+ * while it's being read, sparing a pass over each of them later.
+ * The results are picked up by {@link MethodAnalysis#of(ClassNode, MethodNode, ftbsc.lll.hierarchy.IClassHierarchy)}.
+ * They describe the methods as they were read: they are not updated as the
+ * methods are changed.
+ */
+public class IndexedClassNode extends ClassNode {
+	/**
+	 * The summary of each method.
+	 */
+	private final Map<MethodNode, OpcodeSummary> summaries = new IdentityHashMap<>();
+
+	/**
+	 * The references of each method.
+	 */
+	private final Map<MethodNode, ReferenceIndex> references = new IdentityHashMap<>();
+
+	/**
+	 * The instructions of each method, as they were read.
+	 */
+	private final Map<MethodNode, AbstractInsnNode[]> instructions = new IdentityHashMap<>();
+
+	/**
+	 * The references of the whole class, merged lazily.
+	 */
+	private ReferenceIndex merged;
+
+	/**
+	 * Public constructor.
+	 */
+	public IndexedClassNode() {
+		super(Opcodes.ASM9);
+	}
+
+	/**
+	 * Visits a method, summarising and indexing its instructions as they are visited.
+	 * @param access the method's access flags
+	 * @param name the method's name
+	 * @param descriptor the method's descriptor
+	 * @param signature the method's signature, may be null
+	 * @param exceptions the internal names of the method's exception classes, may be null
+	 * @return a visitor building the {@link MethodNode}
+	 */
+	@Override
+	public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+		MethodNode method = (MethodNode) super.visitMethod(access, name, descriptor, signature, exceptions);
+		OpcodeSummary summary = new OpcodeSummary();
+		ReferenceIndex index = new ReferenceIndex();
+		this.summaries.put(method, summary);
+		this.references.put(method, index);
+		this.merged = null;
+		return new MethodVisitor(this.api, method) {
+			@Override public void visitInsn(int opcode) { summary.add(opcode); super.visitInsn(opcode); }
+			@Override public void visitIntInsn(int opcode, int operand) { summary.add(opcode); super.visitIntInsn(opcode, operand); }
+			@Override public void visitVarInsn(int opcode, int var) { summary.add(opcode); super.visitVarInsn(opcode, var); }
+			@Override public void visitJumpInsn(int opcode, Label label) { summary.add(opcode); super.visitJumpInsn(opcode, label); }
+			@Override public void visitIincInsn(int var, int increment) { summary.add(Opcodes.IINC); super.visitIincInsn(var, increment); }
+			@Override public void visitMultiANewArrayInsn(String desc, int dims) { summary.add(Opcodes.MULTIANEWARRAY); super.visitMultiANewArrayInsn(desc, dims); }
+
+			@Override
+			public void visitTypeInsn(int opcode, String type) {
+				summary.add(opcode);
+				super.visitTypeInsn(opcode, type);
+				index.add(method.instructions.getLast());
+			}
+
+			@Override
+			public void visitLdcInsn(Object value) {
+				summary.add(Opcodes.LDC);
+				super.visitLdcInsn(value);
+				index.add(method.instructions.getLast());
+			}
+
+			@Override
+			public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+				summary.add(opcode);
+				super.visitFieldInsn(opcode, owner, name, desc);
+				index.add(method.instructions.getLast());
+			}
+
+			@Override
+			public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+				summary.add(opcode);
+				super.visitMethodInsn(opcode, owner, name, desc, itf);
+				index.add(method.instructions.getLast());
+			}
+
+			@Override
+			public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+				summary.add(Opcodes.INVOKEDYNAMIC);
+				super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+			}
+
+			@Override
+			public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+				summary.add(Opcodes.TABLESWITCH);
+				super.visitTableSwitchInsn(min, max, dflt, labels);
+			}
+
+			@Override
+			public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+				summary.add(Opcodes.LOOKUPSWITCH);
+				super.visitLookupSwitchInsn(dflt, keys, labels);
+			}
+
+			@Override
+			public void visitEnd() {
+				IndexedClassNode.this.instructions.put(method, method.instructions.toArray());
+				super.visitEnd();
+			}
+		};
+	}
+
+	/**
+	 * Gets the summary of a method, as it was read.
+	 * @param method a {@link MethodNode} of this class
+	 * @return the {@link OpcodeSummary}, or null if the method was not read
+	 */
+	public OpcodeSummary getSummary(MethodNode method) {
+		return this.summaries.get(method);
+	}
+
+	/**
+	 * Gets the references of a method, as it was read.
+	 * @param method a {@link MethodNode} of this class
+	 * @return the {@link ReferenceIndex}, or null if the method was not read
+	 */
+	public ReferenceIndex getReferences(MethodNode method) {
+		return this.references.get(method);
+	}
+
+	/**
+	 * Gets the instructions of a method, as it was read, which the summary and the
+	 * references describe.
+	 * @param method a {@link MethodNode} of this class
+	 * @return the nodes, or null if the method was not read
+	 */
+	AbstractInsnNode[] getInstructions(MethodNode method) {
+		return this.instructions.get(method);
+	}
+
+	/**
+	 * Gets the references of all the methods of the class, as they were read.
+	 * Useful to find out whether the class refers to something at all, without
+	 * going through each method.
+	 * @return the merged {@link ReferenceIndex}
+	 */
+	public synchronized ReferenceIndex getReferences() {
+		if(this.merged == null) {
+			List<ReferenceIndex> indices = new ArrayList<>();
+			for(MethodNode method : this.methods) {
+				ReferenceIndex index = this.references.get(method);
+				if(index != null) indices.add(index);
+			}
+			this.merged = ReferenceIndex.merge(indices);
+		}
+		return this.merged;
+	}
+}
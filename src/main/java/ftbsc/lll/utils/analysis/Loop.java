@@ -0,0 +1,81 @@
+package ftbsc.lll.utils.analysis;
+
+import java.util.*;
+
+/**
+ * A natural loop: a header block, which dominates all the others, and all the
+ * blocks which may reach a back edge to it without going through it.
+ * Loops sharing a header are merged.
+ */
+public class Loop {
+	/**
+	 * The header of the loop.
+	 */
+	private final BasicBlock header;
+
+	/**
+	 * The blocks of the loop, in order.
+	 */
+	private final List<BasicBlock> blocks;
+
+	/**
+	 * The blocks of the loop, for lookups.
+	 */
+	private final Set<BasicBlock> members;
+
+	/**
+	 * The blocks with a back edge to the header.
+	 */
+	private final List<BasicBlock> latches;
+
+	/**
+	 * Package-private constructor.
+	 * @param header the header of the loop
+	 * @param members the blocks of the loop
+	 * @param latches the blocks with a back edge to the header
+	 */
+	Loop(BasicBlock header, Set<BasicBlock> members, List<BasicBlock> latches) {
+		this.header = header;
+		this.members = members;
+		this.blocks = new ArrayList<>(members);
+		this.blocks.sort(Comparator.comparingInt(BasicBlock::getIndex));
+		this.latches = latches;
+	}
+
+	/**
+	 * @return the header of the loop, where every iteration starts
+	 */
+	public BasicBlock getHeader() {
+		return this.header;
+	}
+
+	/**
+	 * @return the blocks of the loop, in the order they appear in the method
+	 */
+	public List<BasicBlock> getBlocks() {
+		return Collections.unmodifiableList(this.blocks);
+	}
+
+	/**
+	 * @return the blocks with a back edge to the header
+	 */
+	public List<BasicBlock> getLatches() {
+		return Collections.unmodifiableList(this.latches);
+	}
+
+	/**
+	 * @param block a {@link BasicBlock}
+	 * @return whether the block is part of the loop
+	 */
+	public boolean contains(BasicBlock block) {
+		return this.members.contains(block);
+	}
+
+	/**
+	 * @param other another {@link Loop}
+	 * @return whether the other loop is nested within this one
+	 */
+	public boolean contains(Loop other) {
+		return other != this && this.members.containsAll(other.members);
+	}
+}
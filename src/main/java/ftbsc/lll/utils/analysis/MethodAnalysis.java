@@ -0,0 +1,415 @@
+package ftbsc.lll.utils.analysis;
+
+import ftbsc.lll.exceptions.InjectionException;
+import ftbsc.lll.hierarchy.IClassHierarchy;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.*;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+/**
+ * Lazily computed analyses of a {@link MethodNode}, shared by everything working on it.
+ * Instances are cached weakly by method, so that all injectors working on a method,
+ * and all {@link ftbsc.lll.utils.PatternMatcher}s they use, share the same one:
+ * each analysis is only run once, the first time it's needed, and again only
+ * after the instructions change.
+ * Changes are detected by comparing the instructions with those which were analysed:
+ * lookups only check the size of the method, its first and last node and whether
+ * the node is known, while {@link #validate()} does a full comparison, which
+ * {@link ftbsc.lll.transformer.ClassTransformer} runs before each injector.
+ * Frames are always recomputed after a change, but the control flow graph is only
+ * patched up, unless the change affected the control flow itself.
+ */
+public class MethodAnalysis {
+	/**
+	 * The analyses of each method.
+	 */
+	private static final Map<MethodNode, MethodAnalysis> CACHE = Collections.synchronizedMap(new WeakHashMap<>());
+
+	/**
+	 * The method being analysed, referenced weakly so that it may be evicted from the cache.
+	 */
+	private final WeakReference<MethodNode> method;
+
+	/**
+	 * The internal name of the class the method belongs to.
+	 */
+	private final String owner;
+
+	/**
+	 * The {@link IClassHierarchy} used to merge references, may be null.
+	 */
+	private final IClassHierarchy hierarchy;
+
+	/**
+	 * The instructions as of the last analysis, null if they have not been looked at yet.
+	 */
+	private AbstractInsnNode[] snapshot;
+
+	/**
+	 * The position of each instruction within {@link #snapshot}.
+	 */
+	private Map<AbstractInsnNode, Integer> indices;
+
+	/**
+	 * The frames computed by a {@link TypeInterpreter}, null if they were not computed yet.
+	 */
+	private Frame<BasicValue>[] types;
+
+	/**
+	 * The frames computed by a {@link SourceInterpreter}, null if they were not computed yet.
+	 */
+	private Frame<SourceValue>[] sources;
+
+	/**
+	 * The control flow graph, null if it was not built yet.
+	 */
+	private ControlFlow flow;
+
+	/**
+	 * The summary of the instructions, null if it was not computed yet.
+	 */
+	private OpcodeSummary opcodes;
+
+	/**
+	 * The references made by the instructions, null if they were not indexed yet.
+	 */
+	private ReferenceIndex references;
+
+	/**
+	 * Private constructor, instances should be obtained through the static methods.
+	 * @param method the {@link MethodNode} to analyse
+	 * @param owner the internal name of the class it belongs to
+	 * @param hierarchy the {@link IClassHierarchy} used to merge references, may be null
+	 */
+	private MethodAnalysis(MethodNode method, String owner, IClassHierarchy hierarchy) {
+		this.method = new WeakReference<>(method);
+		this.owner = owner;
+		this.hierarchy = hierarchy;
+	}
+
+	/**
+	 * Gets the analysis of a method, creating it if needed.
+	 * If it does not exist yet, the owner is guessed from the local variable table,
+	 * and different references are merged to {@link Object}.
+	 * @param method the {@link MethodNode}
+	 * @return the {@link MethodAnalysis}
+	 */
+	public static MethodAnalysis of(MethodNode method) {
+		synchronized(CACHE) {
+			MethodAnalysis res = CACHE.get(method);
+			if(res == null) {
+				res = new MethodAnalysis(method, guessOwner(method), null);
+				CACHE.put(method, res);
+			}
+			return res;
+		}
+	}
+
+	/**
+	 * Gets the analysis of a method, creating it if needed. If the class is an
+	 * {@link IndexedClassNode}, the summary and the index it built for the method are
+	 * reused, until {@link #validate()} finds the method changed since it was read.
+	 * @param clazz the {@link ClassNode} the method belongs to
+	 * @param method the {@link MethodNode}
+	 * @param hierarchy the {@link IClassHierarchy} used to merge references, may be null
+	 * @return the {@link MethodAnalysis}
+	 */
+	public static MethodAnalysis of(ClassNode clazz, MethodNode method, IClassHierarchy hierarchy) {
+		synchronized(CACHE) {
+			MethodAnalysis res = CACHE.get(method);
+			if(res == null || !res.owner.equals(clazz.name)) {
+				res = new MethodAnalysis(method, clazz.name, hierarchy);
+				if(clazz instanceof IndexedClassNode) {
+					IndexedClassNode indexed = (IndexedClassNode) clazz;
+					AbstractInsnNode[] read = indexed.getInstructions(method);
+					if(read != null) { //validated against the method as it was read
+						res.snapshot(read);
+						res.opcodes = indexed.getSummary(method);
+						res.references = indexed.getReferences(method);
+					}
+				}
+				CACHE.put(method, res);
+			}
+			return res;
+		}
+	}
+
+	/**
+	 * Guesses the owner of a method from the type of its "this" local variable.
+	 * @param method the {@link MethodNode}
+	 * @return the internal name of the owner, or that of {@link Object} if unknown
+	 */
+	private static String guessOwner(MethodNode method) {
+		if(method.localVariables != null)
+			for(LocalVariableNode local : method.localVariables)
+				if(local.index == 0 && local.name.equals("this"))
+					return Type.getType(local.desc).getInternalName();
+		return "java/lang/Object";
+	}
+
+	/**
+	 * Gets the types of the values in the frame before an instruction, as seen by
+	 * the verifier: booleans, bytes, chars and shorts are all ints, and long and
+	 * double values take a single stack entry.
+	 * @param insn an instruction of the method
+	 * @return the {@link Frame}, or null if the instruction is unreachable
+	 * @throws IllegalArgumentException if the instruction is not part of the method
+	 * @throws InjectionException if the method could not be analysed
+	 */
+	public synchronized Frame<BasicValue> getTypes(AbstractInsnNode insn) {
+		int index = this.indexOf(insn);
+		if(this.types == null)
+			this.types = this.analyze(new TypeInterpreter(this.hierarchy));
+		return this.types[index];
+	}
+
+	/**
+	 * Gets the instructions which may have produced each value in the frame before
+	 * an instruction.
+	 * @param insn an instruction of the method
+	 * @return the {@link Frame}, or null if the instruction is unreachable
+	 * @throws IllegalArgumentException if the instruction is not part of the method
+	 * @throws InjectionException if the method could not be analysed
+	 */
+	public synchronized Frame<SourceValue> getSources(AbstractInsnNode insn) {
+		int index = this.indexOf(insn);
+		if(this.sources == null)
+			this.sources = this.analyze(new SourceInterpreter());
+		return this.sources[index];
+	}
+
+	/**
+	 * Gets the basic blocks of the method.
+	 * @return the {@link BasicBlock}s, in order
+	 */
+	public synchronized List<BasicBlock> getBlocks() {
+		this.validate();
+		return Collections.unmodifiableList(this.flow().blocks);
+	}
+
+	/**
+	 * Gets the basic block an instruction belongs to.
+	 * @param insn an instruction of the method
+	 * @return the {@link BasicBlock}
+	 * @throws IllegalArgumentException if the instruction is not part of the method
+	 */
+	public synchronized BasicBlock getBlock(AbstractInsnNode insn) {
+		this.indexOf(insn);
+		return this.flow().getBlock(insn);
+	}
+
+	/**
+	 * Gets the natural loops of the method. Nested loops are separate, and may be
+	 * told apart with {@link Loop#contains(Loop)}.
+	 * @return the {@link Loop}s, ordered by header
+	 */
+	public synchronized List<Loop> getLoops() {
+		this.validate();
+		return Collections.unmodifiableList(this.flow().getLoops());
+	}
+
+	/**
+	 * Gets the summary of the instructions. It's recomputed when the size of the
+	 * method or its first or last node changed, without going through the rest:
+	 * nodes replaced one for one in the middle are only noticed by {@link #validate()}.
+	 * @return the {@link OpcodeSummary}
+	 */
+	public synchronized OpcodeSummary getOpcodes() {
+		this.check();
+		if(this.opcodes == null)
+			this.opcodes = OpcodeSummary.of(this.requireMethod().instructions);
+		return this.opcodes;
+	}
+
+	/**
+	 * Gets the references made by the instructions. Like {@link #getOpcodes()}, it's
+	 * only checked against the size of the method and its first and last node, so it
+	 * may refer to removed nodes until {@link #validate()} is called.
+	 * @return the {@link ReferenceIndex}
+	 */
+	public synchronized ReferenceIndex getReferences() {
+		this.check();
+		if(this.references == null)
+			this.references = ReferenceIndex.of(this.requireMethod().instructions);
+		return this.references;
+	}
+
+	/**
+	 * Checks whether the instructions changed since they were last analysed, and
+	 * updates the analyses if they did. If they were never looked at, a snapshot
+	 * is taken to check against next time.
+	 * @return true if the analyses were still valid
+	 */
+	public synchronized boolean validate() {
+		if(this.snapshot == null) {
+			this.snapshot();
+			return true;
+		}
+		MethodNode method = this.requireMethod();
+		if(method.instructions.size() == this.snapshot.length) {
+			int i = 0;
+			AbstractInsnNode cur = method.instructions.getFirst();
+			while(cur != null && i < this.snapshot.length && cur == this.snapshot[i]) {
+				cur = cur.getNext();
+				i++;
+			}
+			if(cur == null && i == this.snapshot.length) return true;
+		}
+		this.refresh();
+		return false;
+	}
+
+	/**
+	 * Discards all analyses, which will be recomputed when next needed.
+	 */
+	public synchronized void invalidate() {
+		this.snapshot = null;
+		this.indices = null;
+		this.types = null;
+		this.sources = null;
+		this.flow = null;
+		this.opcodes = null;
+		this.references = null;
+	}
+
+	/**
+	 * @return the internal name of the class the method belongs to
+	 */
+	public String getOwner() {
+		return this.owner;
+	}
+
+	/**
+	 * Finds the position of an instruction, taking a new snapshot if the method changed.
+	 * @param insn the instruction
+	 * @return its index
+	 * @throws IllegalArgumentException if the instruction is not part of the method
+	 */
+	private int indexOf(AbstractInsnNode insn) {
+		this.check();
+		Integer index = this.indices.get(insn);
+		if(index == null) {
+			this.refresh(); //it may have been added since
+			index = this.indices.get(insn);
+		}
+		if(index == null)
+			throw new IllegalArgumentException("The instruction is not part of the method!");
+		return index;
+	}
+
+	/**
+	 * Takes a snapshot if there is none, or updates the analyses if the size of the
+	 * method or its first or last node changed: unlike {@link #validate()}, this
+	 * does not go through the instructions.
+	 */
+	private void check() {
+		if(this.snapshot == null) {
+			this.snapshot();
+			return;
+		}
+		InsnList instructions = this.requireMethod().instructions;
+		int size = this.snapshot.length;
+		if(instructions.size() != size
+			|| size != 0 && (instructions.getFirst() != this.snapshot[0] || instructions.getLast() != this.snapshot[size - 1]))
+			this.refresh();
+	}
+
+	/**
+	 * Updates the analyses after the instructions changed: frames are discarded,
+	 * while the control flow graph is patched if possible.
+	 */
+	private void refresh() {
+		MethodNode method = this.requireMethod();
+		if(this.flow != null && !this.flow.patch(method.instructions, this.indices, method.tryCatchBlocks))
+			this.flow = null;
+		this.types = null;
+		this.sources = null;
+		this.opcodes = null;
+		this.references = null;
+		this.snapshot();
+	}
+
+	/**
+	 * @return the control flow graph, built if needed from the last snapshot
+	 */
+	private ControlFlow flow() {
+		if(this.flow == null) {
+			if(this.snapshot == null) this.snapshot();
+			this.flow = new ControlFlow(this.snapshot, this.indices, this.requireMethod().tryCatchBlocks);
+		}
+		return this.flow;
+	}
+
+	/**
+	 * Takes a snapshot of the instructions.
+	 */
+	private void snapshot() {
+		this.snapshot(this.requireMethod().instructions.toArray());
+	}
+
+	/**
+	 * Takes the given nodes as the snapshot of the instructions.
+	 * @param nodes the nodes
+	 */
+	private void snapshot(AbstractInsnNode[] nodes) {
+		this.snapshot = nodes;
+		this.indices = new IdentityHashMap<>(this.snapshot.length * 2);
+		for(int i = 0; i < this.snapshot.length; i++)
+			this.indices.put(this.snapshot[i], i);
+	}
+
+	/**
+	 * Runs an {@link Analyzer} on the method, as of the last snapshot.
+	 * Maximum stack and locals may not be up to date while injectors work on it,
+	 * so they are raised as needed for the duration of the analysis.
+	 * @param interpreter the {@link Interpreter} to use
+	 * @param <V> the type of the values
+	 * @return the computed frames
+	 * @throws InjectionException if the method could not be analysed
+	 */
+	private <V extends Value> Frame<V>[] analyze(Interpreter<V> interpreter) {
+		MethodNode method = this.requireMethod();
+		int maxLocals = method.maxLocals, maxStack = method.maxStack;
+		int locals = (Type.getArgumentsAndReturnSizes(method.desc) >> 2) + 1;
+		for(AbstractInsnNode insn : this.snapshot) {
+			if(insn instanceof VarInsnNode)
+				locals = Math.max(locals, ((VarInsnNode) insn).var + 2);
+			else if(insn instanceof IincInsnNode)
+				locals = Math.max(locals, ((IincInsnNode) insn).var + 1);
+		}
+		method.maxLocals = Math.max(maxLocals, locals);
+		method.instructions.toArray(); //fixes the cached indices, which InsnSequence may have broken
+		try {
+			while(true) {
+				try {
+					return new Analyzer<>(interpreter).analyze(this.owner, method);
+				} catch(AnalyzerException e) {
+					if(e.getMessage() == null || !e.getMessage().contains("Insufficient maximum stack size")
+						|| method.maxStack >= 0xFFFF)
+						throw e;
+					method.maxStack = method.maxStack * 2 + 4;
+				}
+			}
+		} catch(AnalyzerException e) {
+			throw new InjectionException(String.format("Failed to analyze %s::%s%s!",
+				this.owner, method.name, method.desc), e);
+		} finally {
+			method.maxLocals = maxLocals;
+			method.maxStack = maxStack;
+		}
+	}
+
+	/**
+	 * @return the analysed {@link MethodNode}
+	 * @throws IllegalStateException if it's been garbage collected
+	 */
+	private MethodNode requireMethod() {
+		MethodNode method = this.method.get();
+		if(method == null)
+			throw new IllegalStateException("The method was garbage collected!");
+		return method;
+	}
+}
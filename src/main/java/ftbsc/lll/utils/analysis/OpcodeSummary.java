@@ -0,0 +1,153 @@
+package ftbsc.lll.utils.analysis;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+
+/**
+ * Summarises the instructions of a method: which opcodes it contains, and how
+ * many method, field and type instructions there are.
+ * It's meant to quickly rule out methods which cannot possibly contain a pattern,
+ * without looking at their instructions. Sets of opcodes are represented as four
+ * longs, one bit for each opcode, and may be built with {@link #set(int...)}.
+ */
+public class OpcodeSummary {
+	/**
+	 * The set of method instruction opcodes.
+	 */
+	public static final long[] METHOD_INSNS = set(Opcodes.INVOKEVIRTUAL, Opcodes.INVOKESPECIAL,
+		Opcodes.INVOKESTATIC, Opcodes.INVOKEINTERFACE);
+
+	/**
+	 * The set of field instruction opcodes.
+	 */
+	public static final long[] FIELD_INSNS = set(Opcodes.GETSTATIC, Opcodes.PUTSTATIC,
+		Opcodes.GETFIELD, Opcodes.PUTFIELD);
+
+	/**
+	 * The set of type instruction opcodes.
+	 */
+	public static final long[] TYPE_INSNS = set(Opcodes.NEW, Opcodes.ANEWARRAY,
+		Opcodes.CHECKCAST, Opcodes.INSTANCEOF);
+
+	/**
+	 * The opcodes found so far.
+	 */
+	private final long[] opcodes = new long[4];
+
+	/**
+	 * The number of method instructions.
+	 */
+	private int methodInsns;
+
+	/**
+	 * The number of field instructions.
+	 */
+	private int fieldInsns;
+
+	/**
+	 * The number of type instructions.
+	 */
+	private int typeInsns;
+
+	/**
+	 * Summarises a list of instructions.
+	 * @param insns the {@link InsnList}
+	 * @return the {@link OpcodeSummary}
+	 */
+	public static OpcodeSummary of(InsnList insns) {
+		OpcodeSummary res = new OpcodeSummary();
+		for(AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.getNext())
+			res.add(insn.getOpcode());
+		return res;
+	}
+
+	/**
+	 * Builds a set of opcodes.
+	 * @param opcodes the opcodes
+	 * @return the set
+	 * @throws IllegalArgumentException if an opcode is not between 0 and 255
+	 */
+	public static long[] set(int... opcodes) {
+		long[] res = new long[4];
+		for(int opcode : opcodes) {
+			if(opcode < 0 || opcode > 255)
+				throw new IllegalArgumentException("Invalid opcode " + opcode + "!");
+			res[opcode >>> 6] |= 1L << opcode;
+		}
+		return res;
+	}
+
+	/**
+	 * Checks whether a set contains an opcode.
+	 * @param set the set
+	 * @param opcode the opcode, -1 for pseudo-instructions
+	 * @return true if the opcode is in the set
+	 */
+	public static boolean contains(long[] set, int opcode) {
+		return opcode >= 0 && (set[opcode >>> 6] & 1L << opcode) != 0;
+	}
+
+	/**
+	 * Checks whether a set is contained in another.
+	 * @param set the set
+	 * @param other the other set
+	 * @return true if all opcodes in the first set are in the other
+	 */
+	public static boolean isSubset(long[] set, long[] other) {
+		for(int i = 0; i < 4; i++)
+			if((set[i] & ~other[i]) != 0) return false;
+		return true;
+	}
+
+	/**
+	 * Records an instruction.
+	 * @param opcode its opcode, -1 for pseudo-instructions which are ignored
+	 */
+	void add(int opcode) {
+		if(opcode < 0) return;
+		this.opcodes[opcode >>> 6] |= 1L << opcode;
+		if(contains(METHOD_INSNS, opcode)) this.methodInsns++;
+		else if(contains(FIELD_INSNS, opcode)) this.fieldInsns++;
+		else if(contains(TYPE_INSNS, opcode)) this.typeInsns++;
+	}
+
+	/**
+	 * @param opcode an opcode
+	 * @return whether the method contains it
+	 */
+	public boolean contains(int opcode) {
+		return contains(this.opcodes, opcode);
+	}
+
+	/**
+	 * @param set a set of opcodes
+	 * @return whether the method contains any of them
+	 */
+	public boolean containsAny(long[] set) {
+		for(int i = 0; i < 4; i++)
+			if((this.opcodes[i] & set[i]) != 0) return true;
+		return false;
+	}
+
+	/**
+	 * @return the number of method instructions, excluding INVOKEDYNAMIC
+	 */
+	public int getMethodInsns() {
+		return this.methodInsns;
+	}
+
+	/**
+	 * @return the number of field instructions
+	 */
+	public int getFieldInsns() {
+		return this.fieldInsns;
+	}
+
+	/**
+	 * @return the number of type instructions, excluding MULTIANEWARRAY
+	 */
+	public int getTypeInsns() {
+		return this.typeInsns;
+	}
+}
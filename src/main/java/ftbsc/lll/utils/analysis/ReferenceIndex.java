@@ -0,0 +1,255 @@
+package ftbsc.lll.utils.analysis;
+
+import ftbsc.lll.proxies.AbstractProxy;
+import ftbsc.lll.proxies.impl.FieldProxy;
+import ftbsc.lll.proxies.impl.MethodProxy;
+import ftbsc.lll.proxies.impl.TypeProxy;
+import org.objectweb.asm.tree.*;
+
+import java.util.*;
+
+/**
+ * Indexes the instructions of a method, or of a whole class, by the members, types
+ * and constants they refer to, so that finding all the calls to a method or all the
+ * accesses to a field is a hash lookup rather than a scan.
+ * Type references are those of NEW, ANEWARRAY, CHECKCAST and INSTANCEOF, keyed by
+ * their operand: the internal name of a class, or the descriptor of an array.
+ */
+public class ReferenceIndex {
+	/**
+	 * The method instructions, by member.
+	 */
+	private final Map<Member, List<MethodInsnNode>> methods = new HashMap<>();
+
+	/**
+	 * The field instructions, by member.
+	 */
+	private final Map<Member, List<FieldInsnNode>> fields = new HashMap<>();
+
+	/**
+	 * The type instructions, by operand.
+	 */
+	private final Map<String, List<TypeInsnNode>> types = new HashMap<>();
+
+	/**
+	 * The LDC instructions, by constant.
+	 */
+	private final Map<Object, List<LdcInsnNode>> constants = new HashMap<>();
+
+	/**
+	 * Indexes a list of instructions.
+	 * @param insns the {@link InsnList}
+	 * @return the {@link ReferenceIndex}
+	 */
+	public static ReferenceIndex of(InsnList insns) {
+		ReferenceIndex res = new ReferenceIndex();
+		for(AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.getNext())
+			res.add(insn);
+		return res;
+	}
+
+	/**
+	 * Merges several indices into one.
+	 * @param indices the {@link ReferenceIndex}es to merge
+	 * @return the merged {@link ReferenceIndex}
+	 */
+	public static ReferenceIndex merge(Collection<ReferenceIndex> indices) {
+		ReferenceIndex res = new ReferenceIndex();
+		for(ReferenceIndex index : indices) {
+			mergeInto(res.methods, index.methods);
+			mergeInto(res.fields, index.fields);
+			mergeInto(res.types, index.types);
+			mergeInto(res.constants, index.constants);
+		}
+		return res;
+	}
+
+	/**
+	 * Merges the entries of a map into another.
+	 * @param target the map to merge into
+	 * @param source the map to merge
+	 * @param <K> the type of the keys
+	 * @param <V> the type of the values
+	 */
+	private static <K, V> void mergeInto(Map<K, List<V>> target, Map<K, List<V>> source) {
+		for(Map.Entry<K, List<V>> entry : source.entrySet())
+			target.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).addAll(entry.getValue());
+	}
+
+	/**
+	 * Records an instruction, if it refers to anything.
+	 * @param insn the instruction
+	 */
+	void add(AbstractInsnNode insn) {
+		switch(insn.getType()) {
+			case AbstractInsnNode.METHOD_INSN: {
+				MethodInsnNode node = (MethodInsnNode) insn;
+				this.methods.computeIfAbsent(new Member(node.owner, node.name, node.desc), k -> new ArrayList<>(2)).add(node);
+				break;
+			}
+			case AbstractInsnNode.FIELD_INSN: {
+				FieldInsnNode node = (FieldInsnNode) insn;
+				this.fields.computeIfAbsent(new Member(node.owner, node.name, node.desc), k -> new ArrayList<>(2)).add(node);
+				break;
+			}
+			case AbstractInsnNode.TYPE_INSN: {
+				TypeInsnNode node = (TypeInsnNode) insn;
+				this.types.computeIfAbsent(node.desc, k -> new ArrayList<>(2)).add(node);
+				break;
+			}
+			case AbstractInsnNode.LDC_INSN: {
+				LdcInsnNode node = (LdcInsnNode) insn;
+				this.constants.computeIfAbsent(node.cst, k -> new ArrayList<>(2)).add(node);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Finds the invocations of a method.
+	 * @param owner the internal name of the class the method is invoked on
+	 * @param name the name of the method
+	 * @param desc the descriptor of the method
+	 * @return the {@link MethodInsnNode}s, possibly empty
+	 */
+	public List<MethodInsnNode> getInvocations(String owner, String name, String desc) {
+		return view(this.methods.get(new Member(owner, name, desc)));
+	}
+
+	/**
+	 * Finds the invocations of a method.
+	 * @param method a {@link MethodProxy} for the method, which must have a parent
+	 * @return the {@link MethodInsnNode}s, possibly empty
+	 */
+	public List<MethodInsnNode> getInvocations(MethodProxy method) {
+		return this.getInvocations(ownerOf(method), method.name, method.descriptor);
+	}
+
+	/**
+	 * Finds the accesses to a field.
+	 * @param owner the internal name of the class the field is accessed on
+	 * @param name the name of the field
+	 * @param desc the descriptor of the field
+	 * @return the {@link FieldInsnNode}s, possibly empty
+	 */
+	public List<FieldInsnNode> getAccesses(String owner, String name, String desc) {
+		return view(this.fields.get(new Member(owner, name, desc)));
+	}
+
+	/**
+	 * Finds the accesses to a field.
+	 * @param field a {@link FieldProxy} for the field, which must have a parent
+	 * @return the {@link FieldInsnNode}s, possibly empty
+	 */
+	public List<FieldInsnNode> getAccesses(FieldProxy field) {
+		return this.getAccesses(ownerOf(field), field.name, field.descriptor);
+	}
+
+	/**
+	 * Finds the type instructions operating on a type.
+	 * @param type the internal name of a class, or the descriptor of an array
+	 * @return the {@link TypeInsnNode}s, possibly empty
+	 */
+	public List<TypeInsnNode> getTypeUses(String type) {
+		return view(this.types.get(type));
+	}
+
+	/**
+	 * Finds the type instructions operating on a class.
+	 * @param type a {@link TypeProxy} for the class
+	 * @return the {@link TypeInsnNode}s, possibly empty
+	 */
+	public List<TypeInsnNode> getTypeUses(TypeProxy type) {
+		return this.getTypeUses(type.internalName);
+	}
+
+	/**
+	 * Finds the LDC instructions loading a constant.
+	 * @param value the constant, as it would appear in an {@link LdcInsnNode}
+	 * @return the {@link LdcInsnNode}s, possibly empty
+	 */
+	public List<LdcInsnNode> getConstants(Object value) {
+		return view(this.constants.get(value));
+	}
+
+	/**
+	 * Wraps a list of results.
+	 * @param list the list, may be null
+	 * @param <T> the type of the nodes
+	 * @return an unmodifiable view of the list, or an empty list
+	 */
+	private static <T> List<T> view(List<T> list) {
+		return list == null ? Collections.emptyList() : Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Gets the internal name of the class a member belongs to.
+	 * @param proxy the proxy of the member
+	 * @return the internal name of its parent
+	 * @throws IllegalArgumentException if the proxy has no parent
+	 */
+	private static String ownerOf(AbstractProxy proxy) {
+		if(proxy.parent == null)
+			throw new IllegalArgumentException("Proxy " + proxy.name + " has no parent!");
+		return proxy.parent.internalName;
+	}
+
+	/**
+	 * Identifies a member by owner, name and descriptor.
+	 */
+	private static final class Member {
+		/**
+		 * The internal name of the owner.
+		 */
+		private final String owner;
+
+		/**
+		 * The name of the member.
+		 */
+		private final String name;
+
+		/**
+		 * The descriptor of the member.
+		 */
+		private final String desc;
+
+		/**
+		 * The cached hash code.
+		 */
+		private final int hash;
+
+		/**
+		 * Private constructor.
+		 * @param owner the internal name of the owner
+		 * @param name the name of the member
+		 * @param desc the descriptor of the member
+		 */
+		private Member(String owner, String name, String desc) {
+			this.owner = owner;
+			this.name = name;
+			this.desc = desc;
+			this.hash = (owner.hashCode() * 31 + name.hashCode()) * 31 + desc.hashCode();
+		}
+
+		/**
+		 * @return the cached hash code
+		 */
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		/**
+		 * @param obj another object
+		 * @return whether it's a {@link Member} with the same owner, name and descriptor
+		 */
+		@Override
+		public boolean equals(Object obj) {
+			if(this == obj) return true;
+			if(!(obj instanceof Member)) return false;
+			Member other = (Member) obj;
+			return this.hash == other.hash && this.name.equals(other.name)
+				&& this.owner.equals(other.owner) && this.desc.equals(other.desc);
+		}
+	}
+}
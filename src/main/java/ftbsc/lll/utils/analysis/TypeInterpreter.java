@@ -0,0 +1,112 @@
+package ftbsc.lll.utils.analysis;
+
+import ftbsc.lll.hierarchy.IClassHierarchy;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+
+/**
+ * A {@link BasicInterpreter} which keeps track of the exact type of references
+ * instead of collapsing them all to {@link BasicValue#REFERENCE_VALUE}.
+ * Unlike ASM's verifiers, it never loads classes: when two different reference
+ * types meet, they are merged to their common superclass if an {@link IClassHierarchy}
+ * was provided, or to {@link Object} otherwise.
+ */
+public class TypeInterpreter extends BasicInterpreter {
+	/**
+	 * The {@link IClassHierarchy} used to merge references, may be null.
+	 */
+	private final IClassHierarchy hierarchy;
+
+	/**
+	 * Public constructor.
+	 * Different references will be merged to {@link Object}.
+	 */
+	public TypeInterpreter() {
+		this(null);
+	}
+
+	/**
+	 * Public constructor.
+	 * @param hierarchy the {@link IClassHierarchy} used to merge references, may be null
+	 */
+	public TypeInterpreter(IClassHierarchy hierarchy) {
+		super(Opcodes.ASM9);
+		this.hierarchy = hierarchy;
+	}
+
+	/**
+	 * Creates a value for the given type, keeping the exact type for objects and arrays.
+	 * @param type the {@link Type} of the value, may be null
+	 * @return the corresponding {@link BasicValue}
+	 */
+	@Override
+	public BasicValue newValue(Type type) {
+		if(type == null)
+			return BasicValue.UNINITIALIZED_VALUE;
+		if(type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY)
+			return new BasicValue(type);
+		return super.newValue(type);
+	}
+
+	/**
+	 * Handles binary operations, resolving the element type of AALOAD.
+	 * @param insn the instruction being interpreted
+	 * @param value1 the first operand
+	 * @param value2 the second operand
+	 * @return the result of the operation
+	 * @throws AnalyzerException if an error occurs
+	 */
+	@Override
+	public BasicValue binaryOperation(AbstractInsnNode insn, BasicValue value1, BasicValue value2) throws AnalyzerException {
+		if(insn.getOpcode() == AALOAD) {
+			Type array = value1.getType();
+			if(array != null && array.getSort() == Type.ARRAY)
+				return newValue(Type.getType(array.getDescriptor().substring(1)));
+			return BasicValue.REFERENCE_VALUE;
+		}
+		return super.binaryOperation(insn, value1, value2);
+	}
+
+	/**
+	 * Merges two values. Equal values are kept as they are, {@code null} takes
+	 * on the type of the other reference and different references become their
+	 * common superclass, or {@link Object} if it can't be determined.
+	 * @param value1 the first value
+	 * @param value2 the second value
+	 * @return the merged value
+	 */
+	@Override
+	public BasicValue merge(BasicValue value1, BasicValue value2) {
+		if(value1.equals(value2))
+			return value1;
+		if(value1.isReference() && value2.isReference()) {
+			if(NULL_TYPE.equals(value1.getType())) return value2;
+			if(NULL_TYPE.equals(value2.getType())) return value1;
+			Type type1 = value1.getType(), type2 = value2.getType();
+			if(this.hierarchy != null && type1.getSort() == Type.OBJECT && type2.getSort() == Type.OBJECT) {
+				try {
+					return newValue(Type.getObjectType(this.hierarchy.getCommonSuperClass(type1.getInternalName(), type2.getInternalName())));
+				} catch(TypeNotPresentException ignored) {}
+			}
+			return BasicValue.REFERENCE_VALUE;
+		}
+		return BasicValue.UNINITIALIZED_VALUE;
+	}
+
+	/**
+	 * Gets the {@link Type} a value should be declared as, mapping the type
+	 * of {@code null} constants to {@link Object}.
+	 * @param value the value
+	 * @return the declarable {@link Type}, or null if the value is uninitialised
+	 */
+	public static Type declarableType(BasicValue value) {
+		Type type = value.getType();
+		if(NULL_TYPE.equals(type))
+			return Type.getType(Object.class);
+		return type;
+	}
+}
@@ -0,0 +1,31 @@
+package ftbsc.lll.utils.nodes;
+
+import ftbsc.lll.hooks.HookRegistry;
+import ftbsc.lll.proxies.impl.MethodProxy;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+
+/**
+ * Overrides the {@link InvokeDynamicInsnNode} to call a hook registered in the
+ * {@link HookRegistry}, rather than a method of a specific class. The patched
+ * class must be compiled for Java 7 or later, see {@link HookRegistry#checkVersion}.
+ */
+public class HookInsnNode extends InvokeDynamicInsnNode {
+	/**
+	 * Constructs a new {@link InvokeDynamicInsnNode} calling a hook.
+	 * @param id the id the hook is registered with
+	 * @param descriptor the descriptor of the call: it takes the arguments from the
+	 *                   stack and leaves the returned value on it, like INVOKESTATIC
+	 */
+	public HookInsnNode(String id, String descriptor) {
+		super("hook", descriptor, HookRegistry.BOOTSTRAP, id);
+	}
+
+	/**
+	 * Constructs a new {@link InvokeDynamicInsnNode} calling a static method as a hook,
+	 * registered with {@link HookRegistry#idOf(MethodProxy)}.
+	 * @param m a {@link MethodProxy} representing the static method
+	 */
+	public HookInsnNode(MethodProxy m) {
+		super(m.name, m.descriptor, HookRegistry.BOOTSTRAP, HookRegistry.idOf(m));
+	}
+}